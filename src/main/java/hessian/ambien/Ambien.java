@@ -32,7 +32,9 @@ import java.net.InetSocketAddress;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class Ambien {
@@ -47,6 +49,7 @@ public class Ambien {
     private String usage() {
         StringBuilder usage = new StringBuilder("version: ").append(version).append("\n");
         usage.append("Usage: ambien -host <hostname> -kt <keyspaceName.tableName> -o <outputDir> [options]\n");
+        usage.append("       ambien unload -host <hostname> -kt <keyspaceName.tableName> -o <outputDir> [options]\n");
         usage.append(AmbienParams.usage());
         return usage.toString();
     }
@@ -127,6 +130,10 @@ public class Ambien {
             return cleanup(false);
         }
 
+        // Export the tables instead of generating a service
+        if (params.unload)
+            return cleanup(new AmbienUnload(params, session).unload());
+
         // Produce Boilerplate (pom.xml, etc)
         AmbienBoilerplate ab = new AmbienBoilerplate(params);
         if (!ab.produceBoilerplate()) {
@@ -141,7 +148,15 @@ public class Ambien {
             return cleanup(false);
         }
 
+        // Produce Driver Configuration (application.conf)
+        AmbienDriverConfig adc = new AmbienDriverConfig(params);
+        if (!adc.produceDriverConfig()) {
+            System.err.println("Had trouble producing driver configuration");
+            return cleanup(false);
+        }
+
         List<String> restList = new ArrayList<String>();
+        Map<String, String> restNotes = new LinkedHashMap<String, String>();
         Metadata m = session.getMetadata();
         CodecRegistry cr = session.getContext().getCodecRegistry();
         for (int idx = 0; idx < params.keyspace_name.size(); idx++) {
@@ -173,18 +188,26 @@ public class Ambien {
             }
 
             // Produce Repository Classes
-            AmbienRepository ar = new AmbienRepository(ksname, tblname, params, partitionCols, clusteringCols, regularCols, cr, restList);
+            AmbienIndexes indexes = new AmbienIndexes(km, tm);
+            if (indexes.hasSearchIndex())
+                System.err.println("Found a DSE Search index on " + ksname + "." + tblname + ", generating search endpoints");
+            for (AmbienIndexes.ColumnIndex ci : indexes.getColumnIndexes())
+                System.err.println("Found " + ci.describe() + " on " + ksname + "." + tblname + "." + ci.column + ", generating lookup endpoints");
+            for (AmbienIndexes.View view : indexes.getViews())
+                System.err.println("Found " + view.describe() + " on " + ksname + "." + tblname + ", generating lookup endpoints");
+            AmbienRepository ar = new AmbienRepository(ksname, tblname, params, partitionCols, clusteringCols, regularCols, cr, indexes, restList);
             if (!ar.produceRepositoryClasses()) {
                 System.err.println("Had trouble producing repository and controller classes");
                 return cleanup(false);
             }
+            restNotes.putAll(ar.getIndexBackedEndpoints());
         }
 
         // Produce Index and Error pages
         if (!producePage("<h1>Welcome!</h1>\n<h2>This API brought to you by <i>Vested Interests</i></h2>\n",
-                params.resourcesTemplatesDir + File.separator + "index.html", restList)) return false;
+                params.resourcesTemplatesDir + File.separator + "index.html", restList, restNotes)) return false;
         if (!producePage("<h1>&#x1F627 Something went wrong...</h1>\n\n",
-                params.resourcesTemplatesDir + File.separator + "error.html", restList)) return false;
+                params.resourcesTemplatesDir + File.separator + "error.html", restList, restNotes)) return false;
 
         cleanup();
         return true;
@@ -233,22 +256,24 @@ public class Ambien {
         return s.substring(0,1).toUpperCase() + s.substring(1);
     }
 
-    private String restList(List<String> restEndpoints) {
+    // Endpoints served by an index or materialized view are marked with it
+    private String restList(List<String> restEndpoints, Map<String, String> restNotes) {
         StringBuilder sb = new StringBuilder("<ul>\n");
         for (String s : restEndpoints) {
-            sb.append("<li><a href=\"" + s + "\">" + s + "</a></li>\n");
+            String note = restNotes.containsKey(s) ? " <i>(" + restNotes.get(s) + ")</i>" : "";
+            sb.append("<li><a href=\"" + s + "\">" + s + "</a>" + note + "</li>\n");
         }
         sb.append("</ul>\n");
         return sb.toString();
     }
 
-    private boolean producePage(String note, String fname, List<String> restList) {
+    private boolean producePage(String note, String fname, List<String> restList, Map<String, String> restNotes) {
         String page = "<!DOCTYPE html>\n" +
                 "<html>\n" +
                 "<body>\n" +
                 note +
                 "<h2>These are the supported REST endpoints</h2>\n" +
-                restList(restList) +
+                restList(restList, restNotes) +
                 "<p><a href=\"/actuator/\">The Actuator</a></p>\n" +
                 "</body>\n" +
                 "</html>\n";
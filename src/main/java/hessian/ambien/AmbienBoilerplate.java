@@ -4,6 +4,8 @@ import java.io.*;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.Files;
+import java.util.LinkedHashSet;
+import java.util.Map;
 import java.util.stream.Collectors;
 
 public class AmbienBoilerplate {
@@ -31,6 +33,27 @@ public class AmbienBoilerplate {
                 && makeLastUpdatedSchemaListener()
                 && makeStateListeningHealthCheck()
                 && makeAmbienHealthCheck()
+                && makeTokenRangeScanner()
+                && makeStreamingResponses()
+                && makeAmbienPage()
+                && makeBatchWriter()
+                && makeWriteBehindSpool()
+                && makeSpoolEndpoint()
+                && makeJsonWriterBenchmark()
+                && makeMultiGet()
+                && makePartitionCache()
+                && makeWarmup()
+                && makeExecutionProfiles()
+                && makeEndpointMetrics()
+                && makeEndpointMetricsFilter()
+                && makeDriverMetrics()
+                && makeAdmissionControl()
+                && makeAdmissionControlAdvice()
+                && makeAggregates()
+                && makeProjections()
+                && makeSearchQueries()
+                && makeGuardrails()
+                && makeBinaryFormats()
                 && addKeystore()
                 && addTruststore()
                 && copyResources();
@@ -41,7 +64,8 @@ public class AmbienBoilerplate {
                 && createDirectory(hessianTypeparserDir)
                 && createDirectory(params.srcRepositoryDir)
                 && createDirectory(params.srcControllerDir)
-                && createDirectory(params.resourcesTemplatesDir);
+                && createDirectory(params.resourcesTemplatesDir)
+                && createDirectory(params.resourcesProtoDir);
     }
 
     private boolean createDirectory(String dir) {
@@ -178,7 +202,37 @@ public class AmbienBoilerplate {
                 "\t\t</dependency>\n" +
                 "\t\t<dependency>\n" +
                 "\t\t\t<groupId>org.springframework.boot</groupId>\n" +
-                "\t\t\t<artifactId>spring-boot-starter-web</artifactId>\n" +
+                "\t\t\t<artifactId>" + (params.isWebflux() ? "spring-boot-starter-webflux" : "spring-boot-starter-web") + "</artifactId>\n" +
+                "\t\t</dependency>\n" +
+                "\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>io.micrometer</groupId>\n" +
+                "\t\t\t<artifactId>micrometer-registry-prometheus</artifactId>\n" +
+                "\t\t</dependency>\n" +
+                "\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>com.github.ben-manes.caffeine</groupId>\n" +
+                "\t\t\t<artifactId>caffeine</artifactId>\n" +
+                "\t\t</dependency>\n" +
+                "\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>org.lz4</groupId>\n" +
+                "\t\t\t<artifactId>lz4-java</artifactId>\n" +
+                "\t\t\t<version>1.4.1</version>\n" +
+                "\t\t</dependency>\n" +
+                "\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>com.fasterxml.jackson.dataformat</groupId>\n" +
+                "\t\t\t<artifactId>jackson-dataformat-cbor</artifactId>\n" +
+                "\t\t</dependency>\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>com.fasterxml.jackson.dataformat</groupId>\n" +
+                "\t\t\t<artifactId>jackson-dataformat-smile</artifactId>\n" +
+                "\t\t</dependency>\n" +
+                "\t\t<dependency>\n" +
+                "\t\t\t<groupId>com.google.protobuf</groupId>\n" +
+                "\t\t\t<artifactId>protobuf-java</artifactId>\n" +
+                "\t\t\t<version>3.7.1</version>\n" +
                 "\t\t</dependency>\n" +
                 "\n" +
                 "\t\t<dependency>\n" +
@@ -223,7 +277,7 @@ public class AmbienBoilerplate {
                 "dse.contactPoints=" + host + "\n" +
                 "dse.port=9042\n" +
                 "dse.localDc=" + params.dataCenter + "\n" +
-                "dse.keyspace=" + params.keyspace_name.get(0) + "\n" +
+                "dse.keyspaces=" + String.join(",", new LinkedHashSet<String>(params.keyspace_name)) + "\n" +
                 ((null == params.username) ? "" : "dse.username=" + params.username + "\n") +
                 ((null == params.password) ? "" : "dse.password=" + params.password + "\n") +
                 ((null == params.truststorePwd) ? "" : "dse.truststorePwd=" + params.truststorePwd + "\n") +
@@ -240,7 +294,136 @@ public class AmbienBoilerplate {
                 "springdata.basepackage=" + params.package_name + ".domain;\n" +
                 "management.endpoints.web.exposure.include=*\n" +
                 "management.endpoint.health.show-details=always\n" +
-                "management.health.cassandra.enabled=false\n";
+                "management.health.cassandra.enabled=false\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Streamed responses (NDJSON, server-sent events, Protobuf)\n" +
+                "#   streaming.flushMillis: longest rows wait unflushed within a page\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.streaming.flushMillis=100\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Batch writes (addBatch)\n" +
+                "#   batch.maxRows:     rows per single-partition unlogged batch\n" +
+                "#   batch.concurrency: batches in flight per request\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.batch.maxRows=100\n" +
+                "ambien.batch.concurrency=16\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Write-behind spool for add (see <table>.writeBehind.enabled)\n" +
+                "#   writeBehind.dir:          directory for the spool segments\n" +
+                "#   writeBehind.segmentBytes: size of each memory-mapped segment\n" +
+                "#   writeBehind.maxSegments:  segments per table before add is refused\n" +
+                "#   writeBehind.concurrency:  writes in flight while draining\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.writeBehind.dir=spool\n" +
+                "ambien.writeBehind.segmentBytes=67108864\n" +
+                "ambien.writeBehind.maxSegments=64\n" +
+                "ambien.writeBehind.concurrency=32\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Warm-up before the service reports ready (health: warmup)\n" +
+                "#   warmup.enabled:    replay reads before reporting ready\n" +
+                "#   warmup.sampleKeys: keys read from each table to replay\n" +
+                "#   warmup.rounds:     times the sampled reads are replayed\n" +
+                "#   warmup.maxSeconds: give up and report ready after this\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.warmup.enabled=true\n" +
+                "ambien.warmup.sampleKeys=100\n" +
+                "ambien.warmup.rounds=20\n" +
+                "ambien.warmup.maxSeconds=120\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Row writer allocation benchmark (/actuator/jsonbenchmark)\n" +
+                "#   jsonBenchmark.sampleRows: rows read from each table\n" +
+                "#   jsonBenchmark.iterations: times the rows are written each way\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.jsonBenchmark.sampleRows=1000\n" +
+                "ambien.jsonBenchmark.iterations=20\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Admission control, per endpoint class (429 when over limit)\n" +
+                "#   admission.enabled:           turn away requests over the limit\n" +
+                "#   admission.retryAfterSeconds: Retry-After sent with a 429\n" +
+                "#   admission.<class>.initialLimit: requests in flight at start\n" +
+                "#   admission.<class>.maxLimit:     most requests in flight\n" +
+                "#   admission.<class>.targetMillis: slower requests lower the limit\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.admission.enabled=true\n" +
+                "ambien.admission.retryAfterSeconds=1\n" +
+                "ambien.admission.point-read.initialLimit=100\n" +
+                "ambien.admission.point-read.maxLimit=2000\n" +
+                "ambien.admission.point-read.targetMillis=50\n" +
+                "ambien.admission.slice-read.initialLimit=50\n" +
+                "ambien.admission.slice-read.maxLimit=500\n" +
+                "ambien.admission.slice-read.targetMillis=250\n" +
+                "ambien.admission.scan.initialLimit=2\n" +
+                "ambien.admission.scan.maxLimit=8\n" +
+                "ambien.admission.scan.targetMillis=60000\n" +
+                "ambien.admission.write.initialLimit=100\n" +
+                "ambien.admission.write.maxLimit=2000\n" +
+                "ambien.admission.write.targetMillis=100\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Guardrails on reads (see Guardrails)\n" +
+                "#   guardrails.<class>.timeoutMillis: reads running longer get\n" +
+                "#       504; ambien.<keyspace>.<table>.<endpoint>.timeoutMillis\n" +
+                "#       sets it for one endpoint\n" +
+                "#   guardrails.scan.maxConcurrent: scan-class requests in flight\n" +
+                "#   guardrails.some.defaultLimit:  some= when it is not given\n" +
+                "#   guardrails.some.maxLimit:      largest some= allowed\n" +
+                "#   guardrails.filtering.maxPartitionBytes: ALLOW FILTERING\n" +
+                "#       reads are refused when the mean partition (from\n" +
+                "#       system.size_estimates) is bigger\n" +
+                "#   guardrails.estimates.refreshSeconds: size estimate age\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.guardrails.enabled=true\n" +
+                "ambien.guardrails.point-read.timeoutMillis=2000\n" +
+                "ambien.guardrails.slice-read.timeoutMillis=10000\n" +
+                "ambien.guardrails.scan.timeoutMillis=300000\n" +
+                "ambien.guardrails.scan.maxConcurrent=4\n" +
+                "ambien.guardrails.some.defaultLimit=100\n" +
+                "ambien.guardrails.some.maxLimit=10000\n" +
+                "ambien.guardrails.filtering.maxPartitionBytes=104857600\n" +
+                "ambien.guardrails.estimates.refreshSeconds=300\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Column projection (fields=) on read endpoints\n" +
+                "#   projection.maxShapes: prepared statements kept, one per\n" +
+                "#                         set of fields and query\n" +
+                "# ----------------------------------------------------------\n" +
+                "ambien.projection.maxShapes=1000\n" +
+                "\n" +
+                "# ----------------------------------------------------------\n" +
+                "# Driver settings (application.conf, profile: " + params.profile + ")\n" +
+                "#   Any datastax-java-driver.* property set here overrides\n" +
+                "#   application.conf, e.g. to tune one setting of the profile\n" +
+                "#   or of an execution profile (point-read, slice-read, scan,\n" +
+                "#   write): datastax-java-driver.profiles.<name>.<setting>\n" +
+                "# ----------------------------------------------------------\n" +
+                driverSettings() +
+                "\n" +
+                "# --------------------------------------------------------\n" +
+                "# Per-table parameters\n" +
+                "#   scan.splitFactor:    sub-ranges per token range for /all\n" +
+                "#   scan.concurrency:    token-range queries in flight for /all\n" +
+                "#   getMany.concurrency: lookups in flight for /getMany\n" +
+                "#   cache.enabled:       cache partition reads in memory\n" +
+                "#   cache.maximumRows:   rows held in the cache\n" +
+                "#   cache.ttlSeconds:    how long a cached read is served\n" +
+                "#   writeBehind.enabled: acknowledge add once it is spooled locally\n" +
+                "# --------------------------------------------------------\n";
+        for (int i = 0; i < params.keyspace_name.size(); i++) {
+            String prefix = AmbienParams.propertyPrefix(params.keyspace_name.get(i), params.table_name.get(i));
+            contents = contents + prefix + ".scan.splitFactor=1\n" +
+                    prefix + ".scan.concurrency=8\n" +
+                    prefix + ".getMany.concurrency=32\n" +
+                    prefix + ".cache.enabled=false\n" +
+                    prefix + ".cache.maximumRows=100000\n" +
+                    prefix + ".cache.ttlSeconds=60\n" +
+                    prefix + ".writeBehind.enabled=false\n";
+        }
         if ((null != params.keystorePwd) || (null != params.truststorePwd)) {
             contents = contents + "\n# DSE Security parameters\n";
             if (null != params.keystorePwd) {
@@ -254,7 +437,22 @@ public class AmbienBoilerplate {
         return Ambien.writeFile(params.resourcesDir + File.separator + "application.properties", contents);
     }
 
+    private String driverSettings() {
+        String settings = "";
+        for (Map.Entry<String, String> setting : AmbienDriverConfig.settings(params.profile).entrySet())
+            settings = settings + "#datastax-java-driver." + setting.getKey() + "=" + setting.getValue() + "\n";
+        if (settings.isEmpty())
+            settings = "#datastax-java-driver.basic.request.timeout=2 seconds\n";
+        settings = settings + "#   Execution profiles other than scan use the session's consistency\n" +
+                "#   (the driver's default is LOCAL_ONE) unless given one here\n";
+        for (String override : AmbienDriverConfig.consistencyOverrides())
+            settings = settings + "#" + override + "\n";
+        return settings;
+    }
+
     private boolean makeApplication() {
+        if (params.isWebflux())
+            return makeWebfluxApplication();
         String contents = "package " + params.package_name + ";\n" +
                 "\n" +
                 "import org.springframework.boot.SpringApplication;\n" +
@@ -277,34 +475,82 @@ public class AmbienBoilerplate {
         return Ambien.writeFile(params.javaSrcDir + File.separator + "AmbienApplication.java", contents);
     }
 
+    // Netty has no servlet initializer, and WebFlux does not serve templates/index.html at "/"
+    private boolean makeWebfluxApplication() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.boot.SpringApplication;\n" +
+                "import org.springframework.boot.autoconfigure.SpringBootApplication;\n" +
+                "import org.springframework.context.annotation.Bean;\n" +
+                "import org.springframework.core.io.Resource;\n" +
+                "import org.springframework.http.MediaType;\n" +
+                "import org.springframework.web.reactive.function.server.RequestPredicates;\n" +
+                "import org.springframework.web.reactive.function.server.RouterFunction;\n" +
+                "import org.springframework.web.reactive.function.server.RouterFunctions;\n" +
+                "import org.springframework.web.reactive.function.server.ServerResponse;\n" +
+                "\n" +
+                "@SpringBootApplication\n" +
+                "public class AmbienApplication {\n" +
+                "\t@Bean\n" +
+                "\tpublic RouterFunction<ServerResponse> indexRouter(@Value(\"classpath:/templates/index.html\") Resource index) {\n" +
+                "\t\treturn RouterFunctions.route(RequestPredicates.GET(\"/\"),\n" +
+                "\t\t\t\trequest -> ServerResponse.ok().contentType(MediaType.TEXT_HTML).syncBody(index));\n" +
+                "\t}\n" +
+                "\n" +
+                "\tpublic static void main(String[] args) {\n" +
+                "\t\tSpringApplication.run(AmbienApplication.class, args);\n" +
+                "\t}\n" +
+                "}\n";
+
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "AmbienApplication.java", contents);
+    }
+
     private boolean makeLastUpdatedStateListener() {
         String contents = "package " + params.package_name + ";\n" +
                 "\n" +
                 "import com.datastax.oss.driver.api.core.metadata.Node;\n" +
                 "import com.datastax.oss.driver.api.core.metadata.NodeStateListener;\n" +
                 "\n" +
+                "import java.util.List;\n" +
+                "import java.util.concurrent.CopyOnWriteArrayList;\n" +
+                "\n" +
                 "public class LastUpdatedStateListener implements NodeStateListener {\n" +
-                "    private long lastUpdated = System.currentTimeMillis();\n" +
-                "    private long lastChecked = -1;\n" +
+                "    private volatile long lastUpdated = System.currentTimeMillis();\n" +
+                "    private volatile long lastChecked = -1;\n" +
+                "    // Listeners added after the session was built, which are passed every event\n" +
+                "    private final List<NodeStateListener> listeners = new CopyOnWriteArrayList<NodeStateListener>();\n" +
+                "\n" +
+                "    public void addListener(NodeStateListener listener) {\n" +
+                "        listeners.add(listener);\n" +
+                "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onAdd(Node host) {\n" +
                 "        this.lastUpdated = System.currentTimeMillis();\n" +
+                "        for (NodeStateListener listener : listeners)\n" +
+                "            listener.onAdd(host);\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onUp(Node host) {\n" +
                 "        this.lastUpdated = System.currentTimeMillis();\n" +
+                "        for (NodeStateListener listener : listeners)\n" +
+                "            listener.onUp(host);\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onDown(Node host) {\n" +
                 "        this.lastUpdated = System.currentTimeMillis();\n" +
+                "        for (NodeStateListener listener : listeners)\n" +
+                "            listener.onDown(host);\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onRemove(Node host) {\n" +
                 "        this.lastUpdated = System.currentTimeMillis();\n" +
+                "        for (NodeStateListener listener : listeners)\n" +
+                "            listener.onRemove(host);\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
@@ -332,9 +578,24 @@ public class AmbienBoilerplate {
                 "import com.datastax.oss.driver.api.core.type.UserDefinedType;\n" +
                 "import edu.umd.cs.findbugs.annotations.NonNull;\n" +
                 "\n" +
+                "import java.util.List;\n" +
+                "import java.util.concurrent.CopyOnWriteArrayList;\n" +
+                "\n" +
                 "public class LastUpdatedSchemaListener implements SchemaChangeListener {\n" +
-                "    private long lastUpdated = System.currentTimeMillis();\n" +
-                "    private long lastChecked = -1;\n" +
+                "    private volatile long lastUpdated = System.currentTimeMillis();\n" +
+                "    private volatile long lastChecked = -1;\n" +
+                "    // Run when a keyspace is created, dropped or updated (e.g. its replication)\n" +
+                "    private final List<Runnable> keyspaceListeners = new CopyOnWriteArrayList<Runnable>();\n" +
+                "\n" +
+                "    public void addKeyspaceListener(Runnable listener) {\n" +
+                "        keyspaceListeners.add(listener);\n" +
+                "    }\n" +
+                "\n" +
+                "    private void keyspaceChanged() {\n" +
+                "        lastUpdated = System.currentTimeMillis();\n" +
+                "        for (Runnable listener : keyspaceListeners)\n" +
+                "            listener.run();\n" +
+                "    }\n" +
                 "\n" +
                 "    public long getLastUpdated() {\n" +
                 "        return this.lastUpdated;\n" +
@@ -349,17 +610,17 @@ public class AmbienBoilerplate {
                 "\n" +
                 "    @Override\n" +
                 "    public void onKeyspaceCreated(@NonNull KeyspaceMetadata keyspaceMetadata) {\n" +
-                "        lastUpdated = System.currentTimeMillis();\n" +
+                "        keyspaceChanged();\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onKeyspaceDropped(@NonNull KeyspaceMetadata keyspaceMetadata) {\n" +
-                "        lastUpdated = System.currentTimeMillis();\n" +
+                "        keyspaceChanged();\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public void onKeyspaceUpdated(@NonNull KeyspaceMetadata keyspaceMetadata, @NonNull KeyspaceMetadata keyspaceMetadata1) {\n" +
-                "        lastUpdated = System.currentTimeMillis();\n" +
+                "        keyspaceChanged();\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
@@ -450,7 +711,6 @@ public class AmbienBoilerplate {
         String contents = "package " + params.package_name + ";\n" +
                 "\n" +
                 "import com.datastax.dse.driver.api.core.DseSession;\n" +
-                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
                 "import com.datastax.oss.driver.api.core.metadata.*;\n" +
                 "import com.datastax.oss.driver.api.core.metadata.token.TokenRange;\n" +
                 "import org.springframework.beans.factory.annotation.Autowired;\n" +
@@ -458,12 +718,43 @@ public class AmbienBoilerplate {
                 "import org.springframework.boot.actuate.health.Health;\n" +
                 "import org.springframework.boot.actuate.health.HealthIndicator;\n" +
                 "\n" +
-                "import java.util.ArrayList;\n" +
-                "import java.util.List;\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "import java.util.*;\n" +
                 "import java.util.stream.Collectors;\n" +
                 "\n" +
-                "public class StateListeningHealthCheck implements HealthIndicator {\n" +
-                "    private Health lastHealth = Health.unknown().build();\n" +
+                "/**\n" +
+                " * DOWN when a token range of one of the generated keyspaces has fewer than a quorum\n" +
+                " * of its local data center replicas up, so LOCAL_QUORUM cannot be met.\n" +
+                " * The up replicas of each range are counted once from the token map, and then kept\n" +
+                " * up to date from node up and down events; the counts are rebuilt only when nodes\n" +
+                " * join or leave or a keyspace changes.  Each change publishes a new Health, which\n" +
+                " * health() returns as is, so a probe costs the same however many ranges there are.\n" +
+                " */\n" +
+                "public class StateListeningHealthCheck implements HealthIndicator, NodeStateListener {\n" +
+                "    // Details list at most this many of the ranges that are down\n" +
+                "    private static final int MAX_LISTED_RANGES = 100;\n" +
+                "\n" +
+                "    private static class RangeState {\n" +
+                "        private final String keyspace;\n" +
+                "        private final TokenRange range;\n" +
+                "        private final int replicas;\n" +
+                "        private int up;\n" +
+                "\n" +
+                "        private RangeState(String keyspace, TokenRange range, int replicas) {\n" +
+                "            this.keyspace = keyspace;\n" +
+                "            this.range = range;\n" +
+                "            this.replicas = replicas;\n" +
+                "        }\n" +
+                "\n" +
+                "        private boolean isBad() {\n" +
+                "            return up < replicas / 2 + 1;\n" +
+                "        }\n" +
+                "\n" +
+                "        @Override\n" +
+                "        public String toString() {\n" +
+                "            return keyspace + \" \" + range;\n" +
+                "        }\n" +
+                "    }\n" +
                 "\n" +
                 "    @Autowired\n" +
                 "    private DseSession session;\n" +
@@ -475,66 +766,116 @@ public class AmbienBoilerplate {
                 "    @Value(\"${dse.localDc}\")\n" +
                 "    private String datacenter;\n" +
                 "\n" +
-                "    @Value(\"${dse.keyspace}\")\n" +
-                "    private String keyspace;\n" +
+                "    @Value(\"${dse.keyspaces}\")\n" +
+                "    private String[] keyspaces;\n" +
                 "\n" +
-                "    private List<String> findKeyspacesForDataCenter(String datacenter, Metadata metadata, TokenMap tokenMap) {\n" +
-                "        List<String> keyspaces = new ArrayList<String>();\n" +
-                "        Node oneNode = metadata.getNodes().values().stream().filter(n -> (0 == datacenter.compareTo(n.getDatacenter()))).findAny().orElse(null);\n" +
-                "        if (null == oneNode)\n" +
-                "            throw new IllegalArgumentException(\"No nodes found for the data center (\" + datacenter + \")\");\n" +
-                "        for (CqlIdentifier ks : metadata.getKeyspaces().keySet()) {\n" +
-                "            if (0 <= tokenMap.getTokenRanges(ks, oneNode).size()) {\n" +
-                "                keyspaces.add(ks.asInternal());\n" +
-                "            }\n" +
-                "        }\n" +
-                "        if (0 == keyspaces.size())\n" +
-                "            throw new IllegalArgumentException(\"No keyspaces replicated to this data center (\" + datacenter + \")\");\n" +
-                "        return keyspaces;\n" +
+                "    // Guarded by this; lastHealth is only ever replaced, never changed\n" +
+                "    private final Map<Node, List<RangeState>> rangesByReplica = new HashMap<Node, List<RangeState>>();\n" +
+                "    private final Set<Node> upReplicas = new HashSet<Node>();\n" +
+                "    private final Set<RangeState> badRanges = new LinkedHashSet<RangeState>();\n" +
+                "    private int numTokenRanges = 0;\n" +
+                "    private volatile Health lastHealth = Health.unknown().build();\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    public void init() {\n" +
+                "        // Listen first, so no event is lost between the snapshot and the listening\n" +
+                "        lastUpdatedStateListener.addListener(this);\n" +
+                "        lastUpdatedSchemaListener.addKeyspaceListener(this::rebuild);\n" +
+                "        rebuild();\n" +
                 "    }\n" +
                 "\n" +
                 "    @Override\n" +
                 "    public Health health() {\n" +
-                "        if ((lastUpdatedStateListener.getLastUpdated() < lastUpdatedStateListener.getLastChecked())\n" +
-                "            && (lastUpdatedSchemaListener.getLastUpdated() < lastUpdatedSchemaListener.getLastChecked()))\n" +
-                "            return lastHealth;\n" +
+                "        return lastHealth;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public void onAdd(Node node) {\n" +
+                "        rebuild();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public void onRemove(Node node) {\n" +
+                "        rebuild();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public synchronized void onUp(Node node) {\n" +
+                "        if (!rangesByReplica.containsKey(node) || !upReplicas.add(node))\n" +
+                "            return;\n" +
+                "        for (RangeState state : rangesByReplica.get(node)) {\n" +
+                "            state.up++;\n" +
+                "            if (!state.isBad())\n" +
+                "                badRanges.remove(state);\n" +
+                "        }\n" +
+                "        publish();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public synchronized void onDown(Node node) {\n" +
+                "        if (!upReplicas.remove(node))\n" +
+                "            return;\n" +
+                "        for (RangeState state : rangesByReplica.get(node)) {\n" +
+                "            state.up--;\n" +
+                "            if (state.isBad())\n" +
+                "                badRanges.add(state);\n" +
+                "        }\n" +
+                "        publish();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public void close() {\n" +
+                "    }\n" +
+                "\n" +
+                "    // Counts the local replicas, and those up, of every range of every keyspace\n" +
+                "    private synchronized void rebuild() {\n" +
+                "        rangesByReplica.clear();\n" +
+                "        upReplicas.clear();\n" +
+                "        badRanges.clear();\n" +
                 "        Metadata metadata = session.getMetadata();\n" +
-                "        List<TokenRange> badTokenRanges = new ArrayList<TokenRange>();\n" +
-                "        if (!metadata.getTokenMap().isPresent())\n" +
-                "            return Health.unknown().build();\n" +
-                "        TokenMap tokenMap = metadata.getTokenMap().get();\n" +
-                "        if (null == keyspace) {\n" +
-                "            List<String> keyspaces = findKeyspacesForDataCenter(datacenter, metadata, tokenMap);\n" +
-                "            if (0 == keyspaces.size())\n" +
-                "                return Health.unknown().build();\n" +
-                "            keyspace = keyspaces.get(0);\n" +
-                "        }\n" +
-                "        for (TokenRange tr : tokenMap.getTokenRanges()) {\n" +
-                "            long numReplicas = tokenMap.getReplicas(keyspace, tr).size();\n" +
-                "            long numReplicasUp = tokenMap.getReplicas(keyspace, tr)\n" +
-                "                    .stream()\n" +
-                "                    .filter(h -> (0 == h.getDatacenter().compareTo(datacenter)))\n" +
-                "                    .filter(h -> (h.getState() == NodeState.UP))\n" +
-                "                    .count();\n" +
-                "            if (numReplicasUp <= (numReplicas + 1)/2)\n" +
-                "                badTokenRanges.add(tr);\n" +
-                "        }\n" +
-                "        List<Node> badHosts = metadata.getNodes().values()\n" +
+                "        TokenMap tokenMap = metadata.getTokenMap().orElse(null);\n" +
+                "        if (null == tokenMap) {\n" +
+                "            lastHealth = Health.unknown().build();\n" +
+                "            return;\n" +
+                "        }\n" +
+                "        numTokenRanges = tokenMap.getTokenRanges().size();\n" +
+                "        for (String keyspace : keyspaces) {\n" +
+                "            for (TokenRange range : tokenMap.getTokenRanges()) {\n" +
+                "                List<Node> replicas = tokenMap.getReplicas(keyspace, range)\n" +
+                "                        .stream()\n" +
+                "                        .filter(n -> datacenter.equals(n.getDatacenter()))\n" +
+                "                        .collect(Collectors.toList());\n" +
+                "                RangeState state = new RangeState(keyspace, range, replicas.size());\n" +
+                "                for (Node replica : replicas) {\n" +
+                "                    rangesByReplica.computeIfAbsent(replica, n -> new ArrayList<RangeState>()).add(state);\n" +
+                "                    if (NodeState.UP == replica.getState()) {\n" +
+                "                        upReplicas.add(replica);\n" +
+                "                        state.up++;\n" +
+                "                    }\n" +
+                "                }\n" +
+                "                if (state.isBad())\n" +
+                "                    badRanges.add(state);\n" +
+                "            }\n" +
+                "        }\n" +
+                "        publish();\n" +
+                "    }\n" +
+                "\n" +
+                "    private void publish() {\n" +
+                "        List<Node> badHosts = session.getMetadata().getNodes().values()\n" +
                 "                .stream()\n" +
-                "                .filter(h -> (0 == h.getDatacenter().compareTo(datacenter)))\n" +
+                "                .filter(h -> datacenter.equals(h.getDatacenter()))\n" +
                 "                .filter(h -> (h.getState() != NodeState.UP))\n" +
                 "                .collect(Collectors.toList());\n" +
                 "\n" +
-                "        Health.Builder hbuilder = (badTokenRanges.isEmpty()) ? Health.up() : Health.down();\n" +
-                "        hbuilder.withDetail(\"BadTokenRanges\", badTokenRanges);\n" +
+                "        Health.Builder hbuilder = (badRanges.isEmpty()) ? Health.up() : Health.down();\n" +
+                "        hbuilder.withDetail(\"BadTokenRanges\", badRanges.stream().limit(MAX_LISTED_RANGES).map(RangeState::toString).collect(Collectors.toList()));\n" +
+                "        hbuilder.withDetail(\"NumBadTokenRanges\", badRanges.size());\n" +
                 "        hbuilder.withDetail(\"DownHosts\", badHosts);\n" +
-                "        hbuilder.withDetail(\"NumTokenRanges\", tokenMap.getTokenRanges().size());\n" +
-                "        hbuilder.withDetail(\"NumHosts\", metadata.getNodes().values().size());\n" +
+                "        hbuilder.withDetail(\"NumTokenRanges\", numTokenRanges);\n" +
+                "        hbuilder.withDetail(\"NumHosts\", session.getMetadata().getNodes().values().size());\n" +
                 "        hbuilder.withDetail(\"DataCenter\", datacenter);\n" +
-                "        hbuilder.withDetail(\"Keyspace Checked\", keyspace);\n" +
-                "\n" +
+                "        hbuilder.withDetail(\"Keyspaces Checked\", Arrays.asList(keyspaces));\n" +
                 "        lastHealth = hbuilder.build();\n" +
-                "        return lastHealth;\n" +
                 "    }\n" +
                 "}\n";
 
@@ -552,6 +893,3326 @@ public class AmbienBoilerplate {
         return Ambien.writeFile(params.javaSrcDir + File.separator + "AmbienHealthCheck.java", contents);
     }
 
+    private boolean makeTokenRangeScanner() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.TokenMap;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.token.TokenRange;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.Collections;\n" +
+                "import java.util.List;\n" +
+                "import java.util.function.Function;\n" +
+                "import java.util.function.Supplier;\n" +
+                "\n" +
+                "/**\n" +
+                " * Splits a full table scan into one query per token range, runs them with\n" +
+                " * bounded concurrency against each range's replicas, and merges the results.\n" +
+                " */\n" +
+                "public class TokenRangeScanner {\n" +
+                "    private final DseSession session;\n" +
+                "\n" +
+                "    public TokenRangeScanner(DseSession session) {\n" +
+                "        this.session = session;\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> Flux<T> scan(String keyspace, int splitFactor, int concurrency,\n" +
+                "                            Function<Function<BoundStatementBuilder, BoundStatementBuilder>, Publisher<T>> rangeQuery,\n" +
+                "                            Supplier<Publisher<T>> fullQuery) {\n" +
+                "        TokenMap tokenMap = session.getMetadata().getTokenMap().orElse(null);\n" +
+                "        if (null == tokenMap)\n" +
+                "            return Flux.from(fullQuery.get());\n" +
+                "        return Flux.fromIterable(splitRanges(tokenMap, splitFactor))\n" +
+                "                .flatMap(range -> rangeQuery.apply(bindRange(keyspace, range)), Math.max(1, concurrency));\n" +
+                "    }\n" +
+                "\n" +
+                "    public static List<TokenRange> splitRanges(TokenMap tokenMap, int splitFactor) {\n" +
+                "        List<TokenRange> ranges = new ArrayList<TokenRange>();\n" +
+                "        for (TokenRange range : tokenMap.getTokenRanges()) {\n" +
+                "            List<TokenRange> splits = (splitFactor > 1) ? range.splitEvenly(splitFactor) : Collections.singletonList(range);\n" +
+                "            // \"token > start AND token <= end\" matches nothing when the range wraps around the ring\n" +
+                "            for (TokenRange split : splits)\n" +
+                "                ranges.addAll(split.unwrap());\n" +
+                "        }\n" +
+                "        return ranges;\n" +
+                "    }\n" +
+                "\n" +
+                "    private static Function<BoundStatementBuilder, BoundStatementBuilder> bindRange(String keyspace, TokenRange range) {\n" +
+                "        return b -> b.setToken(\"start\", range.getStart())\n" +
+                "                .setToken(\"end\", range.getEnd())\n" +
+                "                .setRoutingKeyspace(keyspace)\n" +
+                "                .setRoutingToken(range.getEnd());\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "TokenRangeScanner.java", contents);
+    }
+
+    private boolean makeStreamingResponses() {
+        if (params.isWebflux())
+            return makeWebfluxStreamingResponses();
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.dse.driver.api.core.cql.reactive.ReactiveRow;\n" +
+                "import com.datastax.oss.driver.api.core.config.DefaultDriverOption;\n" +
+                "import com.fasterxml.jackson.core.JsonGenerator;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import com.fasterxml.jackson.databind.ObjectWriter;\n" +
+                "import com.fasterxml.jackson.databind.SerializationFeature;\n" +
+                "import com.google.protobuf.CodedOutputStream;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.http.MediaType;\n" +
+                "import org.springframework.http.ResponseEntity;\n" +
+                "import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                "import java.time.Duration;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.List;\n" +
+                "\n" +
+                "/**\n" +
+                " * Writes rows as they arrive, as newline-delimited JSON, server-sent events or\n" +
+                " * length-delimited Protobuf messages (each preceded by its size as a varint).\n" +
+                " * Rows are requested one driver page at a time.  The response is flushed when the\n" +
+                " * rows move on to the next driver page, and at least every flushMillis while rows\n" +
+                " * are pending, so memory stays flat regardless of result size and a page is not\n" +
+                " * held back while the next one is fetched.\n" +
+                " */\n" +
+                "public class StreamingResponses {\n" +
+                "    public static final String NDJSON_VALUE = \"application/x-ndjson\";\n" +
+                "    public static final MediaType NDJSON = MediaType.parseMediaType(NDJSON_VALUE);\n" +
+                "    public static final String PROTOBUF_VALUE = \"application/x-protobuf\";\n" +
+                "    public static final MediaType PROTOBUF = MediaType.parseMediaType(PROTOBUF_VALUE);\n" +
+                "\n" +
+                "    // Writes one row as a JSON object, e.g. the generated <Table>RowJsonWriter::write\n" +
+                "    public interface JsonWriter<T> {\n" +
+                "        void write(T row, JsonGenerator generator) throws IOException;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Writes one row as a length-delimited message, e.g. the generated <Table>Protobuf::writeDelimited\n" +
+                "    public interface ProtobufWriter<T> {\n" +
+                "        void write(T row, CodedOutputStream out) throws IOException;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private ObjectMapper objectMapper;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private DseSession dseSession;\n" +
+                "\n" +
+                "    @Value(\"${ambien.streaming.flushMillis:100}\")\n" +
+                "    private long flushMillis;\n" +
+                "\n" +
+                "    // Stands for a flushMillis tick among the rows\n" +
+                "    private static final Object TICK = new Object();\n" +
+                "\n" +
+                "    // Rows written between flushes when their pages cannot be told apart\n" +
+                "    private int pageSize;\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    private void init() {\n" +
+                "        // The page size the driver resolved, from application.conf and any overrides\n" +
+                "        pageSize = dseSession.getContext().getConfig().getDefaultProfile().getInt(DefaultDriverOption.REQUEST_PAGE_SIZE);\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> ResponseEntity<StreamingResponseBody> stream(String accept, Publisher<T> rows) {\n" +
+                "        // Flushing is done per page below, not per value\n" +
+                "        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);\n" +
+                "        return stream(accept, rows, (row, generator) -> writer.writeValue(generator, row));\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> ResponseEntity<StreamingResponseBody> stream(String accept, Publisher<T> rows, JsonWriter<T> writer) {\n" +
+                "        boolean sse = wantsEventStream(accept);\n" +
+                "        StreamingResponseBody body = out -> {\n" +
+                "            JsonGenerator generator = objectMapper.getFactory().createGenerator(out);\n" +
+                "            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);\n" +
+                "            generator.setRootValueSeparator(null);\n" +
+                "            for (List<T> page : pages(rows).toIterable(1)) {\n" +
+                "                for (T row : page) {\n" +
+                "                    if (sse)\n" +
+                "                        generator.writeRaw(\"data:\");\n" +
+                "                    writer.write(row, generator);\n" +
+                "                    generator.writeRaw(sse ? \"\\n\\n\" : \"\\n\");\n" +
+                "                }\n" +
+                "                generator.flush();\n" +
+                "            }\n" +
+                "            generator.close();\n" +
+                "        };\n" +
+                "        return ResponseEntity.ok().contentType(sse ? MediaType.TEXT_EVENT_STREAM : NDJSON).body(body);\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> ResponseEntity<StreamingResponseBody> protobuf(Publisher<T> rows, ProtobufWriter<T> writer) {\n" +
+                "        StreamingResponseBody body = out -> {\n" +
+                "            CodedOutputStream coded = CodedOutputStream.newInstance(out);\n" +
+                "            for (List<T> page : pages(rows).toIterable(1)) {\n" +
+                "                for (T row : page)\n" +
+                "                    writer.write(row, coded);\n" +
+                "                coded.flush();\n" +
+                "                out.flush();\n" +
+                "            }\n" +
+                "            coded.flush();\n" +
+                "        };\n" +
+                "        return ResponseEntity.ok().contentType(PROTOBUF).body(body);\n" +
+                "    }\n" +
+                "\n" +
+                "    // Splits the rows into the groups that are flushed together: the driver's pages, told\n" +
+                "    // apart by a change of ReactiveRow execution info, whatever the execution profile or\n" +
+                "    // token range.  A group still open is also cut every flushMillis, so a short page, or\n" +
+                "    // the end of one, is not held back while the next is fetched, and at pageSize rows,\n" +
+                "    // for rows that are not ReactiveRows.\n" +
+                "    @SuppressWarnings(\"unchecked\")\n" +
+                "    private <T> Flux<List<T>> pages(Publisher<T> rows) {\n" +
+                "        return Flux.defer(() -> {\n" +
+                "            Object[] page = {null};\n" +
+                "            int[] inPage = {0};\n" +
+                "            return Flux.<Object>from(rows)\n" +
+                "                    .publish(shared -> Flux.merge(shared, Flux.interval(Duration.ofMillis(flushMillis))\n" +
+                "                            .onBackpressureDrop()\n" +
+                "                            .map(t -> TICK)\n" +
+                "                            .takeUntilOther(shared.then(Mono.just(TICK)))))\n" +
+                "                    .bufferUntil(signal -> {\n" +
+                "                        if (TICK == signal)\n" +
+                "                            return true;\n" +
+                "                        Object rowPage = (signal instanceof ReactiveRow) ? ((ReactiveRow) signal).getExecutionInfo() : null;\n" +
+                "                        boolean cut = (rowPage != page[0]) || (inPage[0] >= pageSize);\n" +
+                "                        page[0] = rowPage;\n" +
+                "                        inPage[0] = cut ? 1 : inPage[0] + 1;\n" +
+                "                        return cut;\n" +
+                "                    }, true)\n" +
+                "                    .map(group -> {\n" +
+                "                        List<T> rowsOnly = new ArrayList<T>(group.size());\n" +
+                "                        for (Object signal : group)\n" +
+                "                            if (TICK != signal)\n" +
+                "                                rowsOnly.add((T) signal);\n" +
+                "                        return rowsOnly;\n" +
+                "                    })\n" +
+                "                    .filter(group -> !group.isEmpty());\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    private boolean wantsEventStream(String accept) {\n" +
+                "        List<MediaType> accepted = MediaType.parseMediaTypes(accept);\n" +
+                "        MediaType.sortBySpecificityAndQuality(accepted);\n" +
+                "        for (MediaType mediaType : accepted) {\n" +
+                "            if (NDJSON.includes(mediaType))\n" +
+                "                return false;\n" +
+                "            if (MediaType.TEXT_EVENT_STREAM.includes(mediaType))\n" +
+                "                return true;\n" +
+                "        }\n" +
+                "        return false;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "StreamingResponses.java", contents);
+    }
+
+    private boolean makeWebfluxStreamingResponses() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.dse.driver.api.core.cql.reactive.ReactiveRow;\n" +
+                "import com.datastax.oss.driver.api.core.config.DefaultDriverOption;\n" +
+                "import com.fasterxml.jackson.core.JsonGenerator;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import com.fasterxml.jackson.databind.ObjectWriter;\n" +
+                "import com.fasterxml.jackson.databind.SerializationFeature;\n" +
+                "import com.google.protobuf.CodedOutputStream;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.core.io.buffer.DataBuffer;\n" +
+                "import org.springframework.core.io.buffer.DataBufferFactory;\n" +
+                "import org.springframework.core.io.buffer.DataBufferUtils;\n" +
+                "import org.springframework.http.MediaType;\n" +
+                "import org.springframework.http.server.reactive.ServerHttpResponse;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                "import java.io.UncheckedIOException;\n" +
+                "import java.time.Duration;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.List;\n" +
+                "\n" +
+                "/**\n" +
+                " * Writes rows as they arrive, as newline-delimited JSON, server-sent events or\n" +
+                " * length-delimited Protobuf messages (each preceded by its size as a varint).\n" +
+                " * Each driver page of rows is encoded into one buffer and flushed on its own, and\n" +
+                " * rows still pending after flushMillis are flushed without waiting for the rest\n" +
+                " * of their page, so memory stays flat regardless of result size.\n" +
+                " */\n" +
+                "public class StreamingResponses {\n" +
+                "    public static final String NDJSON_VALUE = \"application/x-ndjson\";\n" +
+                "    public static final MediaType NDJSON = MediaType.parseMediaType(NDJSON_VALUE);\n" +
+                "    public static final String PROTOBUF_VALUE = \"application/x-protobuf\";\n" +
+                "    public static final MediaType PROTOBUF = MediaType.parseMediaType(PROTOBUF_VALUE);\n" +
+                "\n" +
+                "    // Writes one row as a JSON object, e.g. the generated <Table>RowJsonWriter::write\n" +
+                "    public interface JsonWriter<T> {\n" +
+                "        void write(T row, JsonGenerator generator) throws IOException;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Writes one row as a length-delimited message, e.g. the generated <Table>Protobuf::writeDelimited\n" +
+                "    public interface ProtobufWriter<T> {\n" +
+                "        void write(T row, CodedOutputStream out) throws IOException;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private ObjectMapper objectMapper;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private DseSession dseSession;\n" +
+                "\n" +
+                "    @Value(\"${ambien.streaming.flushMillis:100}\")\n" +
+                "    private long flushMillis;\n" +
+                "\n" +
+                "    // Stands for a flushMillis tick among the rows\n" +
+                "    private static final Object TICK = new Object();\n" +
+                "\n" +
+                "    // Rows written between flushes when their pages cannot be told apart\n" +
+                "    private int pageSize;\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    private void init() {\n" +
+                "        // The page size the driver resolved, from application.conf and any overrides\n" +
+                "        pageSize = dseSession.getContext().getConfig().getDefaultProfile().getInt(DefaultDriverOption.REQUEST_PAGE_SIZE);\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> Mono<Void> stream(String accept, Publisher<T> rows, ServerHttpResponse response) {\n" +
+                "        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);\n" +
+                "        return stream(accept, rows, (row, generator) -> writer.writeValue(generator, row), response);\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> Mono<Void> stream(String accept, Publisher<T> rows, JsonWriter<T> writer, ServerHttpResponse response) {\n" +
+                "        boolean sse = wantsEventStream(accept);\n" +
+                "        response.getHeaders().setContentType(sse ? MediaType.TEXT_EVENT_STREAM : NDJSON);\n" +
+                "        return response.writeAndFlushWith(pages(rows)\n" +
+                "                .map(page -> Mono.just(encodePage(page, sse, writer, response.bufferFactory()))));\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> Mono<Void> protobuf(Publisher<T> rows, ProtobufWriter<T> writer, ServerHttpResponse response) {\n" +
+                "        response.getHeaders().setContentType(PROTOBUF);\n" +
+                "        return response.writeAndFlushWith(pages(rows)\n" +
+                "                .map(page -> Mono.just(encodePage(page, writer, response.bufferFactory()))));\n" +
+                "    }\n" +
+                "\n" +
+                "    private <T> DataBuffer encodePage(List<T> page, boolean sse, JsonWriter<T> writer, DataBufferFactory bufferFactory) {\n" +
+                "        DataBuffer buffer = bufferFactory.allocateBuffer();\n" +
+                "        try (JsonGenerator generator = objectMapper.getFactory().createGenerator(buffer.asOutputStream())) {\n" +
+                "            generator.setRootValueSeparator(null);\n" +
+                "            for (T row : page) {\n" +
+                "                if (sse)\n" +
+                "                    generator.writeRaw(\"data:\");\n" +
+                "                writer.write(row, generator);\n" +
+                "                generator.writeRaw(sse ? \"\\n\\n\" : \"\\n\");\n" +
+                "            }\n" +
+                "        }\n" +
+                "        catch (IOException e) {\n" +
+                "            DataBufferUtils.release(buffer);\n" +
+                "            throw new UncheckedIOException(e);\n" +
+                "        }\n" +
+                "        return buffer;\n" +
+                "    }\n" +
+                "\n" +
+                "    private <T> DataBuffer encodePage(List<T> page, ProtobufWriter<T> writer, DataBufferFactory bufferFactory) {\n" +
+                "        DataBuffer buffer = bufferFactory.allocateBuffer();\n" +
+                "        try {\n" +
+                "            CodedOutputStream out = CodedOutputStream.newInstance(buffer.asOutputStream());\n" +
+                "            for (T row : page)\n" +
+                "                writer.write(row, out);\n" +
+                "            out.flush();\n" +
+                "        }\n" +
+                "        catch (IOException e) {\n" +
+                "            DataBufferUtils.release(buffer);\n" +
+                "            throw new UncheckedIOException(e);\n" +
+                "        }\n" +
+                "        return buffer;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Splits the rows into the groups that are flushed together: the driver's pages, told\n" +
+                "    // apart by a change of ReactiveRow execution info, whatever the execution profile or\n" +
+                "    // token range.  A group still open is also cut every flushMillis, so a short page, or\n" +
+                "    // the end of one, is not held back while the next is fetched, and at pageSize rows,\n" +
+                "    // for rows that are not ReactiveRows.\n" +
+                "    @SuppressWarnings(\"unchecked\")\n" +
+                "    private <T> Flux<List<T>> pages(Publisher<T> rows) {\n" +
+                "        return Flux.defer(() -> {\n" +
+                "            Object[] page = {null};\n" +
+                "            int[] inPage = {0};\n" +
+                "            return Flux.<Object>from(rows)\n" +
+                "                    .publish(shared -> Flux.merge(shared, Flux.interval(Duration.ofMillis(flushMillis))\n" +
+                "                            .onBackpressureDrop()\n" +
+                "                            .map(t -> TICK)\n" +
+                "                            .takeUntilOther(shared.then(Mono.just(TICK)))))\n" +
+                "                    .bufferUntil(signal -> {\n" +
+                "                        if (TICK == signal)\n" +
+                "                            return true;\n" +
+                "                        Object rowPage = (signal instanceof ReactiveRow) ? ((ReactiveRow) signal).getExecutionInfo() : null;\n" +
+                "                        boolean cut = (rowPage != page[0]) || (inPage[0] >= pageSize);\n" +
+                "                        page[0] = rowPage;\n" +
+                "                        inPage[0] = cut ? 1 : inPage[0] + 1;\n" +
+                "                        return cut;\n" +
+                "                    }, true)\n" +
+                "                    .map(group -> {\n" +
+                "                        List<T> rowsOnly = new ArrayList<T>(group.size());\n" +
+                "                        for (Object signal : group)\n" +
+                "                            if (TICK != signal)\n" +
+                "                                rowsOnly.add((T) signal);\n" +
+                "                        return rowsOnly;\n" +
+                "                    })\n" +
+                "                    .filter(group -> !group.isEmpty());\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    private boolean wantsEventStream(String accept) {\n" +
+                "        List<MediaType> accepted = MediaType.parseMediaTypes(accept);\n" +
+                "        MediaType.sortBySpecificityAndQuality(accepted);\n" +
+                "        for (MediaType mediaType : accepted) {\n" +
+                "            if (NDJSON.includes(mediaType))\n" +
+                "                return false;\n" +
+                "            if (MediaType.TEXT_EVENT_STREAM.includes(mediaType))\n" +
+                "                return true;\n" +
+                "        }\n" +
+                "        return false;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "StreamingResponses.java", contents);
+    }
+
+    private boolean makeAmbienPage() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.MappedAsyncPagingIterable;\n" +
+                "import com.datastax.oss.driver.api.core.cql.AsyncResultSet;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;\n" +
+                "import com.datastax.oss.driver.api.core.cql.ExecutionInfo;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.Base64;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * One page of rows plus an opaque cursor (the driver's paging state) for the\n" +
+                " * next page.  The cursor is null on the last page.\n" +
+                " */\n" +
+                "public class AmbienPage<T> {\n" +
+                "    private final List<T> rows;\n" +
+                "    private final String cursor;\n" +
+                "\n" +
+                "    public AmbienPage(List<T> rows, String cursor) {\n" +
+                "        this.rows = rows;\n" +
+                "        this.cursor = cursor;\n" +
+                "    }\n" +
+                "\n" +
+                "    public List<T> getRows() {\n" +
+                "        return rows;\n" +
+                "    }\n" +
+                "\n" +
+                "    public String getCursor() {\n" +
+                "        return cursor;\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Function<BoundStatementBuilder, BoundStatementBuilder> paging(int pageSize, String cursor) {\n" +
+                "        if (pageSize <= 0)\n" +
+                "            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"pageSize must be positive\");\n" +
+                "        ByteBuffer pagingState = null;\n" +
+                "        if ((null != cursor) && !cursor.isEmpty()) {\n" +
+                "            try {\n" +
+                "                pagingState = ByteBuffer.wrap(Base64.getUrlDecoder().decode(cursor));\n" +
+                "            }\n" +
+                "            catch (IllegalArgumentException e) {\n" +
+                "                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"Bad cursor\", e);\n" +
+                "            }\n" +
+                "        }\n" +
+                "        ByteBuffer state = pagingState;\n" +
+                "        return b -> b.setPageSize(pageSize).setPagingState(state);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static <T> CompletionStage<AmbienPage<T>> of(CompletionStage<MappedAsyncPagingIterable<T>> stage) {\n" +
+                "        return stage.thenApply(rs -> {\n" +
+                "            List<T> rows = new ArrayList<T>(rs.remaining());\n" +
+                "            for (T row : rs.currentPage())\n" +
+                "                rows.add(row);\n" +
+                "            return new AmbienPage<T>(rows, cursor(rs.hasMorePages(), rs.getExecutionInfo()));\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    // A page of a projected read, each row as column name to value\n" +
+                "    public static CompletionStage<AmbienPage<Map<String, Object>>> ofRows(CompletionStage<AsyncResultSet> stage) {\n" +
+                "        return stage.thenApply(rs -> {\n" +
+                "            List<Map<String, Object>> rows = new ArrayList<Map<String, Object>>(rs.remaining());\n" +
+                "            for (Row row : rs.currentPage())\n" +
+                "                rows.add(Aggregates.toMap(row));\n" +
+                "            return new AmbienPage<Map<String, Object>>(rows, cursor(rs.hasMorePages(), rs.getExecutionInfo()));\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String cursor(boolean hasMorePages, ExecutionInfo executionInfo) {\n" +
+                "        if (!hasMorePages)\n" +
+                "            return null;\n" +
+                "        ByteBuffer pagingState = executionInfo.getPagingState();\n" +
+                "        byte[] bytes = new byte[pagingState.remaining()];\n" +
+                "        pagingState.duplicate().get(bytes);\n" +
+                "        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "AmbienPage.java", contents);
+    }
+
+    private boolean makeBatchWriter() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BatchStatement;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BatchStatementBuilder;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatement;\n" +
+                "import com.datastax.oss.driver.api.core.cql.DefaultBatchType;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Statement;\n" +
+                (params.isWebflux() ? "" : "import com.fasterxml.jackson.databind.MappingIterator;\n") +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                (params.isWebflux() ? "import com.fasterxml.jackson.databind.ObjectReader;\n" : "") +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                (params.isWebflux() ? "import org.springframework.core.ResolvableType;\n" : "") +
+                (params.isWebflux() ? "import org.springframework.core.codec.StringDecoder;\n" : "") +
+                (params.isWebflux() ? "import org.springframework.core.io.buffer.DataBuffer;\n" : "") +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                (params.isWebflux() ? "" : "import reactor.core.scheduler.Schedulers;\n") +
+                "\n" +
+                "import java.io.IOException;\n" +
+                (params.isWebflux() ? "" : "import java.io.InputStream;\n") +
+                "import java.util.*;\n" +
+                "import java.util.concurrent.CompletableFuture;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.concurrent.ConcurrentLinkedQueue;\n" +
+                "import java.util.concurrent.atomic.AtomicInteger;\n" +
+                "import java.util.function.Consumer;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Writes many rows at once.  Rows are grouped by partition key into unlogged\n" +
+                " * batches (each batch touches one partition, so it is applied by one replica\n" +
+                " * set), and the batches are executed asynchronously with a bounded number in\n" +
+                " * flight.  The result has one entry per input row, in input order.\n" +
+                " *\n" +
+                " * An NDJSON upload is written as it is parsed (see readNdjson and the write that takes\n" +
+                " * a Publisher), so the body is never held in memory.\n" +
+                " */\n" +
+                "public class BatchWriter {\n" +
+                "    @Autowired\n" +
+                "    private DseSession session;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private ObjectMapper objectMapper;\n" +
+                "\n" +
+                "    @Value(\"${ambien.batch.maxRows:100}\")\n" +
+                "    private int maxRows;\n" +
+                "\n" +
+                "    @Value(\"${ambien.batch.concurrency:16}\")\n" +
+                "    private int concurrency;\n" +
+                "\n" +
+                "    public static class Result {\n" +
+                "        private final int index;\n" +
+                "        private final boolean ok;\n" +
+                "        private final String error;\n" +
+                "\n" +
+                "        public Result(int index, Throwable error) {\n" +
+                "            this.index = index;\n" +
+                "            this.ok = (null == error);\n" +
+                "            this.error = (null == error) ? null : error.toString();\n" +
+                "        }\n" +
+                "\n" +
+                "        public int getIndex() {\n" +
+                "            return index;\n" +
+                "        }\n" +
+                "\n" +
+                "        public boolean isOk() {\n" +
+                "            return ok;\n" +
+                "        }\n" +
+                "\n" +
+                "        public String getError() {\n" +
+                "            return error;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                (params.isWebflux() ? "" : "    // The rows of an NDJSON body, parsed as they are asked for.  Reading the body blocks, so\n") +
+                (params.isWebflux() ? "" : "    // it is done on an elastic thread rather than the driver's, whose callbacks ask for more.\n") +
+                (params.isWebflux() ? "" : "    public <T> Flux<T> readNdjson(InputStream body, Class<T> clazz) {\n") +
+                (params.isWebflux() ? "" : "        return Flux.<T, MappingIterator<T>>generate(() -> objectMapper.readerFor(clazz).readValues(body), (rows, sink) -> {\n") +
+                (params.isWebflux() ? "" : "            try {\n") +
+                (params.isWebflux() ? "" : "                if (rows.hasNextValue())\n") +
+                (params.isWebflux() ? "" : "                    sink.next(rows.nextValue());\n") +
+                (params.isWebflux() ? "" : "                else\n") +
+                (params.isWebflux() ? "" : "                    sink.complete();\n") +
+                (params.isWebflux() ? "" : "            }\n") +
+                (params.isWebflux() ? "" : "            catch (IOException e) {\n") +
+                (params.isWebflux() ? "" : "                sink.error(malformed(e));\n") +
+                (params.isWebflux() ? "" : "            }\n") +
+                (params.isWebflux() ? "" : "            return rows;\n") +
+                (params.isWebflux() ? "" : "        }, rows -> {\n") +
+                (params.isWebflux() ? "" : "            try {\n") +
+                (params.isWebflux() ? "" : "                rows.close();\n") +
+                (params.isWebflux() ? "" : "            }\n") +
+                (params.isWebflux() ? "" : "            catch (IOException e) {\n") +
+                (params.isWebflux() ? "" : "                // the request is over either way\n") +
+                (params.isWebflux() ? "" : "            }\n") +
+                (params.isWebflux() ? "" : "        }).subscribeOn(Schedulers.elastic());\n") +
+                (params.isWebflux() ? "" : "    }\n") +
+                (params.isWebflux() ? "    // The rows of an NDJSON body, parsed a line at a time as the body arrives\n" : "") +
+                (params.isWebflux() ? "    public <T> Flux<T> readNdjson(Publisher<DataBuffer> body, Class<T> clazz) {\n" : "") +
+                (params.isWebflux() ? "        ObjectReader reader = objectMapper.readerFor(clazz);\n" : "") +
+                (params.isWebflux() ? "        return StringDecoder.allMimeTypes().decode(body, ResolvableType.forClass(String.class), null, Collections.<String, Object>emptyMap())\n" : "") +
+                (params.isWebflux() ? "                .filter(line -> !line.trim().isEmpty())\n" : "") +
+                (params.isWebflux() ? "                .handle((line, sink) -> {\n" : "") +
+                (params.isWebflux() ? "                    try {\n" : "") +
+                (params.isWebflux() ? "                        sink.next(reader.<T>readValue(line));\n" : "") +
+                (params.isWebflux() ? "                    }\n" : "") +
+                (params.isWebflux() ? "                    catch (IOException e) {\n" : "") +
+                (params.isWebflux() ? "                        sink.error(malformed(e));\n" : "") +
+                (params.isWebflux() ? "                    }\n" : "") +
+                (params.isWebflux() ? "                });\n" : "") +
+                (params.isWebflux() ? "    }\n" : "") +
+                "\n" +
+                "    // A row that cannot be parsed ends the upload; the rows before it have been written\n" +
+                "    private static ResponseStatusException malformed(IOException e) {\n" +
+                "        return new ResponseStatusException(HttpStatus.BAD_REQUEST, \"Malformed NDJSON row: \" + e.getMessage(), e);\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T> CompletionStage<List<Result>> write(List<T> rows, Function<T, Object> partitionKey,\n" +
+                "                                                   Function<T, BoundStatement> bind) {\n" +
+                "        Map<Object, List<Integer>> byPartition = new LinkedHashMap<Object, List<Integer>>();\n" +
+                "        for (int i = 0; i < rows.size(); i++)\n" +
+                "            byPartition.computeIfAbsent(partitionKey.apply(rows.get(i)), k -> new ArrayList<Integer>()).add(i);\n" +
+                "        Queue<List<Integer>> batches = new ConcurrentLinkedQueue<List<Integer>>();\n" +
+                "        for (List<Integer> partition : byPartition.values())\n" +
+                "            for (int i = 0; i < partition.size(); i += maxRows)\n" +
+                "                batches.add(partition.subList(i, Math.min(partition.size(), i + maxRows)));\n" +
+                "\n" +
+                "        Result[] results = new Result[rows.size()];\n" +
+                "        CompletableFuture<List<Result>> done = new CompletableFuture<List<Result>>();\n" +
+                "        if (batches.isEmpty()) {\n" +
+                "            done.complete(Collections.<Result>emptyList());\n" +
+                "            return done;\n" +
+                "        }\n" +
+                "        AtomicInteger remaining = new AtomicInteger(batches.size());\n" +
+                "        int window = Math.max(1, Math.min(concurrency, batches.size()));\n" +
+                "        for (int i = 0; i < window; i++)\n" +
+                "            writeNext(batches, rows, bind, results, remaining, done);\n" +
+                "        return done;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Writes rows as they arrive.  A batch is a run of consecutive rows with the same\n" +
+                "    // partition key (at most maxRows), written as soon as the run ends, with at most\n" +
+                "    // concurrency batches in flight; rows are asked for no faster than batches finish.\n" +
+                "    // written is called with each row once its batch is done.\n" +
+                "    public <T> CompletionStage<List<Result>> write(Publisher<T> rows, Function<T, Object> partitionKey,\n" +
+                "                                                   Function<T, BoundStatement> bind, Consumer<T> written) {\n" +
+                "        AtomicInteger count = new AtomicInteger();\n" +
+                "        Object[] runKey = {null};\n" +
+                "        int[] runSize = {0};\n" +
+                "        return Flux.from(rows)\n" +
+                "                .map(row -> new Indexed<T>(count.getAndIncrement(), row, partitionKey.apply(row)))\n" +
+                "                .bufferUntil(row -> {\n" +
+                "                    boolean cut = (runSize[0] == maxRows) || ((runSize[0] > 0) && !row.partitionKey.equals(runKey[0]));\n" +
+                "                    runSize[0] = cut ? 1 : runSize[0] + 1;\n" +
+                "                    runKey[0] = row.partitionKey;\n" +
+                "                    return cut;\n" +
+                "                }, true)\n" +
+                "                .flatMap(batch -> Mono.defer(() -> Mono.fromCompletionStage(session.executeAsync(statement(batch, bind))))\n" +
+                "                        .map(rs -> results(batch, null, written))\n" +
+                "                        .onErrorResume(error -> Mono.just(results(batch, error, written))), concurrency)\n" +
+                "                .collectList()\n" +
+                "                .map(batches -> {\n" +
+                "                    Result[] results = new Result[count.get()];\n" +
+                "                    for (List<Result> batch : batches)\n" +
+                "                        for (Result result : batch)\n" +
+                "                            results[result.getIndex()] = result;\n" +
+                "                    return Arrays.asList(results);\n" +
+                "                })\n" +
+                "                .toFuture();\n" +
+                "    }\n" +
+                "\n" +
+                "    private static class Indexed<T> {\n" +
+                "        private final int index;\n" +
+                "        private final T row;\n" +
+                "        private final Object partitionKey;\n" +
+                "\n" +
+                "        Indexed(int index, T row, Object partitionKey) {\n" +
+                "            this.index = index;\n" +
+                "            this.row = row;\n" +
+                "            this.partitionKey = partitionKey;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private static <T> Statement<?> statement(List<Indexed<T>> batch, Function<T, BoundStatement> bind) {\n" +
+                "        Statement<?> statement;\n" +
+                "        if (1 == batch.size()) {\n" +
+                "            statement = bind.apply(batch.get(0).row);\n" +
+                "        }\n" +
+                "        else {\n" +
+                "            BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED);\n" +
+                "            for (Indexed<T> row : batch)\n" +
+                "                builder.addStatement(bind.apply(row.row));\n" +
+                "            statement = builder.build();\n" +
+                "        }\n" +
+                "        return statement.setExecutionProfileName(ExecutionProfiles.WRITE);\n" +
+                "    }\n" +
+                "\n" +
+                "    private static <T> List<Result> results(List<Indexed<T>> batch, Throwable error, Consumer<T> written) {\n" +
+                "        List<Result> results = new ArrayList<Result>(batch.size());\n" +
+                "        for (Indexed<T> row : batch) {\n" +
+                "            results.add(new Result(row.index, error));\n" +
+                "            written.accept(row.row);\n" +
+                "        }\n" +
+                "        return results;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Each completed batch starts the next one, so at most `window` are ever in flight\n" +
+                "    private <T> void writeNext(Queue<List<Integer>> batches, List<T> rows, Function<T, BoundStatement> bind,\n" +
+                "                               Result[] results, AtomicInteger remaining, CompletableFuture<List<Result>> done) {\n" +
+                "        List<Integer> batch = batches.poll();\n" +
+                "        if (null == batch)\n" +
+                "            return;\n" +
+                "        Statement<?> statement;\n" +
+                "        try {\n" +
+                "            if (1 == batch.size()) {\n" +
+                "                statement = bind.apply(rows.get(batch.get(0)));\n" +
+                "            }\n" +
+                "            else {\n" +
+                "                BatchStatementBuilder builder = BatchStatement.builder(DefaultBatchType.UNLOGGED);\n" +
+                "                for (int i : batch)\n" +
+                "                    builder.addStatement(bind.apply(rows.get(i)));\n" +
+                "                statement = builder.build();\n" +
+                "            }\n" +
+                "            statement = statement.setExecutionProfileName(ExecutionProfiles.WRITE);\n" +
+                "        }\n" +
+                "        catch (RuntimeException e) {\n" +
+                "            finish(batch, e, batches, rows, bind, results, remaining, done);\n" +
+                "            return;\n" +
+                "        }\n" +
+                "        session.executeAsync(statement)\n" +
+                "                .whenComplete((rs, error) -> finish(batch, error, batches, rows, bind, results, remaining, done));\n" +
+                "    }\n" +
+                "\n" +
+                "    private <T> void finish(List<Integer> batch, Throwable error, Queue<List<Integer>> batches, List<T> rows,\n" +
+                "                            Function<T, BoundStatement> bind, Result[] results, AtomicInteger remaining,\n" +
+                "                            CompletableFuture<List<Result>> done) {\n" +
+                "        for (int i : batch)\n" +
+                "            results[i] = new Result(i, error);\n" +
+                "        if (0 == remaining.decrementAndGet())\n" +
+                "            done.complete(Arrays.asList(results));\n" +
+                "        else\n" +
+                "            writeNext(batches, rows, bind, results, remaining, done);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "BatchWriter.java", contents);
+    }
+
+    private boolean makeWriteBehindSpool() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.AllNodesFailedException;\n" +
+                "import com.datastax.oss.driver.api.core.DriverTimeoutException;\n" +
+                "import com.datastax.oss.driver.api.core.RequestThrottlingException;\n" +
+                "import com.datastax.oss.driver.api.core.connection.BusyConnectionException;\n" +
+                "import com.datastax.oss.driver.api.core.connection.ClosedConnectionException;\n" +
+                "import com.datastax.oss.driver.api.core.servererrors.BootstrappingException;\n" +
+                "import com.datastax.oss.driver.api.core.servererrors.OverloadedException;\n" +
+                "import com.datastax.oss.driver.api.core.servererrors.QueryConsistencyException;\n" +
+                "import com.datastax.oss.driver.api.core.servererrors.UnavailableException;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import io.micrometer.core.instrument.FunctionCounter;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import org.slf4j.Logger;\n" +
+                "import org.slf4j.LoggerFactory;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "import java.nio.MappedByteBuffer;\n" +
+                "import java.nio.channels.FileChannel;\n" +
+                "import java.nio.file.DirectoryStream;\n" +
+                "import java.nio.file.Files;\n" +
+                "import java.nio.file.Path;\n" +
+                "import java.nio.file.StandardOpenOption;\n" +
+                "import java.util.*;\n" +
+                "import java.util.concurrent.CompletableFuture;\n" +
+                "import java.util.concurrent.CompletionException;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.concurrent.atomic.AtomicLong;\n" +
+                "import java.util.function.Consumer;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Write-behind journal for one table.  Accepted rows are appended to a\n" +
+                " * memory-mapped segment file and acknowledged once it is forced to disk; appenders\n" +
+                " * that arrive while a force is running share the next one (group commit), so a\n" +
+                " * busy spool forces about once per disk round trip.  A background thread\n" +
+                " * drains the segments to DSE in order, a bounded number of rows at a time,\n" +
+                " * retrying timeouts and unavailable or overloaded nodes until they succeed.  A\n" +
+                " * record that cannot be read back or that DSE rejects outright would fail forever,\n" +
+                " * so it is moved to the dead-letter file next to the segments instead, and the\n" +
+                " * drain carries on.  Each segment keeps its drain position in its header, so\n" +
+                " * un-drained rows are replayed after a restart.  Rows may be written more than\n" +
+                " * once after a crash, which is harmless for inserts.\n" +
+                " */\n" +
+                "public class WriteBehindSpool<T> implements AutoCloseable {\n" +
+                "    private static final Logger logger = LoggerFactory.getLogger(WriteBehindSpool.class);\n" +
+                "    private static final int HEADER_BYTES = 8;\n" +
+                "    private static final String SUFFIX = \".spool\";\n" +
+                "    private static final String DEAD_LETTERS = \"dead-letters.ndjson\";\n" +
+                "\n" +
+                "    // Thrown when the spool has no room for another segment\n" +
+                "    public static class FullException extends RuntimeException {\n" +
+                "        FullException(String name) {\n" +
+                "            super(\"Write-behind spool \" + name + \" is full\");\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    // Thrown when a row could never be written, so it is not accepted\n" +
+                "    public static class InvalidRowException extends IllegalArgumentException {\n" +
+                "        InvalidRowException(String message) {\n" +
+                "            super(message);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private final String name;\n" +
+                "    private final Path dir;\n" +
+                "    private final Class<T> type;\n" +
+                "    private final ObjectMapper objectMapper;\n" +
+                "    private final Function<T, CompletionStage<Void>> writer;\n" +
+                "    private final int segmentBytes;\n" +
+                "    private final int maxSegments;\n" +
+                "    private final int concurrency;\n" +
+                "\n" +
+                "    private final Deque<Segment> segments = new ArrayDeque<Segment>();\n" +
+                "    private Segment active;\n" +
+                "    private volatile boolean closed = false;\n" +
+                "    private volatile Consumer<T> onWritten;\n" +
+                "    private volatile Function<T, List<Object>> primaryKey;\n" +
+                "    private final AtomicLong depth = new AtomicLong();\n" +
+                "    private final AtomicLong deadLetters = new AtomicLong();\n" +
+                "    private final Thread drainer;\n" +
+                "\n" +
+                "    // Rows appended, and rows known to be on disk; forced is guarded by forceLock,\n" +
+                "    // which is taken before this when both are needed\n" +
+                "    private long appended = 0;\n" +
+                "    private long forced = 0;\n" +
+                "    private final Object forceLock = new Object();\n" +
+                "\n" +
+                "    private static class Segment {\n" +
+                "        private final long seq;\n" +
+                "        private final Path path;\n" +
+                "        private final FileChannel channel;\n" +
+                "        private final MappedByteBuffer buffer;\n" +
+                "        private int writePosition;\n" +
+                "\n" +
+                "        private Segment(long seq, Path path, FileChannel channel, MappedByteBuffer buffer) {\n" +
+                "            this.seq = seq;\n" +
+                "            this.path = path;\n" +
+                "            this.channel = channel;\n" +
+                "            this.buffer = buffer;\n" +
+                "        }\n" +
+                "\n" +
+                "        private int drainPosition() {\n" +
+                "            return (int) buffer.getLong(0);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    public WriteBehindSpool(String name, Path dir, Class<T> type, ObjectMapper objectMapper,\n" +
+                "                            Function<T, CompletionStage<Void>> writer, int segmentBytes, int maxSegments,\n" +
+                "                            int concurrency, MeterRegistry registry) throws IOException {\n" +
+                "        this.name = name;\n" +
+                "        this.dir = dir;\n" +
+                "        this.type = type;\n" +
+                "        this.objectMapper = objectMapper;\n" +
+                "        this.writer = writer;\n" +
+                "        this.segmentBytes = segmentBytes;\n" +
+                "        this.maxSegments = maxSegments;\n" +
+                "        this.concurrency = Math.max(1, concurrency);\n" +
+                "\n" +
+                "        Files.createDirectories(dir);\n" +
+                "        List<Path> existing = new ArrayList<Path>();\n" +
+                "        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, \"*\" + SUFFIX)) {\n" +
+                "            for (Path path : files)\n" +
+                "                existing.add(path);\n" +
+                "        }\n" +
+                "        Collections.sort(existing);\n" +
+                "        long seq = 0;\n" +
+                "        for (Path path : existing) {\n" +
+                "            seq = Long.parseLong(path.getFileName().toString().replace(SUFFIX, \"\"));\n" +
+                "            Segment segment = openSegment(path, seq, (int) Files.size(path));\n" +
+                "            segment.writePosition = recover(segment);\n" +
+                "            segments.addLast(segment);\n" +
+                "            seq++;\n" +
+                "        }\n" +
+                "        if (depth.get() > 0)\n" +
+                "            logger.info(\"Spool {} replaying {} un-drained rows from {} segments\", name, depth.get(), segments.size());\n" +
+                "        active = newSegment(seq);\n" +
+                "        FunctionCounter.builder(\"ambien.spool.deadLetters\", deadLetters, AtomicLong::get)\n" +
+                "                .tag(\"spool\", name)\n" +
+                "                .register(registry);\n" +
+                "\n" +
+                "        drainer = new Thread(this::drain, \"spool-\" + name);\n" +
+                "        drainer.setDaemon(true);\n" +
+                "        drainer.start();\n" +
+                "    }\n" +
+                "\n" +
+                "    public String getName() {\n" +
+                "        return name;\n" +
+                "    }\n" +
+                "\n" +
+                "    public long getDepth() {\n" +
+                "        return depth.get();\n" +
+                "    }\n" +
+                "\n" +
+                "    public synchronized int getSegments() {\n" +
+                "        return segments.size();\n" +
+                "    }\n" +
+                "\n" +
+                "    public long getDeadLetters() {\n" +
+                "        return deadLetters.get();\n" +
+                "    }\n" +
+                "\n" +
+                "    // Called with each row once it has been written to DSE\n" +
+                "    public void onWritten(Consumer<T> onWritten) {\n" +
+                "        this.onWritten = onWritten;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Extracts the primary key columns, which append() requires to be set\n" +
+                "    public void primaryKey(Function<T, List<Object>> primaryKey) {\n" +
+                "        this.primaryKey = primaryKey;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Returns once the row is on disk\n" +
+                "    public void append(T row) throws IOException {\n" +
+                "        Function<T, List<Object>> key = primaryKey;\n" +
+                "        if ((null != key) && key.apply(row).contains(null))\n" +
+                "            throw new InvalidRowException(\"Row is missing a primary key column\");\n" +
+                "        byte[] bytes = objectMapper.writeValueAsBytes(row);\n" +
+                "        long mine;\n" +
+                "        if (HEADER_BYTES + 4 + bytes.length > segmentBytes)\n" +
+                "            throw new InvalidRowException(\"Row of \" + bytes.length + \" bytes does not fit in a spool segment\");\n" +
+                "        synchronized (this) {\n" +
+                "            if (closed)\n" +
+                "                throw new IllegalStateException(\"Spool \" + name + \" is closed\");\n" +
+                "            if (active.writePosition + 4 + bytes.length > active.buffer.capacity())\n" +
+                "                rotate();\n" +
+                "            ByteBuffer view = active.buffer.duplicate();\n" +
+                "            view.position(active.writePosition + 4);\n" +
+                "            view.put(bytes);\n" +
+                "            // The length goes in last, so a reader never sees a partial record\n" +
+                "            active.buffer.putInt(active.writePosition, bytes.length);\n" +
+                "            active.writePosition += 4 + bytes.length;\n" +
+                "            depth.incrementAndGet();\n" +
+                "            mine = ++appended;\n" +
+                "            notifyAll();\n" +
+                "        }\n" +
+                "        sync(mine);\n" +
+                "    }\n" +
+                "\n" +
+                "    // Forces the active segment unless a force since the row was appended covered it.\n" +
+                "    // rotate() forces a segment before it stops being active, so forcing the active\n" +
+                "    // segment covers every row appended so far.\n" +
+                "    private void sync(long mine) throws IOException {\n" +
+                "        synchronized (forceLock) {\n" +
+                "            if (forced >= mine)\n" +
+                "                return;\n" +
+                "            Segment segment;\n" +
+                "            long upTo;\n" +
+                "            synchronized (this) {\n" +
+                "                if (closed)\n" +
+                "                    throw new IllegalStateException(\"Spool \" + name + \" is closed\");\n" +
+                "                segment = active;\n" +
+                "                upTo = appended;\n" +
+                "            }\n" +
+                "            segment.buffer.force();\n" +
+                "            forced = upTo;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private void rotate() throws IOException {\n" +
+                "        if (segments.size() >= maxSegments)\n" +
+                "            throw new FullException(name);\n" +
+                "        active.buffer.force();\n" +
+                "        active = newSegment(active.seq + 1);\n" +
+                "    }\n" +
+                "\n" +
+                "    private Segment newSegment(long seq) throws IOException {\n" +
+                "        Segment segment = openSegment(dir.resolve(String.format(\"%020d\", seq) + SUFFIX), seq, segmentBytes);\n" +
+                "        segment.buffer.putLong(0, HEADER_BYTES);\n" +
+                "        segment.writePosition = HEADER_BYTES;\n" +
+                "        segments.addLast(segment);\n" +
+                "        return segment;\n" +
+                "    }\n" +
+                "\n" +
+                "    private static Segment openSegment(Path path, long seq, int size) throws IOException {\n" +
+                "        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);\n" +
+                "        return new Segment(seq, path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));\n" +
+                "    }\n" +
+                "\n" +
+                "    // Counts the un-drained records in a segment and returns where the next record would go\n" +
+                "    private int recover(Segment segment) {\n" +
+                "        int position = Math.max(HEADER_BYTES, segment.drainPosition());\n" +
+                "        int length;\n" +
+                "        while ((position + 4 <= segment.buffer.capacity()) && ((length = segment.buffer.getInt(position)) > 0)) {\n" +
+                "            position += 4 + length;\n" +
+                "            depth.incrementAndGet();\n" +
+                "        }\n" +
+                "        return position;\n" +
+                "    }\n" +
+                "\n" +
+                "    private void drain() {\n" +
+                "        long backoff = 100;\n" +
+                "        while (!closed) {\n" +
+                "            try {\n" +
+                "                if (drainOnce()) {\n" +
+                "                    backoff = 100;\n" +
+                "                    continue;\n" +
+                "                }\n" +
+                "                synchronized (this) {\n" +
+                "                    if (!closed)\n" +
+                "                        wait(100);\n" +
+                "                }\n" +
+                "            }\n" +
+                "            catch (InterruptedException e) {\n" +
+                "                return;\n" +
+                "            }\n" +
+                "            catch (Exception e) {\n" +
+                "                logger.warn(\"Spool {} failed to drain, retrying in {}ms\", name, backoff, e);\n" +
+                "                try {\n" +
+                "                    Thread.sleep(backoff);\n" +
+                "                }\n" +
+                "                catch (InterruptedException ie) {\n" +
+                "                    return;\n" +
+                "                }\n" +
+                "                backoff = Math.min(backoff * 2, 10000);\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    // Writes the next run of records from the oldest segment; false if there was nothing to do\n" +
+                "    private boolean drainOnce() throws IOException {\n" +
+                "        Segment head;\n" +
+                "        int limit;\n" +
+                "        boolean sealed;\n" +
+                "        synchronized (this) {\n" +
+                "            head = segments.peekFirst();\n" +
+                "            if (null == head)\n" +
+                "                return false;\n" +
+                "            limit = head.writePosition;\n" +
+                "            sealed = (head != active);\n" +
+                "        }\n" +
+                "        int position = head.drainPosition();\n" +
+                "        if (position >= limit) {\n" +
+                "            if (!sealed)\n" +
+                "                return false;\n" +
+                "            retire(head);\n" +
+                "            return true;\n" +
+                "        }\n" +
+                "\n" +
+                "        List<byte[]> records = new ArrayList<byte[]>(concurrency);\n" +
+                "        ByteBuffer view = head.buffer.duplicate();\n" +
+                "        while ((position < limit) && (records.size() < concurrency)) {\n" +
+                "            byte[] bytes = new byte[view.getInt(position)];\n" +
+                "            view.position(position + 4);\n" +
+                "            view.get(bytes);\n" +
+                "            records.add(bytes);\n" +
+                "            position += 4 + bytes.length;\n" +
+                "        }\n" +
+                "\n" +
+                "        List<T> rows = new ArrayList<T>(records.size());\n" +
+                "        List<byte[]> written = new ArrayList<byte[]>(records.size());\n" +
+                "        for (byte[] bytes : records) {\n" +
+                "            try {\n" +
+                "                rows.add(objectMapper.readValue(bytes, type));\n" +
+                "                written.add(bytes);\n" +
+                "            }\n" +
+                "            catch (IOException e) {\n" +
+                "                deadLetter(bytes, e);\n" +
+                "            }\n" +
+                "        }\n" +
+                "        List<Throwable> errors = writeAll(rows);\n" +
+                "        List<T> done = new ArrayList<T>(rows.size());\n" +
+                "        for (int i = 0; i < rows.size(); i++) {\n" +
+                "            if (null == errors.get(i))\n" +
+                "                done.add(rows.get(i));\n" +
+                "            else\n" +
+                "                deadLetter(written.get(i), errors.get(i));\n" +
+                "        }\n" +
+                "        Consumer<T> listener = onWritten;\n" +
+                "        if (null != listener)\n" +
+                "            done.forEach(listener);\n" +
+                "        head.buffer.putLong(0, position);\n" +
+                "        depth.addAndGet(-records.size());\n" +
+                "        return true;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Waits for every write and returns the error of each row, or null where it succeeded.\n" +
+                "    // Throws if any row failed for a reason that may clear, so the whole run is retried.\n" +
+                "    private List<Throwable> writeAll(List<T> rows) {\n" +
+                "        List<CompletableFuture<Void>> writes = new ArrayList<CompletableFuture<Void>>(rows.size());\n" +
+                "        for (T row : rows) {\n" +
+                "            try {\n" +
+                "                writes.add(writer.apply(row).toCompletableFuture());\n" +
+                "            }\n" +
+                "            catch (RuntimeException e) {\n" +
+                "                CompletableFuture<Void> write = new CompletableFuture<Void>();\n" +
+                "                write.completeExceptionally(e);\n" +
+                "                writes.add(write);\n" +
+                "            }\n" +
+                "        }\n" +
+                "        List<Throwable> errors = new ArrayList<Throwable>(rows.size());\n" +
+                "        int failed = 0;\n" +
+                "        Throwable retry = null;\n" +
+                "        for (CompletableFuture<Void> write : writes) {\n" +
+                "            Throwable error = null;\n" +
+                "            try {\n" +
+                "                write.join();\n" +
+                "            }\n" +
+                "            catch (CompletionException e) {\n" +
+                "                error = (null != e.getCause()) ? e.getCause() : e;\n" +
+                "                failed++;\n" +
+                "                if (retryable(error))\n" +
+                "                    retry = error;\n" +
+                "            }\n" +
+                "            errors.add(error);\n" +
+                "        }\n" +
+                "        if (null != retry)\n" +
+                "            throw new IllegalStateException(failed + \" of \" + rows.size() + \" rows failed\", retry);\n" +
+                "        return errors;\n" +
+                "    }\n" +
+                "\n" +
+                "    private static boolean retryable(Throwable error) {\n" +
+                "        return (error instanceof DriverTimeoutException)\n" +
+                "                || (error instanceof RequestThrottlingException)\n" +
+                "                || (error instanceof AllNodesFailedException)\n" +
+                "                || (error instanceof BusyConnectionException)\n" +
+                "                || (error instanceof ClosedConnectionException)\n" +
+                "                || (error instanceof QueryConsistencyException)\n" +
+                "                || (error instanceof UnavailableException)\n" +
+                "                || (error instanceof OverloadedException)\n" +
+                "                || (error instanceof BootstrappingException);\n" +
+                "    }\n" +
+                "\n" +
+                "    // Appends a record that can never be written to the dead-letter file, one JSON document per line\n" +
+                "    private void deadLetter(byte[] bytes, Throwable error) throws IOException {\n" +
+                "        logger.warn(\"Spool {} moved a record to {}: {}\", name, DEAD_LETTERS, error.toString());\n" +
+                "        try (FileChannel channel = FileChannel.open(dir.resolve(DEAD_LETTERS),\n" +
+                "                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {\n" +
+                "            channel.write(new ByteBuffer[] {ByteBuffer.wrap(bytes), ByteBuffer.wrap(new byte[] {'\\n'})});\n" +
+                "            channel.force(false);\n" +
+                "        }\n" +
+                "        deadLetters.incrementAndGet();\n" +
+                "    }\n" +
+                "\n" +
+                "    private void retire(Segment segment) throws IOException {\n" +
+                "        synchronized (this) {\n" +
+                "            segments.remove(segment);\n" +
+                "        }\n" +
+                "        synchronized (forceLock) {\n" +
+                "            segment.channel.close();\n" +
+                "        }\n" +
+                "        Files.deleteIfExists(segment.path);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public void close() throws InterruptedException, IOException {\n" +
+                "        synchronized (this) {\n" +
+                "            closed = true;\n" +
+                "            notifyAll();\n" +
+                "        }\n" +
+                "        drainer.interrupt();\n" +
+                "        drainer.join(10000);\n" +
+                "        synchronized (forceLock) {\n" +
+                "            synchronized (this) {\n" +
+                "                for (Segment segment : segments) {\n" +
+                "                    segment.buffer.force();\n" +
+                "                    segment.channel.close();\n" +
+                "                }\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "WriteBehindSpool.java", contents);
+    }
+
+    private boolean makeSpoolEndpoint() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.boot.actuate.endpoint.annotation.Endpoint;\n" +
+                "import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;\n" +
+                "\n" +
+                "import java.util.Collections;\n" +
+                "import java.util.LinkedHashMap;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "\n" +
+                "/**\n" +
+                " * Reports the backlog and dead letters of each write-behind spool at /actuator/spool.\n" +
+                " */\n" +
+                "@Endpoint(id = \"spool\")\n" +
+                "public class SpoolEndpoint {\n" +
+                "    @Autowired(required = false)\n" +
+                "    private List<WriteBehindSpool<?>> spools = Collections.emptyList();\n" +
+                "\n" +
+                "    @ReadOperation\n" +
+                "    public Map<String, Map<String, Object>> spools() {\n" +
+                "        Map<String, Map<String, Object>> report = new LinkedHashMap<String, Map<String, Object>>();\n" +
+                "        for (WriteBehindSpool<?> spool : spools) {\n" +
+                "            Map<String, Object> stats = new LinkedHashMap<String, Object>();\n" +
+                "            stats.put(\"depth\", spool.getDepth());\n" +
+                "            stats.put(\"segments\", spool.getSegments());\n" +
+                "            stats.put(\"deadLetters\", spool.getDeadLetters());\n" +
+                "            report.put(spool.getName(), stats);\n" +
+                "        }\n" +
+                "        return report;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "SpoolEndpoint.java", contents);
+    }
+
+    private boolean makeMultiGet() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
+                "import com.datastax.oss.driver.api.core.ProtocolVersion;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.Node;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.TokenMap;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;\n" +
+                "import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.nio.ByteBuffer;\n" +
+                "import java.util.*;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Runs many single-partition lookups at once.  Keys are grouped by the replica\n" +
+                " * that owns their partition and the groups are interleaved, so the lookups in\n" +
+                " * flight are spread over the cluster instead of queueing on one node.  Rows are\n" +
+                " * emitted as they arrive, so results for different keys may interleave.\n" +
+                " */\n" +
+                "public class MultiGet {\n" +
+                "    private final DseSession session;\n" +
+                "\n" +
+                "    public MultiGet(DseSession session) {\n" +
+                "        this.session = session;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Each key is an array of column values: the partition key columns first, then\n" +
+                "    // a (possibly empty) prefix of the clustering columns, then nulls.\n" +
+                "    public <T> Flux<T> get(String keyspace, String table, List<Object[]> keys, int partitionKeyColumns,\n" +
+                "                           int concurrency, Function<Object[], Publisher<T>> lookup) {\n" +
+                "        return Flux.fromIterable(spread(keyspace, table, keys, partitionKeyColumns))\n" +
+                "                .flatMap(lookup, Math.max(1, concurrency));\n" +
+                "    }\n" +
+                "\n" +
+                "    public static String require(Map<String, String> key, String column) {\n" +
+                "        String value = key.get(column);\n" +
+                "        if (null == value)\n" +
+                "            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"Key \" + key + \" is missing \" + column);\n" +
+                "        return value;\n" +
+                "    }\n" +
+                "\n" +
+                "    private List<Object[]> spread(String keyspace, String table, List<Object[]> keys, int partitionKeyColumns) {\n" +
+                "        TokenMap tokenMap = session.getMetadata().getTokenMap().orElse(null);\n" +
+                "        TableMetadata tableMetadata = session.getMetadata().getKeyspace(keyspace)\n" +
+                "                .flatMap(k -> k.getTable(table)).orElse(null);\n" +
+                "        if ((null == tokenMap) || (null == tableMetadata) || (keys.size() < 2))\n" +
+                "            return keys;\n" +
+                "\n" +
+                "        CqlIdentifier keyspaceId = CqlIdentifier.fromInternal(keyspace);\n" +
+                "        List<ColumnMetadata> partitionKey = tableMetadata.getPartitionKey();\n" +
+                "        CodecRegistry codecs = session.getContext().getCodecRegistry();\n" +
+                "        ProtocolVersion version = session.getContext().getProtocolVersion();\n" +
+                "        Map<Node, List<Object[]>> byReplica = new LinkedHashMap<Node, List<Object[]>>();\n" +
+                "        for (Object[] key : keys) {\n" +
+                "            ByteBuffer[] components = new ByteBuffer[partitionKeyColumns];\n" +
+                "            for (int i = 0; i < partitionKeyColumns; i++)\n" +
+                "                components[i] = codecs.codecFor(partitionKey.get(i).getType(), key[i]).encode(key[i], version);\n" +
+                "            Set<Node> replicas = tokenMap.getReplicas(keyspaceId, tokenMap.newToken(components));\n" +
+                "            Node replica = replicas.isEmpty() ? null : replicas.iterator().next();\n" +
+                "            byReplica.computeIfAbsent(replica, n -> new ArrayList<Object[]>()).add(key);\n" +
+                "        }\n" +
+                "\n" +
+                "        List<Iterator<Object[]>> groups = new ArrayList<Iterator<Object[]>>();\n" +
+                "        for (List<Object[]> group : byReplica.values())\n" +
+                "            groups.add(group.iterator());\n" +
+                "        List<Object[]> spread = new ArrayList<Object[]>(keys.size());\n" +
+                "        while (spread.size() < keys.size()) {\n" +
+                "            for (Iterator<Object[]> group : groups) {\n" +
+                "                if (group.hasNext())\n" +
+                "                    spread.add(group.next());\n" +
+                "            }\n" +
+                "        }\n" +
+                "        return spread;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "MultiGet.java", contents);
+    }
+
+    private boolean makePartitionCache() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.github.benmanes.caffeine.cache.Cache;\n" +
+                "import com.github.benmanes.caffeine.cache.Caffeine;\n" +
+                "import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.util.*;\n" +
+                "import java.util.concurrent.TimeUnit;\n" +
+                "import java.util.concurrent.atomic.AtomicLong;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Read-through cache of partition reads for one table.  Entries are grouped by\n" +
+                " * partition, so a write through this service drops every cached read of the\n" +
+                " * partition it wrote.  The cache is bounded by the total number of cached rows,\n" +
+                " * uses Caffeine's W-TinyLFU eviction, and each read expires after the TTL.\n" +
+                " * A read that was loading while any invalidation happened is returned but not\n" +
+                " * cached, so a write is never hidden by an older read.\n" +
+                " */\n" +
+                "public class PartitionCache<T> {\n" +
+                "    private final long ttlNanos;\n" +
+                "    private final ConcurrentStatsCounter stats = new ConcurrentStatsCounter();\n" +
+                "    private final Cache<List<Object>, Map<List<Object>, Entry<T>>> cache;\n" +
+                "    private final AtomicLong invalidations = new AtomicLong();\n" +
+                "\n" +
+                "    private static class Entry<T> {\n" +
+                "        private final List<T> rows;\n" +
+                "        private final long loadedAt = System.nanoTime();\n" +
+                "\n" +
+                "        private Entry(List<T> rows) {\n" +
+                "            this.rows = rows;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    public PartitionCache(String name, long maximumRows, long ttlSeconds, MeterRegistry registry) {\n" +
+                "        this.ttlNanos = TimeUnit.SECONDS.toNanos(ttlSeconds);\n" +
+                "        this.cache = Caffeine.newBuilder()\n" +
+                "                .maximumWeight(maximumRows)\n" +
+                "                .weigher((List<Object> partition, Map<List<Object>, Entry<T>> reads) -> weigh(reads))\n" +
+                "                .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)\n" +
+                "                .recordStats(() -> stats)\n" +
+                "                .build();\n" +
+                "        CaffeineCacheMetrics.monitor(registry, cache, name);\n" +
+                "    }\n" +
+                "\n" +
+                "    // key holds the bound values of the read, the partition key columns first\n" +
+                "    public Flux<T> read(String read, Object[] key, int partitionKeyColumns, Function<Object[], Publisher<T>> query) {\n" +
+                "        List<Object> partition = Arrays.asList(Arrays.copyOf(key, partitionKeyColumns));\n" +
+                "        List<Object> readKey = new ArrayList<Object>(key.length + 1);\n" +
+                "        readKey.add(read);\n" +
+                "        readKey.addAll(Arrays.asList(key));\n" +
+                "\n" +
+                "        Map<List<Object>, Entry<T>> reads = cache.asMap().get(partition);\n" +
+                "        Entry<T> entry = (null == reads) ? null : reads.get(readKey);\n" +
+                "        if ((null != entry) && (System.nanoTime() - entry.loadedAt < ttlNanos)) {\n" +
+                "            stats.recordHits(1);\n" +
+                "            return Flux.fromIterable(entry.rows);\n" +
+                "        }\n" +
+                "        stats.recordMisses(1);\n" +
+                "        long generation = invalidations.get();\n" +
+                "        return Flux.from(query.apply(key))\n" +
+                "                .collectList()\n" +
+                "                .doOnNext(rows -> put(partition, readKey, rows, generation))\n" +
+                "                .flatMapIterable(rows -> rows);\n" +
+                "    }\n" +
+                "\n" +
+                "    public void invalidate(List<Object> partitionKey) {\n" +
+                "        invalidations.incrementAndGet();\n" +
+                "        cache.invalidate(partitionKey);\n" +
+                "    }\n" +
+                "\n" +
+                "    private void put(List<Object> partition, List<Object> readKey, List<T> rows, long generation) {\n" +
+                "        cache.asMap().compute(partition, (p, reads) -> {\n" +
+                "            // An invalidation since the load started may have been for this partition\n" +
+                "            if (invalidations.get() != generation)\n" +
+                "                return reads;\n" +
+                "            Map<List<Object>, Entry<T>> updated = (null == reads)\n" +
+                "                    ? new HashMap<List<Object>, Entry<T>>() : new HashMap<List<Object>, Entry<T>>(reads);\n" +
+                "            updated.put(readKey, new Entry<T>(rows));\n" +
+                "            return updated;\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    private static <T> int weigh(Map<List<Object>, Entry<T>> reads) {\n" +
+                "        int rows = 0;\n" +
+                "        for (Entry<T> entry : reads.values())\n" +
+                "            rows += entry.rows.size();\n" +
+                "        return Math.max(1, rows);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "PartitionCache.java", contents);
+    }
+
+    private boolean makeWarmup() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
+                "import com.datastax.oss.driver.api.core.config.DefaultDriverOption;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import com.datastax.oss.driver.api.core.data.CqlDuration;\n" +
+                "import com.datastax.oss.driver.api.core.loadbalancing.NodeDistance;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.Node;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.NodeState;\n" +
+                "import com.datastax.oss.driver.api.core.type.codec.TypeCodec;\n" +
+                "import org.slf4j.Logger;\n" +
+                "import org.slf4j.LoggerFactory;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.boot.actuate.health.Health;\n" +
+                "import org.springframework.boot.actuate.health.HealthIndicator;\n" +
+                "import org.springframework.boot.context.event.ApplicationReadyEvent;\n" +
+                "import org.springframework.context.event.EventListener;\n" +
+                "import org.springframework.core.env.Environment;\n" +
+                "import org.springframework.http.HttpEntity;\n" +
+                "import org.springframework.http.HttpHeaders;\n" +
+                "import org.springframework.http.HttpMethod;\n" +
+                "import org.springframework.http.MediaType;\n" +
+                "import org.springframework.web.client.RestTemplate;\n" +
+                "import org.springframework.web.util.UriComponentsBuilder;\n" +
+                "\n" +
+                "import java.net.URI;\n" +
+                "import java.time.Instant;\n" +
+                "import java.time.LocalDate;\n" +
+                "import java.time.LocalTime;\n" +
+                "import java.util.*;\n" +
+                "import java.util.concurrent.CopyOnWriteArrayList;\n" +
+                "import java.util.concurrent.TimeUnit;\n" +
+                "import java.util.regex.Matcher;\n" +
+                "import java.util.regex.Pattern;\n" +
+                "import java.util.stream.Collectors;\n" +
+                "\n" +
+                "/**\n" +
+                " * Warms the service up before it reports ready.  Once the application has\n" +
+                " * started, it waits for the driver's local connection pools to fill, samples\n" +
+                " * real rows from each table, and sends every generated read (by key, inequality,\n" +
+                " * range, tuple slice, aggregate, index, view and search, plus getMany) through\n" +
+                " * its endpoint as JSON, NDJSON, a page and a projection, with values from those\n" +
+                " * rows, so every read statement has run and each request path has been compiled.\n" +
+                " * The full scan (all) is left out.  Until then this health indicator is\n" +
+                " * OUT_OF_SERVICE; afterwards it is UP, with the timings in its details.  Warm-up\n" +
+                " * only reads.\n" +
+                " *\n" +
+                " * The warm-up's requests carry an X-Ambien-Warmup header with a token made at\n" +
+                " * startup.  EndpointMetricsFilter marks the requests that have it (see\n" +
+                " * isHandlingWarmupRequest): AdmissionControl admits them without adjusting its\n" +
+                " * limits, and EndpointMetrics does not record them.  Other requests are treated\n" +
+                " * as usual, warm-up or not.\n" +
+                " */\n" +
+                "public class Warmup implements HealthIndicator {\n" +
+                "    private static final Logger logger = LoggerFactory.getLogger(Warmup.class);\n" +
+                "    private static final Pattern VARIABLE = Pattern.compile(\"\\\\{([^}]+)}\");\n" +
+                "    public static final String HEADER = \"X-Ambien-Warmup\";\n" +
+                "    private static final ThreadLocal<Boolean> handling = new ThreadLocal<Boolean>();\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private DseSession session;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private Environment environment;\n" +
+                "\n" +
+                "    @Value(\"${ambien.warmup.enabled:true}\")\n" +
+                "    private boolean enabled;\n" +
+                "\n" +
+                "    @Value(\"${ambien.warmup.sampleKeys:100}\")\n" +
+                "    private int sampleKeys;\n" +
+                "\n" +
+                "    @Value(\"${ambien.warmup.rounds:20}\")\n" +
+                "    private int rounds;\n" +
+                "\n" +
+                "    @Value(\"${ambien.warmup.maxSeconds:120}\")\n" +
+                "    private int maxSeconds;\n" +
+                "\n" +
+                "    private final List<Table> tables = new CopyOnWriteArrayList<Table>();\n" +
+                "    private final Map<String, Object> details = Collections.synchronizedMap(new LinkedHashMap<String, Object>());\n" +
+                "    private volatile boolean done = false;\n" +
+                "    // Only requests with this value in their header are the warm-up's\n" +
+                "    private final String token = UUID.randomUUID().toString();\n" +
+                "\n" +
+                "    private static class Table {\n" +
+                "        private final String keyspace;\n" +
+                "        private final String table;\n" +
+                "        private final String endpointPrefix;\n" +
+                "        private final List<String> keyColumns;\n" +
+                "        private final List<String> reads;\n" +
+                "        // The columns sampled: the primary key and every column a read takes a value of\n" +
+                "        private final List<String> columns;\n" +
+                "\n" +
+                "        private Table(String keyspace, String table, String endpointPrefix, List<String> partitionKey, List<String> clusteringColumns,\n" +
+                "                      List<String> reads) {\n" +
+                "            this.keyspace = keyspace;\n" +
+                "            this.table = table;\n" +
+                "            this.endpointPrefix = endpointPrefix;\n" +
+                "            this.keyColumns = new ArrayList<String>(partitionKey);\n" +
+                "            this.keyColumns.addAll(clusteringColumns);\n" +
+                "            this.reads = reads;\n" +
+                "            Set<String> columns = new LinkedHashSet<String>(keyColumns);\n" +
+                "            for (String read : reads) {\n" +
+                "                Matcher matcher = VARIABLE.matcher(read);\n" +
+                "                while (matcher.find())\n" +
+                "                    columns.add(matcher.group(1));\n" +
+                "            }\n" +
+                "            this.columns = new ArrayList<String>(columns);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    // Called by each generated controller as it starts.  reads are its read endpoints\n" +
+                "    // (path and query string), with {column} where a sampled row's value goes.\n" +
+                "    public void table(String keyspace, String table, String endpointPrefix, List<String> partitionKey, List<String> clusteringColumns,\n" +
+                "                      List<String> reads) {\n" +
+                "        tables.add(new Table(keyspace, table, endpointPrefix, partitionKey, clusteringColumns, reads));\n" +
+                "    }\n" +
+                "\n" +
+                "    // True if a request's X-Ambien-Warmup header is this process's\n" +
+                "    public boolean isWarmupRequest(String header) {\n" +
+                "        return token.equals(header);\n" +
+                "    }\n" +
+                "\n" +
+                "    // True on a thread handling a request the warm-up sent\n" +
+                "    public static boolean isHandlingWarmupRequest() {\n" +
+                "        return Boolean.TRUE.equals(handling.get());\n" +
+                "    }\n" +
+                "\n" +
+                "    public static void setHandlingWarmupRequest(boolean warmupRequest) {\n" +
+                "        if (warmupRequest)\n" +
+                "            handling.set(Boolean.TRUE);\n" +
+                "        else\n" +
+                "            handling.remove();\n" +
+                "    }\n" +
+                "\n" +
+                "    @EventListener(ApplicationReadyEvent.class)\n" +
+                "    public void start() {\n" +
+                "        if (!enabled) {\n" +
+                "            details.put(\"skipped\", true);\n" +
+                "            done = true;\n" +
+                "            return;\n" +
+                "        }\n" +
+                "        Thread thread = new Thread(this::run, \"ambien-warmup\");\n" +
+                "        thread.setDaemon(true);\n" +
+                "        thread.start();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public Health health() {\n" +
+                "        Health.Builder builder = done ? Health.up() : Health.outOfService();\n" +
+                "        synchronized (details) {\n" +
+                "            for (Map.Entry<String, Object> detail : details.entrySet())\n" +
+                "                builder.withDetail(detail.getKey(), detail.getValue());\n" +
+                "        }\n" +
+                "        return builder.build();\n" +
+                "    }\n" +
+                "\n" +
+                "    private void run() {\n" +
+                "        long start = System.nanoTime();\n" +
+                "        long deadline = start + TimeUnit.SECONDS.toNanos(maxSeconds);\n" +
+                "        try {\n" +
+                "            waitForPools(deadline);\n" +
+                "            details.put(\"poolsMs\", millisSince(start));\n" +
+                "            RestTemplate rest = new RestTemplate();\n" +
+                "            String base = \"http://localhost:\" + environment.getProperty(\"local.server.port\") + \"/\";\n" +
+                "            for (Table table : tables) {\n" +
+                "                String name = table.keyspace + \".\" + table.table;\n" +
+                "                try {\n" +
+                "                    details.put(name, warm(rest, base, table, deadline));\n" +
+                "                }\n" +
+                "                catch (RuntimeException e) {\n" +
+                "                    logger.warn(\"Warm-up of {} failed\", name, e);\n" +
+                "                    details.put(name, \"failed: \" + e);\n" +
+                "                }\n" +
+                "            }\n" +
+                "        }\n" +
+                "        finally {\n" +
+                "            details.put(\"totalMs\", millisSince(start));\n" +
+                "            done = true;\n" +
+                "            logger.info(\"Warm-up finished in {}ms\", millisSince(start));\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private void waitForPools(long deadline) {\n" +
+                "        int poolSize = session.getContext().getConfig().getDefaultProfile().getInt(DefaultDriverOption.CONNECTION_POOL_LOCAL_SIZE);\n" +
+                "        while (System.nanoTime() < deadline) {\n" +
+                "            boolean full = true;\n" +
+                "            for (Node node : session.getMetadata().getNodes().values()) {\n" +
+                "                if ((NodeState.UP == node.getState()) && (NodeDistance.LOCAL == node.getDistance())\n" +
+                "                        && (node.getOpenConnections() < poolSize))\n" +
+                "                    full = false;\n" +
+                "            }\n" +
+                "            if (full)\n" +
+                "                return;\n" +
+                "            try {\n" +
+                "                Thread.sleep(100);\n" +
+                "            }\n" +
+                "            catch (InterruptedException e) {\n" +
+                "                Thread.currentThread().interrupt();\n" +
+                "                return;\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private Map<String, Object> warm(RestTemplate rest, String base, Table table, long deadline) {\n" +
+                "        Map<String, Object> timings = new LinkedHashMap<String, Object>();\n" +
+                "        long start = System.nanoTime();\n" +
+                "        List<Map<String, String>> rows = sample(table);\n" +
+                "        List<Map<String, String>> keys = new ArrayList<Map<String, String>>();\n" +
+                "        for (Map<String, String> row : rows) {\n" +
+                "            Map<String, String> key = new LinkedHashMap<String, String>();\n" +
+                "            for (String column : table.keyColumns)\n" +
+                "                key.put(column, row.get(column));\n" +
+                "            keys.add(key);\n" +
+                "        }\n" +
+                "        timings.put(\"sampledRows\", rows.size());\n" +
+                "        timings.put(\"sampleMs\", millisSince(start));\n" +
+                "\n" +
+                "        String fields = String.join(\",\", table.keyColumns);\n" +
+                "        int requests = 0;\n" +
+                "        int errors = 0;\n" +
+                "        int unbound = 0;\n" +
+                "        start = System.nanoTime();\n" +
+                "        for (int round = 0; (round < rounds) && (System.nanoTime() < deadline); round++) {\n" +
+                "            long roundStart = System.nanoTime();\n" +
+                "            // Every round sends every read, taking the sampled rows in turn\n" +
+                "            for (int r = 0; r < table.reads.size(); r++) {\n" +
+                "                Map<String, String> row = rows.isEmpty() ? Collections.<String, String>emptyMap()\n" +
+                "                        : rows.get((round * table.reads.size() + r) % rows.size());\n" +
+                "                String read = base + table.reads.get(r);\n" +
+                "                if (!bound(read, row)) {\n" +
+                "                    unbound++;\n" +
+                "                    continue;\n" +
+                "                }\n" +
+                "                errors += send(rest, HttpMethod.GET, uri(read, row, null, null), MediaType.APPLICATION_JSON, null);\n" +
+                "                errors += send(rest, HttpMethod.GET, uri(read, row, null, null), StreamingResponses.NDJSON, null);\n" +
+                "                errors += send(rest, HttpMethod.GET, uri(read, row, \"pageSize\", \"10\"), MediaType.APPLICATION_JSON, null);\n" +
+                "                errors += send(rest, HttpMethod.GET, uri(read, row, \"fields\", fields), MediaType.APPLICATION_JSON, null);\n" +
+                "                requests += 4;\n" +
+                "            }\n" +
+                "            errors += send(rest, HttpMethod.POST, URI.create(base + table.endpointPrefix + \"getMany\"), MediaType.APPLICATION_JSON, keys);\n" +
+                "            requests += 1;\n" +
+                "            if (0 == round)\n" +
+                "                timings.put(\"firstRoundMs\", millisSince(roundStart));\n" +
+                "            timings.put(\"lastRoundMs\", millisSince(roundStart));\n" +
+                "        }\n" +
+                "        timings.put(\"reads\", table.reads.size());\n" +
+                "        timings.put(\"requests\", requests);\n" +
+                "        timings.put(\"errors\", errors);\n" +
+                "        // Reads skipped because the sampled row had no value (null) for one of their columns\n" +
+                "        timings.put(\"unbound\", unbound);\n" +
+                "        timings.put(\"requestsMs\", millisSince(start));\n" +
+                "        return timings;\n" +
+                "    }\n" +
+                "\n" +
+                "    private List<Map<String, String>> sample(Table table) {\n" +
+                "        String columns = table.columns.stream()\n" +
+                "                .map(c -> CqlIdentifier.fromInternal(c).asCql(true))\n" +
+                "                .collect(Collectors.joining(\", \"));\n" +
+                "        List<Map<String, String>> rows = new ArrayList<Map<String, String>>();\n" +
+                "        for (Row row : session.execute(\"SELECT \" + columns + \" FROM \"\n" +
+                "                + CqlIdentifier.fromInternal(table.keyspace).asCql(true) + \".\" + CqlIdentifier.fromInternal(table.table).asCql(true)\n" +
+                "                + \" LIMIT \" + sampleKeys)) {\n" +
+                "            Map<String, String> values = new HashMap<String, String>();\n" +
+                "            for (int i = 0; i < table.columns.size(); i++) {\n" +
+                "                String value = format(row, i);\n" +
+                "                if (null != value)\n" +
+                "                    values.put(table.columns.get(i), value);\n" +
+                "            }\n" +
+                "            rows.add(values);\n" +
+                "        }\n" +
+                "        return rows;\n" +
+                "    }\n" +
+                "\n" +
+                "    // A column value as the request parameter the generated parser reads back: the Java\n" +
+                "    // text for the types it parses directly, and otherwise the column codec's CQL literal\n" +
+                "    // (unquoted), e.g. 0x0a0b for a blob and 10.0.0.1 for an inet, where String.valueOf\n" +
+                "    // would give the buffer's or the address's toString\n" +
+                "    private static String format(Row row, int i) {\n" +
+                "        Object value = row.getObject(i);\n" +
+                "        if (null == value)\n" +
+                "            return null;\n" +
+                "        if ((value instanceof String) || (value instanceof Number) || (value instanceof Boolean) || (value instanceof UUID)\n" +
+                "                || (value instanceof Instant) || (value instanceof LocalDate) || (value instanceof LocalTime)\n" +
+                "                || (value instanceof CqlDuration))\n" +
+                "            return value.toString();\n" +
+                "        TypeCodec<Object> codec = row.codecRegistry().codecFor(row.getColumnDefinitions().get(i).getType());\n" +
+                "        String literal = codec.format(value);\n" +
+                "        if ((literal.length() >= 2) && literal.startsWith(\"'\") && literal.endsWith(\"'\"))\n" +
+                "            return literal.substring(1, literal.length() - 1).replace(\"''\", \"'\");\n" +
+                "        return literal;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Whether the row has a value for every {column} of the read\n" +
+                "    private static boolean bound(String read, Map<String, String> row) {\n" +
+                "        Matcher matcher = VARIABLE.matcher(read);\n" +
+                "        while (matcher.find()) {\n" +
+                "            if (!row.containsKey(matcher.group(1)))\n" +
+                "                return false;\n" +
+                "        }\n" +
+                "        return true;\n" +
+                "    }\n" +
+                "\n" +
+                "    // The read with the row's values in place of its {column}s (encoded), and with one\n" +
+                "    // more parameter if name is not null\n" +
+                "    private static URI uri(String read, Map<String, String> row, String name, String value) {\n" +
+                "        UriComponentsBuilder builder = UriComponentsBuilder.fromHttpUrl(read);\n" +
+                "        if (null != name)\n" +
+                "            builder.queryParam(name, value);\n" +
+                "        return builder.encode().buildAndExpand(row).toUri();\n" +
+                "    }\n" +
+                "\n" +
+                "    // Returns 1 if the request failed, so the caller can count errors\n" +
+                "    private int send(RestTemplate rest, HttpMethod method, URI uri, MediaType accept, Object body) {\n" +
+                "        HttpHeaders headers = new HttpHeaders();\n" +
+                "        headers.setAccept(Collections.singletonList(accept));\n" +
+                "        headers.set(HEADER, token);\n" +
+                "        if (null != body)\n" +
+                "            headers.setContentType(MediaType.APPLICATION_JSON);\n" +
+                "        try {\n" +
+                "            rest.exchange(uri, method, new HttpEntity<Object>(body, headers), byte[].class);\n" +
+                "            return 0;\n" +
+                "        }\n" +
+                "        catch (RuntimeException e) {\n" +
+                "            logger.debug(\"Warm-up request {} {} failed\", method, uri, e);\n" +
+                "            return 1;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private static long millisSince(long start) {\n" +
+                "        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "Warmup.java", contents);
+    }
+
+    private boolean makeExecutionProfiles() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;\n" +
+                "\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * The driver execution profiles (see application.conf) used by the generated DAO calls.\n" +
+                " * Reads are marked idempotent so the driver may retry them and, for point and slice\n" +
+                " * reads, send them speculatively to a second replica when the first is slow.\n" +
+                " */\n" +
+                "public final class ExecutionProfiles {\n" +
+                "    public static final String POINT_READ = \"point-read\";\n" +
+                "    public static final String SLICE_READ = \"slice-read\";\n" +
+                "    public static final String SCAN = \"scan\";\n" +
+                "    public static final String WRITE = \"write\";\n" +
+                "\n" +
+                "    private ExecutionProfiles() {\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Function<BoundStatementBuilder, BoundStatementBuilder> pointRead() {\n" +
+                "        return read(POINT_READ);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Function<BoundStatementBuilder, BoundStatementBuilder> sliceRead() {\n" +
+                "        return read(SLICE_READ);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Function<BoundStatementBuilder, BoundStatementBuilder> scan() {\n" +
+                "        return read(SCAN);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Function<BoundStatementBuilder, BoundStatementBuilder> write() {\n" +
+                "        return b -> b.setExecutionProfileName(WRITE);\n" +
+                "    }\n" +
+                "\n" +
+                "    private static Function<BoundStatementBuilder, BoundStatementBuilder> read(String profile) {\n" +
+                "        return b -> b.setExecutionProfileName(profile).setIdempotence(true);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "ExecutionProfiles.java", contents);
+    }
+
+    private boolean makeEndpointMetrics() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import io.micrometer.core.instrument.DistributionSummary;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import io.micrometer.core.instrument.Timer;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.concurrent.ConcurrentHashMap;\n" +
+                "import java.util.concurrent.TimeUnit;\n" +
+                "\n" +
+                "/**\n" +
+                " * Per-endpoint metrics for the generated controllers, tagged by keyspace, table and\n" +
+                " * endpoint:\n" +
+                " *   ambien.requests        request latency (with a percentile histogram), by outcome\n" +
+                " *   ambien.rows            rows returned (or written) per request\n" +
+                " *   ambien.response.bytes  response body size per request\n" +
+                " * Latency and size are measured by EndpointMetricsFilter, rows by the controllers.\n" +
+                " * The warm-up's own requests (see Warmup) are not recorded, so they are not in the\n" +
+                " * percentiles.\n" +
+                " */\n" +
+                "public class EndpointMetrics {\n" +
+                "    @Autowired\n" +
+                "    private MeterRegistry meterRegistry;\n" +
+                "\n" +
+                "    // Table by endpoint prefix, Endpoint by request mapping pattern\n" +
+                "    private final Map<String, Table> tables = new ConcurrentHashMap<String, Table>();\n" +
+                "    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();\n" +
+                "\n" +
+                "    public Table table(String keyspace, String table, String endpointPrefix) {\n" +
+                "        Table metrics = new Table(keyspace, table, path(endpointPrefix));\n" +
+                "        tables.put(metrics.prefix, metrics);\n" +
+                "        return metrics;\n" +
+                "    }\n" +
+                "\n" +
+                "    // The endpoint a request mapping pattern belongs to, or null if it is not a generated one\n" +
+                "    public Endpoint forPattern(String pattern) {\n" +
+                "        if (null == pattern)\n" +
+                "            return null;\n" +
+                "        String path = path(pattern);\n" +
+                "        Endpoint endpoint = endpoints.get(path);\n" +
+                "        if (null != endpoint)\n" +
+                "            return endpoint;\n" +
+                "        for (Table table : tables.values()) {\n" +
+                "            if (path.startsWith(table.prefix) && (path.length() > table.prefix.length()))\n" +
+                "                return table.endpoint(path.substring(table.prefix.length()));\n" +
+                "        }\n" +
+                "        return null;\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String path(String pattern) {\n" +
+                "        return pattern.startsWith(\"/\") ? pattern.substring(1) : pattern;\n" +
+                "    }\n" +
+                "\n" +
+                "    public class Table {\n" +
+                "        private final String keyspace;\n" +
+                "        private final String table;\n" +
+                "        private final String prefix;\n" +
+                "\n" +
+                "        private Table(String keyspace, String table, String prefix) {\n" +
+                "            this.keyspace = keyspace;\n" +
+                "            this.table = table;\n" +
+                "            this.prefix = prefix;\n" +
+                "        }\n" +
+                "\n" +
+                "        public Endpoint endpoint(String name) {\n" +
+                "            return endpoints.computeIfAbsent(prefix + name, p -> new Endpoint(keyspace, table, name));\n" +
+                "        }\n" +
+                "\n" +
+                "        // Counts the rows of a read as they are emitted, recorded when the read ends\n" +
+                "        public <T> Flux<T> rows(String endpoint, Publisher<T> rows) {\n" +
+                "            Endpoint metrics = endpoint(endpoint);\n" +
+                "            if (Warmup.isHandlingWarmupRequest())\n" +
+                "                return Flux.from(rows);\n" +
+                "            return Flux.defer(() -> {\n" +
+                "                long[] count = {0};\n" +
+                "                return Flux.from(rows)\n" +
+                "                        .doOnNext(row -> count[0]++)\n" +
+                "                        .doFinally(signal -> metrics.rows(count[0]));\n" +
+                "            });\n" +
+                "        }\n" +
+                "\n" +
+                "        public <T> CompletionStage<AmbienPage<T>> page(String endpoint, CompletionStage<AmbienPage<T>> page) {\n" +
+                "            Endpoint metrics = endpoint(endpoint);\n" +
+                "            if (Warmup.isHandlingWarmupRequest())\n" +
+                "                return page;\n" +
+                "            return page.thenApply(p -> {\n" +
+                "                metrics.rows(p.getRows().size());\n" +
+                "                return p;\n" +
+                "            });\n" +
+                "        }\n" +
+                "\n" +
+                "        public void rows(String endpoint, long rows) {\n" +
+                "            if (!Warmup.isHandlingWarmupRequest())\n" +
+                "                endpoint(endpoint).rows(rows);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    public class Endpoint {\n" +
+                "        private static final String SUCCESS = \"SUCCESS\";\n" +
+                "        private static final String CLIENT_ERROR = \"CLIENT_ERROR\";\n" +
+                "        private static final String SERVER_ERROR = \"SERVER_ERROR\";\n" +
+                "\n" +
+                "        private final String keyspace;\n" +
+                "        private final String table;\n" +
+                "        private final String endpoint;\n" +
+                "        private final Map<String, Timer> requests = new ConcurrentHashMap<String, Timer>();\n" +
+                "        private final DistributionSummary rows;\n" +
+                "        private final DistributionSummary bytes;\n" +
+                "\n" +
+                "        private Endpoint(String keyspace, String table, String endpoint) {\n" +
+                "            this.keyspace = keyspace;\n" +
+                "            this.table = table;\n" +
+                "            this.endpoint = endpoint;\n" +
+                "            this.rows = DistributionSummary.builder(\"ambien.rows\")\n" +
+                "                    .description(\"Rows returned or written per request\")\n" +
+                "                    .tags(\"keyspace\", keyspace, \"table\", table, \"endpoint\", endpoint)\n" +
+                "                    .publishPercentileHistogram()\n" +
+                "                    .register(meterRegistry);\n" +
+                "            this.bytes = DistributionSummary.builder(\"ambien.response.bytes\")\n" +
+                "                    .description(\"Response body size\")\n" +
+                "                    .baseUnit(\"bytes\")\n" +
+                "                    .tags(\"keyspace\", keyspace, \"table\", table, \"endpoint\", endpoint)\n" +
+                "                    .publishPercentileHistogram()\n" +
+                "                    .register(meterRegistry);\n" +
+                "        }\n" +
+                "\n" +
+                "        public void rows(long count) {\n" +
+                "            rows.record(count);\n" +
+                "        }\n" +
+                "\n" +
+                "        public void request(long nanos, long responseBytes, int status) {\n" +
+                "            String outcome = (status >= 500) ? SERVER_ERROR : ((status >= 400) ? CLIENT_ERROR : SUCCESS);\n" +
+                "            requests.computeIfAbsent(outcome, o -> Timer.builder(\"ambien.requests\")\n" +
+                "                    .description(\"Request latency\")\n" +
+                "                    .tags(\"keyspace\", keyspace, \"table\", table, \"endpoint\", endpoint, \"outcome\", o)\n" +
+                "                    .publishPercentileHistogram()\n" +
+                "                    .register(meterRegistry))\n" +
+                "                    .record(nanos, TimeUnit.NANOSECONDS);\n" +
+                "            bytes.record(responseBytes);\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "EndpointMetrics.java", contents);
+    }
+
+    private boolean makeEndpointMetricsFilter() {
+        if (params.isWebflux())
+            return makeWebfluxEndpointMetricsFilter();
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import org.springframework.web.filter.OncePerRequestFilter;\n" +
+                "import org.springframework.web.servlet.HandlerMapping;\n" +
+                "\n" +
+                "import javax.servlet.AsyncEvent;\n" +
+                "import javax.servlet.AsyncListener;\n" +
+                "import javax.servlet.FilterChain;\n" +
+                "import javax.servlet.ServletException;\n" +
+                "import javax.servlet.ServletOutputStream;\n" +
+                "import javax.servlet.WriteListener;\n" +
+                "import javax.servlet.http.HttpServletRequest;\n" +
+                "import javax.servlet.http.HttpServletResponse;\n" +
+                "import javax.servlet.http.HttpServletResponseWrapper;\n" +
+                "import java.io.IOException;\n" +
+                "\n" +
+                "/**\n" +
+                " * Times each request to a generated endpoint and counts the bytes of its response.\n" +
+                " * Streamed and asynchronous responses are recorded when the async request completes.\n" +
+                " * The warm-up's requests are not recorded; the thread handling one is marked for\n" +
+                " * AdmissionControl and EndpointMetrics instead (see Warmup).\n" +
+                " */\n" +
+                "public class EndpointMetricsFilter extends OncePerRequestFilter {\n" +
+                "    private final EndpointMetrics endpointMetrics;\n" +
+                "    private final Warmup warmup;\n" +
+                "\n" +
+                "    public EndpointMetricsFilter(EndpointMetrics endpointMetrics, Warmup warmup) {\n" +
+                "        this.endpointMetrics = endpointMetrics;\n" +
+                "        this.warmup = warmup;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)\n" +
+                "            throws ServletException, IOException {\n" +
+                "        if (warmup.isWarmupRequest(request.getHeader(Warmup.HEADER))) {\n" +
+                "            Warmup.setHandlingWarmupRequest(true);\n" +
+                "            try {\n" +
+                "                chain.doFilter(request, response);\n" +
+                "            }\n" +
+                "            finally {\n" +
+                "                Warmup.setHandlingWarmupRequest(false);\n" +
+                "            }\n" +
+                "            return;\n" +
+                "        }\n" +
+                "        long start = System.nanoTime();\n" +
+                "        CountingResponse counting = new CountingResponse(response);\n" +
+                "        boolean failed = true;\n" +
+                "        try {\n" +
+                "            chain.doFilter(request, counting);\n" +
+                "            failed = false;\n" +
+                "        }\n" +
+                "        finally {\n" +
+                "            if (!failed && request.isAsyncStarted()) {\n" +
+                "                request.getAsyncContext().addListener(new AsyncListener() {\n" +
+                "                    public void onComplete(AsyncEvent event) {\n" +
+                "                        record(request, counting, start, counting.getStatus());\n" +
+                "                    }\n" +
+                "\n" +
+                "                    public void onTimeout(AsyncEvent event) {\n" +
+                "                    }\n" +
+                "\n" +
+                "                    public void onError(AsyncEvent event) {\n" +
+                "                    }\n" +
+                "\n" +
+                "                    public void onStartAsync(AsyncEvent event) {\n" +
+                "                    }\n" +
+                "                });\n" +
+                "            }\n" +
+                "            else {\n" +
+                "                record(request, counting, start, failed ? HttpServletResponse.SC_INTERNAL_SERVER_ERROR : counting.getStatus());\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private void record(HttpServletRequest request, CountingResponse response, long start, int status) {\n" +
+                "        EndpointMetrics.Endpoint endpoint = endpointMetrics.forPattern(\n" +
+                "                (String) request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE));\n" +
+                "        if (null != endpoint)\n" +
+                "            endpoint.request(System.nanoTime() - start, response.bytes, status);\n" +
+                "    }\n" +
+                "\n" +
+                "    private static class CountingResponse extends HttpServletResponseWrapper {\n" +
+                "        private volatile long bytes = 0;\n" +
+                "        private ServletOutputStream out = null;\n" +
+                "\n" +
+                "        CountingResponse(HttpServletResponse response) {\n" +
+                "            super(response);\n" +
+                "        }\n" +
+                "\n" +
+                "        @Override\n" +
+                "        public ServletOutputStream getOutputStream() throws IOException {\n" +
+                "            if (null == out) {\n" +
+                "                ServletOutputStream delegate = super.getOutputStream();\n" +
+                "                out = new ServletOutputStream() {\n" +
+                "                    @Override\n" +
+                "                    public void write(int b) throws IOException {\n" +
+                "                        delegate.write(b);\n" +
+                "                        bytes++;\n" +
+                "                    }\n" +
+                "\n" +
+                "                    @Override\n" +
+                "                    public void write(byte[] b, int off, int len) throws IOException {\n" +
+                "                        delegate.write(b, off, len);\n" +
+                "                        bytes += len;\n" +
+                "                    }\n" +
+                "\n" +
+                "                    @Override\n" +
+                "                    public void flush() throws IOException {\n" +
+                "                        delegate.flush();\n" +
+                "                    }\n" +
+                "\n" +
+                "                    @Override\n" +
+                "                    public void close() throws IOException {\n" +
+                "                        delegate.close();\n" +
+                "                    }\n" +
+                "\n" +
+                "                    @Override\n" +
+                "                    public boolean isReady() {\n" +
+                "                        return delegate.isReady();\n" +
+                "                    }\n" +
+                "\n" +
+                "                    @Override\n" +
+                "                    public void setWriteListener(WriteListener writeListener) {\n" +
+                "                        delegate.setWriteListener(writeListener);\n" +
+                "                    }\n" +
+                "                };\n" +
+                "            }\n" +
+                "            return out;\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "EndpointMetricsFilter.java", contents);
+    }
+
+    private boolean makeWebfluxEndpointMetricsFilter() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.core.io.buffer.DataBuffer;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.http.server.reactive.ServerHttpResponse;\n" +
+                "import org.springframework.http.server.reactive.ServerHttpResponseDecorator;\n" +
+                "import org.springframework.web.reactive.HandlerMapping;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "import org.springframework.web.server.ServerWebExchange;\n" +
+                "import org.springframework.web.server.WebFilter;\n" +
+                "import org.springframework.web.server.WebFilterChain;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "import reactor.util.context.Context;\n" +
+                "\n" +
+                "import java.util.concurrent.atomic.AtomicLong;\n" +
+                "\n" +
+                "/**\n" +
+                " * Times each request to a generated endpoint and counts the bytes of its response.\n" +
+                " * The request is recorded when its response has been written.  The warm-up's\n" +
+                " * requests are not recorded; they are marked in the subscriber context for\n" +
+                " * AdmissionControl and EndpointMetrics instead (see Warmup).\n" +
+                " */\n" +
+                "public class EndpointMetricsFilter implements WebFilter {\n" +
+                "    private final EndpointMetrics endpointMetrics;\n" +
+                "    private final Warmup warmup;\n" +
+                "\n" +
+                "    public EndpointMetricsFilter(EndpointMetrics endpointMetrics, Warmup warmup) {\n" +
+                "        this.endpointMetrics = endpointMetrics;\n" +
+                "        this.warmup = warmup;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {\n" +
+                "        if (warmup.isWarmupRequest(exchange.getRequest().getHeaders().getFirst(Warmup.HEADER)))\n" +
+                "            return chain.filter(exchange).subscriberContext(Context.of(Warmup.HEADER, true));\n" +
+                "        long start = System.nanoTime();\n" +
+                "        AtomicLong bytes = new AtomicLong();\n" +
+                "        ServerHttpResponse response = new ServerHttpResponseDecorator(exchange.getResponse()) {\n" +
+                "            @Override\n" +
+                "            public Mono<Void> writeWith(Publisher<? extends DataBuffer> body) {\n" +
+                "                return super.writeWith(Flux.from(body).doOnNext(b -> bytes.addAndGet(b.readableByteCount())));\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public Mono<Void> writeAndFlushWith(Publisher<? extends Publisher<? extends DataBuffer>> body) {\n" +
+                "                return super.writeAndFlushWith(Flux.from(body)\n" +
+                "                        .map(p -> Flux.from(p).doOnNext(b -> bytes.addAndGet(b.readableByteCount()))));\n" +
+                "            }\n" +
+                "        };\n" +
+                "        return chain.filter(exchange.mutate().response(response).build())\n" +
+                "                .doOnSuccess(v -> record(exchange, start, bytes.get(), status(response)))\n" +
+                "                .doOnError(e -> record(exchange, start, bytes.get(), (e instanceof ResponseStatusException)\n" +
+                "                        ? ((ResponseStatusException) e).getStatus().value() : HttpStatus.INTERNAL_SERVER_ERROR.value()));\n" +
+                "    }\n" +
+                "\n" +
+                "    private static int status(ServerHttpResponse response) {\n" +
+                "        HttpStatus status = response.getStatusCode();\n" +
+                "        return (null == status) ? HttpStatus.OK.value() : status.value();\n" +
+                "    }\n" +
+                "\n" +
+                "    private void record(ServerWebExchange exchange, long start, long bytes, int status) {\n" +
+                "        Object pattern = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);\n" +
+                "        EndpointMetrics.Endpoint endpoint = endpointMetrics.forPattern((null == pattern) ? null : pattern.toString());\n" +
+                "        if (null != endpoint)\n" +
+                "            endpoint.request(System.nanoTime() - start, bytes, status);\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "EndpointMetricsFilter.java", contents);
+    }
+
+    private boolean makeDriverMetrics() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.codahale.metrics.Counter;\n" +
+                "import com.codahale.metrics.Counting;\n" +
+                "import com.codahale.metrics.Gauge;\n" +
+                "import com.codahale.metrics.Histogram;\n" +
+                "import com.codahale.metrics.Meter;\n" +
+                "import com.codahale.metrics.MetricRegistry;\n" +
+                "import com.codahale.metrics.MetricRegistryListener;\n" +
+                "import com.codahale.metrics.Sampling;\n" +
+                "import com.codahale.metrics.Timer;\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import io.micrometer.core.instrument.FunctionCounter;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import io.micrometer.core.instrument.Tags;\n" +
+                "import io.micrometer.core.instrument.TimeGauge;\n" +
+                "import io.micrometer.core.instrument.binder.MeterBinder;\n" +
+                "\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.ConcurrentHashMap;\n" +
+                "import java.util.concurrent.TimeUnit;\n" +
+                "\n" +
+                "/**\n" +
+                " * Publishes the driver's session and node metrics (a Dropwizard registry) to Micrometer,\n" +
+                " * so they show up under /actuator/metrics next to the HTTP metrics.\n" +
+                " *   s0.cql-requests                 -> dse.session.cql-requests\n" +
+                " *   s0.nodes.10_0_0_1:9042.pool...  -> dse.node.pool... {node=10_0_0_1:9042}\n" +
+                " * Counters and meters become counters, gauges stay gauges, and timers and histograms\n" +
+                " * become a count plus percentile gauges ({name}.percentile, tagged phi).  Node metrics\n" +
+                " * come and go with the nodes.\n" +
+                " */\n" +
+                "public class DriverMetrics implements MeterBinder {\n" +
+                "    private static final double[] PERCENTILES = {0.5, 0.75, 0.95, 0.99, 0.999};\n" +
+                "    private static final String NODES = \"nodes.\";\n" +
+                "\n" +
+                "    private final DseSession session;\n" +
+                "    private final Map<String, List<io.micrometer.core.instrument.Meter>> meters = new ConcurrentHashMap<>();\n" +
+                "\n" +
+                "    public DriverMetrics(DseSession session) {\n" +
+                "        this.session = session;\n" +
+                "    }\n" +
+                "\n" +
+                "    @Override\n" +
+                "    public void bindTo(MeterRegistry meterRegistry) {\n" +
+                "        if (!session.getMetrics().isPresent())\n" +
+                "            return;\n" +
+                "        MetricRegistry metricRegistry = session.getMetrics().get().getRegistry();\n" +
+                "        // Called back for the metrics already registered too\n" +
+                "        metricRegistry.addListener(new MetricRegistryListener.Base() {\n" +
+                "            @Override\n" +
+                "            public void onGaugeAdded(String name, Gauge<?> gauge) {\n" +
+                "                add(name, (n, tags) -> io.micrometer.core.instrument.Gauge.builder(n, gauge, DriverMetrics::value)\n" +
+                "                        .tags(tags).register(meterRegistry));\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onCounterAdded(String name, Counter counter) {\n" +
+                "                add(name, (n, tags) -> FunctionCounter.builder(n, counter, Counter::getCount)\n" +
+                "                        .tags(tags).register(meterRegistry));\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onMeterAdded(String name, Meter meter) {\n" +
+                "                add(name, (n, tags) -> FunctionCounter.builder(n, meter, Meter::getCount)\n" +
+                "                        .tags(tags).register(meterRegistry));\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onHistogramAdded(String name, Histogram histogram) {\n" +
+                "                addSampling(name, meterRegistry, histogram, null);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onTimerAdded(String name, Timer timer) {\n" +
+                "                addSampling(name, meterRegistry, timer, TimeUnit.NANOSECONDS);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onGaugeRemoved(String name) {\n" +
+                "                remove(name, meterRegistry);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onCounterRemoved(String name) {\n" +
+                "                remove(name, meterRegistry);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onMeterRemoved(String name) {\n" +
+                "                remove(name, meterRegistry);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onHistogramRemoved(String name) {\n" +
+                "                remove(name, meterRegistry);\n" +
+                "            }\n" +
+                "\n" +
+                "            @Override\n" +
+                "            public void onTimerRemoved(String name) {\n" +
+                "                remove(name, meterRegistry);\n" +
+                "            }\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    private interface MeterFactory {\n" +
+                "        io.micrometer.core.instrument.Meter create(String name, Tags tags);\n" +
+                "    }\n" +
+                "\n" +
+                "    private void add(String driverName, MeterFactory factory) {\n" +
+                "        meters.computeIfAbsent(driverName, n -> new ArrayList<>()).add(factory.create(meterName(driverName), tags(driverName)));\n" +
+                "    }\n" +
+                "\n" +
+                "    // A count, plus a gauge per percentile of the (decaying) sample\n" +
+                "    private <T extends Counting & Sampling> void addSampling(String driverName, MeterRegistry meterRegistry, T sampling, TimeUnit unit) {\n" +
+                "        add(driverName, (n, tags) -> FunctionCounter.builder(n, sampling, Counting::getCount)\n" +
+                "                .tags(tags).register(meterRegistry));\n" +
+                "        for (double percentile : PERCENTILES) {\n" +
+                "            add(driverName, (n, tags) -> {\n" +
+                "                Tags phi = tags.and(\"phi\", String.valueOf(percentile));\n" +
+                "                if (null == unit)\n" +
+                "                    return io.micrometer.core.instrument.Gauge.builder(n + \".percentile\", sampling, s -> s.getSnapshot().getValue(percentile))\n" +
+                "                            .tags(phi).register(meterRegistry);\n" +
+                "                return TimeGauge.builder(n + \".percentile\", sampling, unit, s -> s.getSnapshot().getValue(percentile))\n" +
+                "                        .tags(phi).register(meterRegistry);\n" +
+                "            });\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private void remove(String driverName, MeterRegistry meterRegistry) {\n" +
+                "        List<io.micrometer.core.instrument.Meter> removed = meters.remove(driverName);\n" +
+                "        if (null != removed)\n" +
+                "            removed.forEach(meterRegistry::remove);\n" +
+                "    }\n" +
+                "\n" +
+                "    // The driver metric name without the session name, e.g. nodes.10_0_0_1:9042.pool.in-flight\n" +
+                "    private String metric(String driverName) {\n" +
+                "        String prefix = session.getName() + \".\";\n" +
+                "        return driverName.startsWith(prefix) ? driverName.substring(prefix.length()) : driverName;\n" +
+                "    }\n" +
+                "\n" +
+                "    private String meterName(String driverName) {\n" +
+                "        String metric = metric(driverName);\n" +
+                "        if (metric.startsWith(NODES))\n" +
+                "            return \"dse.node.\" + metric.substring(metric.indexOf('.', NODES.length()) + 1);\n" +
+                "        return \"dse.session.\" + metric;\n" +
+                "    }\n" +
+                "\n" +
+                "    private Tags tags(String driverName) {\n" +
+                "        String metric = metric(driverName);\n" +
+                "        Tags tags = Tags.of(\"session\", session.getName());\n" +
+                "        if (metric.startsWith(NODES))\n" +
+                "            tags = tags.and(\"node\", metric.substring(NODES.length(), metric.indexOf('.', NODES.length())));\n" +
+                "        return tags;\n" +
+                "    }\n" +
+                "\n" +
+                "    private static double value(Gauge<?> gauge) {\n" +
+                "        Object value = gauge.getValue();\n" +
+                "        return (value instanceof Number) ? ((Number) value).doubleValue() : Double.NaN;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "DriverMetrics.java", contents);
+    }
+
+    private boolean makeAdmissionControl() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.DriverTimeoutException;\n" +
+                "import com.datastax.oss.driver.api.core.RequestThrottlingException;\n" +
+                "import com.datastax.oss.driver.api.core.servererrors.QueryConsistencyException;\n" +
+                "import io.micrometer.core.instrument.Gauge;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.core.env.Environment;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "\n" +
+                "import java.util.Arrays;\n" +
+                "import java.util.HashMap;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.CompletionException;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.concurrent.atomic.AtomicInteger;\n" +
+                "\n" +
+                "/**\n" +
+                " * Admission control for the generated endpoints: one adaptive concurrency limit per\n" +
+                " * endpoint class (the execution profiles point-read, slice-read, scan and write), so\n" +
+                " * full scans cannot starve point reads.  A request over the limit is rejected at once\n" +
+                " * with 429 and Retry-After (see AdmissionControlAdvice) instead of queueing.\n" +
+                " *\n" +
+                " * The limits are AIMD: a request that finishes within the class's target latency\n" +
+                " * raises the limit by one (when the limit is in use), and one that is slower, or\n" +
+                " * fails with a timeout or throttling error, cuts it by 10%, at most once per target\n" +
+                " * latency so a burst of slow requests that were all in flight together counts once.\n" +
+                " * A streamed read is timed to its first row, which is the driver's work; the rest\n" +
+                " * depends on how fast the client takes the rows.\n" +
+                " *\n" +
+                " * The warm-up's own requests (see Warmup) are always admitted and do not adjust the\n" +
+                " * limits, so the slow first requests of a cold JVM neither get 429s nor cut the\n" +
+                " * limits before the service is ready.\n" +
+                (params.isWebflux() ? " * EndpointMetricsFilter marks them in the subscriber context, so rows and mono admit\n" : "") +
+                (params.isWebflux() ? " * a request when it is subscribed rather than when its controller method runs.\n" : "") +
+                " */\n" +
+                "public class AdmissionControl {\n" +
+                "    public static final List<String> CLASSES = Arrays.asList(\n" +
+                "            ExecutionProfiles.POINT_READ, ExecutionProfiles.SLICE_READ, ExecutionProfiles.SCAN, ExecutionProfiles.WRITE);\n" +
+                "    private static final double BACKOFF = 0.9;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private Environment environment;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private MeterRegistry meterRegistry;\n" +
+                "\n" +
+                "    @Value(\"${ambien.admission.enabled:true}\")\n" +
+                "    private boolean enabled;\n" +
+                "\n" +
+                "    @Value(\"${ambien.admission.retryAfterSeconds:1}\")\n" +
+                "    private int retryAfterSeconds;\n" +
+                "\n" +
+                "    private final Map<String, Limiter> limiters = new HashMap<String, Limiter>();\n" +
+                "\n" +
+                "    public interface Call<T, E extends Exception> {\n" +
+                "        T call() throws E;\n" +
+                "    }\n" +
+                "\n" +
+                "    public interface Run<E extends Exception> {\n" +
+                "        void run() throws E;\n" +
+                "    }\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    private void init() {\n" +
+                "        for (String endpointClass : CLASSES) {\n" +
+                "            String prefix = \"ambien.admission.\" + endpointClass + \".\";\n" +
+                "            Limiter limiter = new Limiter(\n" +
+                "                    environment.getProperty(prefix + \"initialLimit\", Integer.class, 20),\n" +
+                "                    environment.getProperty(prefix + \"maxLimit\", Integer.class, 1000),\n" +
+                "                    environment.getProperty(prefix + \"targetMillis\", Long.class, 100L));\n" +
+                "            limiters.put(endpointClass, limiter);\n" +
+                "            Gauge.builder(\"ambien.admission.limit\", limiter, l -> l.limit)\n" +
+                "                    .tag(\"class\", endpointClass).register(meterRegistry);\n" +
+                "            Gauge.builder(\"ambien.admission.inFlight\", limiter, l -> l.inFlight.get())\n" +
+                "                    .tag(\"class\", endpointClass).register(meterRegistry);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    // A read, timed to its first row and released when its rows end (or the client goes away)\n" +
+                "    public <T, E extends Exception> Flux<T> rows(String endpointClass, Call<Publisher<T>, E> read) throws E {\n" +
+                (params.isWebflux() ? "        return subscribed(() -> rowsNow(endpointClass, read)).flatMapMany(rows -> rows);\n" : "") +
+                (params.isWebflux() ? "    }\n" : "") +
+                (params.isWebflux() ? "\n" : "") +
+                (params.isWebflux() ? "    private <T, E extends Exception> Flux<T> rowsNow(String endpointClass, Call<Publisher<T>, E> read) throws E {\n" : "") +
+                "        Permit permit = acquire(endpointClass);\n" +
+                "        Publisher<T> rows = permit.call(read);\n" +
+                "        return Flux.from(rows)\n" +
+                "                .doOnNext(row -> permit.served())\n" +
+                "                .doOnError(permit::failed)\n" +
+                "                .doFinally(signal -> permit.release());\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T, E extends Exception> Mono<T> mono(String endpointClass, Call<Mono<T>, E> call) throws E {\n" +
+                (params.isWebflux() ? "        return subscribed(() -> monoNow(endpointClass, call)).flatMap(mono -> mono);\n" : "") +
+                (params.isWebflux() ? "    }\n" : "") +
+                (params.isWebflux() ? "\n" : "") +
+                (params.isWebflux() ? "    private <T, E extends Exception> Mono<T> monoNow(String endpointClass, Call<Mono<T>, E> call) throws E {\n" : "") +
+                "        Permit permit = acquire(endpointClass);\n" +
+                "        return permit.call(call)\n" +
+                "                .doOnError(permit::failed)\n" +
+                "                .doFinally(signal -> permit.release());\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T, E extends Exception> CompletionStage<T> stage(String endpointClass, Call<CompletionStage<T>, E> call) throws E {\n" +
+                "        Permit permit = acquire(endpointClass);\n" +
+                "        return permit.call(call).whenComplete((result, error) -> {\n" +
+                "            if (null != error)\n" +
+                "                permit.failed(error);\n" +
+                "            permit.release();\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                "    public <T, E extends Exception> T call(String endpointClass, Call<T, E> call) throws E {\n" +
+                "        Permit permit = acquire(endpointClass);\n" +
+                "        T result = permit.call(call);\n" +
+                "        permit.release();\n" +
+                "        return result;\n" +
+                "    }\n" +
+                "\n" +
+                "    public <E extends Exception> void run(String endpointClass, Run<E> run) throws E {\n" +
+                "        call(endpointClass, () -> {\n" +
+                "            run.run();\n" +
+                "            return null;\n" +
+                "        });\n" +
+                "    }\n" +
+                "\n" +
+                (params.isWebflux() ? "    // Runs call on subscription, marked as the warm-up's if EndpointMetricsFilter said so\n" : "") +
+                (params.isWebflux() ? "    private static <T> Mono<T> subscribed(Call<T, ?> call) {\n" : "") +
+                (params.isWebflux() ? "        return Mono.subscriberContext().flatMap(context -> {\n" : "") +
+                (params.isWebflux() ? "            Warmup.setHandlingWarmupRequest(context.hasKey(Warmup.HEADER));\n" : "") +
+                (params.isWebflux() ? "            try {\n" : "") +
+                (params.isWebflux() ? "                return Mono.just(call.call());\n" : "") +
+                (params.isWebflux() ? "            }\n" : "") +
+                (params.isWebflux() ? "            catch (Exception e) {\n" : "") +
+                (params.isWebflux() ? "                return Mono.error(e);\n" : "") +
+                (params.isWebflux() ? "            }\n" : "") +
+                (params.isWebflux() ? "            finally {\n" : "") +
+                (params.isWebflux() ? "                Warmup.setHandlingWarmupRequest(false);\n" : "") +
+                (params.isWebflux() ? "            }\n" : "") +
+                (params.isWebflux() ? "        });\n" : "") +
+                (params.isWebflux() ? "    }\n" : "") +
+                (params.isWebflux() ? "\n" : "") +
+                "    private Permit acquire(String endpointClass) {\n" +
+                "        Limiter limiter = limiters.get(endpointClass);\n" +
+                "        if (!enabled || Warmup.isHandlingWarmupRequest())\n" +
+                "            return new Permit(null);\n" +
+                "        if (!limiter.tryAcquire()) {\n" +
+                "            meterRegistry.counter(\"ambien.admission.rejected\", \"class\", endpointClass).increment();\n" +
+                "            throw new RejectedException(endpointClass, retryAfterSeconds);\n" +
+                "        }\n" +
+                "        return new Permit(limiter);\n" +
+                "    }\n" +
+                "\n" +
+                "    // Errors that mean the cluster is overloaded, as opposed to a bad request\n" +
+                "    private static boolean overloaded(Throwable error) {\n" +
+                "        Throwable cause = (error instanceof CompletionException) && (null != error.getCause()) ? error.getCause() : error;\n" +
+                "        return (cause instanceof DriverTimeoutException)\n" +
+                "                || (cause instanceof RequestThrottlingException)\n" +
+                "                || (cause instanceof QueryConsistencyException);\n" +
+                "    }\n" +
+                "\n" +
+                "    private static class Permit {\n" +
+                "        private final Limiter limiter;\n" +
+                "        private final long start = System.nanoTime();\n" +
+                "        private volatile long nanos = -1;\n" +
+                "        private volatile boolean overloaded = false;\n" +
+                "        private final AtomicInteger released = new AtomicInteger();\n" +
+                "\n" +
+                "        Permit(Limiter limiter) {\n" +
+                "            this.limiter = limiter;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Runs the call, giving the permit back if the call itself throws\n" +
+                "        <T, E extends Exception> T call(Call<T, E> call) throws E {\n" +
+                "            try {\n" +
+                "                return call.call();\n" +
+                "            }\n" +
+                "            catch (Exception | Error e) {\n" +
+                "                failed(e);\n" +
+                "                release();\n" +
+                "                throw e;\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        void failed(Throwable error) {\n" +
+                "            overloaded |= overloaded(error);\n" +
+                "        }\n" +
+                "\n" +
+                "        // Stops the clock; later work is the client's, not the cluster's\n" +
+                "        void served() {\n" +
+                "            if (nanos < 0)\n" +
+                "                nanos = System.nanoTime() - start;\n" +
+                "        }\n" +
+                "\n" +
+                "        void release() {\n" +
+                "            if ((null != limiter) && (0 == released.getAndIncrement())) {\n" +
+                "                served();\n" +
+                "                limiter.release(nanos, overloaded);\n" +
+                "            }\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private static class Limiter {\n" +
+                "        private final int maxLimit;\n" +
+                "        private final long targetNanos;\n" +
+                "        private final AtomicInteger inFlight = new AtomicInteger();\n" +
+                "        private volatile double limit;\n" +
+                "        private long lastDecrease = System.nanoTime();\n" +
+                "\n" +
+                "        Limiter(int initialLimit, int maxLimit, long targetMillis) {\n" +
+                "            this.maxLimit = maxLimit;\n" +
+                "            this.targetNanos = targetMillis * 1000000L;\n" +
+                "            this.limit = Math.min(initialLimit, maxLimit);\n" +
+                "        }\n" +
+                "\n" +
+                "        boolean tryAcquire() {\n" +
+                "            while (true) {\n" +
+                "                int current = inFlight.get();\n" +
+                "                if (current >= (int) limit)\n" +
+                "                    return false;\n" +
+                "                if (inFlight.compareAndSet(current, current + 1))\n" +
+                "                    return true;\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        synchronized void release(long nanos, boolean overloaded) {\n" +
+                "            int current = inFlight.getAndDecrement();\n" +
+                "            if (overloaded || (nanos > targetNanos)) {\n" +
+                "                long now = System.nanoTime();\n" +
+                "                if (now - lastDecrease >= targetNanos) {\n" +
+                "                    limit = Math.max(1, limit * BACKOFF);\n" +
+                "                    lastDecrease = now;\n" +
+                "                }\n" +
+                "            }\n" +
+                "            else if (2 * current >= limit)\n" +
+                "                limit = Math.min(maxLimit, limit + 1);\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    public static class RejectedException extends RuntimeException {\n" +
+                "        private final int retryAfterSeconds;\n" +
+                "\n" +
+                "        RejectedException(String endpointClass, int retryAfterSeconds) {\n" +
+                "            super(\"Too many \" + endpointClass + \" requests in flight\");\n" +
+                "            this.retryAfterSeconds = retryAfterSeconds;\n" +
+                "        }\n" +
+                "\n" +
+                "        public int getRetryAfterSeconds() {\n" +
+                "            return retryAfterSeconds;\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "AdmissionControl.java", contents);
+    }
+
+    private boolean makeAdmissionControlAdvice() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import org.springframework.http.HttpHeaders;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.http.ResponseEntity;\n" +
+                "import org.springframework.web.bind.annotation.ExceptionHandler;\n" +
+                "import org.springframework.web.bind.annotation.RestControllerAdvice;\n" +
+                "\n" +
+                "/**\n" +
+                " * Answers requests turned away by AdmissionControl with 429 Too Many Requests and a\n" +
+                " * Retry-After header, writes refused by a full WriteBehindSpool with 503, and rows\n" +
+                " * the spool could never write with 400.\n" +
+                " */\n" +
+                "@RestControllerAdvice\n" +
+                "public class AdmissionControlAdvice {\n" +
+                "    @ExceptionHandler(AdmissionControl.RejectedException.class)\n" +
+                "    public ResponseEntity<String> rejected(AdmissionControl.RejectedException e) {\n" +
+                "        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)\n" +
+                "                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))\n" +
+                "                .body(e.getMessage());\n" +
+                "    }\n" +
+                "\n" +
+                "    @ExceptionHandler(WriteBehindSpool.FullException.class)\n" +
+                "    public ResponseEntity<String> spoolFull(WriteBehindSpool.FullException e) {\n" +
+                "        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(e.getMessage());\n" +
+                "    }\n" +
+                "\n" +
+                "    @ExceptionHandler(WriteBehindSpool.InvalidRowException.class)\n" +
+                "    public ResponseEntity<String> spoolInvalid(WriteBehindSpool.InvalidRowException e) {\n" +
+                "        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(e.getMessage());\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "AdmissionControlAdvice.java", contents);
+    }
+
+    private boolean makeAggregates() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.cql.reactive.ReactiveResultSet;\n" +
+                "import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.util.LinkedHashMap;\n" +
+                "import java.util.Map;\n" +
+                "\n" +
+                "/**\n" +
+                " * Rows of the generated aggregate and projected queries, as column name to value maps.\n" +
+                " */\n" +
+                "public final class Aggregates {\n" +
+                "    private Aggregates() {\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Publisher<Map<String, Object>> rows(ReactiveResultSet rows) {\n" +
+                "        return Flux.from(rows).map(Aggregates::toMap);\n" +
+                "    }\n" +
+                "\n" +
+                "    public static Map<String, Object> toMap(Row row) {\n" +
+                "        ColumnDefinitions columns = row.getColumnDefinitions();\n" +
+                "        Map<String, Object> values = new LinkedHashMap<String, Object>();\n" +
+                "        for (int i = 0; i < columns.size(); i++)\n" +
+                "            values.put(columns.get(i).getName().asInternal(), row.getObject(i));\n" +
+                "        return values;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "Aggregates.java", contents);
+    }
+
+    private boolean makeProjections() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;\n" +
+                "import com.datastax.oss.driver.api.core.cql.PreparedStatement;\n" +
+                "import com.github.benmanes.caffeine.cache.Cache;\n" +
+                "import com.github.benmanes.caffeine.cache.Caffeine;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "import java.util.*;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Reads with a column projection (the fields parameter of the generated read\n" +
+                " * endpoints): only the requested columns are selected, so the rest are neither\n" +
+                " * read, sent, decoded nor serialized.  Each query shape (the columns and the rest\n" +
+                " * of the query) is prepared once, on first use, and the prepared statement is\n" +
+                " * reused after that.\n" +
+                " */\n" +
+                "public class Projections {\n" +
+                "    @Autowired\n" +
+                "    private DseSession session;\n" +
+                "\n" +
+                "    @Value(\"${ambien.projection.maxShapes:1000}\")\n" +
+                "    private int maxShapes;\n" +
+                "\n" +
+                "    private Cache<String, CompletionStage<PreparedStatement>> prepared;\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    public void init() {\n" +
+                "        prepared = Caffeine.newBuilder().maximumSize(maxShapes).build();\n" +
+                "    }\n" +
+                "\n" +
+                "    // fields is a comma-separated list of columns, each of which must be one of the\n" +
+                "    // table's columns.  clause is the rest of the query after the table: its positional\n" +
+                "    // markers are bound to values, and bind sets any named ones and the execution profile.\n" +
+                "    public Publisher<Map<String, Object>> select(String keyspace, String table, List<String> columns, String fields,\n" +
+                "                                                 String clause, Function<BoundStatementBuilder, BoundStatementBuilder> bind,\n" +
+                "                                                 Object... values) {\n" +
+                "        String query = query(keyspace, table, columns, fields, clause);\n" +
+                "        return Mono.fromCompletionStage(prepare(query))\n" +
+                "                .flatMapMany(ps -> Aggregates.rows(session.executeReactive(bind.apply(ps.boundStatementBuilder(values)).build())));\n" +
+                "    }\n" +
+                "\n" +
+                "    // One page of the same read, for requests with a pageSize; bind also sets the page\n" +
+                "    // size and paging state (AmbienPage.paging)\n" +
+                "    public CompletionStage<AmbienPage<Map<String, Object>>> page(String keyspace, String table, List<String> columns, String fields,\n" +
+                "                                                                 String clause, Function<BoundStatementBuilder, BoundStatementBuilder> bind,\n" +
+                "                                                                 Object... values) {\n" +
+                "        String query = query(keyspace, table, columns, fields, clause);\n" +
+                "        return AmbienPage.ofRows(prepare(query)\n" +
+                "                .thenCompose(ps -> session.executeAsync(bind.apply(ps.boundStatementBuilder(values)).build())));\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String query(String keyspace, String table, List<String> columns, String fields, String clause) {\n" +
+                "        return \"SELECT \" + selectors(columns, fields)\n" +
+                "                + \" FROM \" + CqlIdentifier.fromInternal(keyspace).asCql(true) + \".\" + CqlIdentifier.fromInternal(table).asCql(true)\n" +
+                "                + (clause.isEmpty() ? \"\" : \" \" + clause);\n" +
+                "    }\n" +
+                "\n" +
+                "    // The requested columns in table order, so the same set of fields is the same shape\n" +
+                "    private static String selectors(List<String> columns, String fields) {\n" +
+                "        Set<String> requested = new HashSet<String>();\n" +
+                "        for (String field : fields.split(\",\")) {\n" +
+                "            field = field.trim();\n" +
+                "            if (field.isEmpty())\n" +
+                "                continue;\n" +
+                "            if (!columns.contains(field))\n" +
+                "                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"Unknown field \" + field + \", expected one of \" + columns);\n" +
+                "            requested.add(field);\n" +
+                "        }\n" +
+                "        if (requested.isEmpty())\n" +
+                "            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"fields must name at least one of \" + columns);\n" +
+                "        StringJoiner selectors = new StringJoiner(\", \");\n" +
+                "        for (String column : columns)\n" +
+                "            if (requested.contains(column))\n" +
+                "                selectors.add(CqlIdentifier.fromInternal(column).asCql(true));\n" +
+                "        return selectors.toString();\n" +
+                "    }\n" +
+                "\n" +
+                "    private CompletionStage<PreparedStatement> prepare(String query) {\n" +
+                "        CompletionStage<PreparedStatement> statement = prepared.get(query, session::prepareAsync);\n" +
+                "        // Do not keep a failed preparation, so the next request tries again\n" +
+                "        statement.whenComplete((ps, e) -> {\n" +
+                "            if (null != e)\n" +
+                "                prepared.asMap().remove(query, statement);\n" +
+                "        });\n" +
+                "        return statement;\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "Projections.java", contents);
+    }
+
+    private boolean makeBinaryFormats() {
+        if (params.isWebflux())
+            return makeWebfluxBinaryFormats();
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.fasterxml.jackson.dataformat.cbor.CBORFactory;\n" +
+                "import com.fasterxml.jackson.dataformat.smile.SmileFactory;\n" +
+                "import org.springframework.context.annotation.Bean;\n" +
+                "import org.springframework.context.annotation.Configuration;\n" +
+                "import org.springframework.http.converter.cbor.MappingJackson2CborHttpMessageConverter;\n" +
+                "import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;\n" +
+                "import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;\n" +
+                "\n" +
+                "/**\n" +
+                " * CBOR (application/cbor) and Smile (application/x-jackson-smile) for clients that\n" +
+                " * ask for them in Accept.  They are written by the same Jackson settings as JSON,\n" +
+                " * which stays the default.  Protobuf is written by the controllers' Protobuf\n" +
+                " * methods (see StreamingResponses).\n" +
+                " */\n" +
+                "@Configuration\n" +
+                "public class BinaryFormats {\n" +
+                "    @Bean\n" +
+                "    public MappingJackson2CborHttpMessageConverter cborHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {\n" +
+                "        return new MappingJackson2CborHttpMessageConverter(builder.factory(new CBORFactory()).build());\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public MappingJackson2SmileHttpMessageConverter smileHttpMessageConverter(Jackson2ObjectMapperBuilder builder) {\n" +
+                "        return new MappingJackson2SmileHttpMessageConverter(builder.factory(new SmileFactory()).build());\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "BinaryFormats.java", contents);
+    }
+
+    private boolean makeWebfluxBinaryFormats() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import com.fasterxml.jackson.dataformat.cbor.CBORFactory;\n" +
+                "import com.fasterxml.jackson.dataformat.smile.SmileFactory;\n" +
+                "import org.springframework.boot.web.codec.CodecCustomizer;\n" +
+                "import org.springframework.context.annotation.Bean;\n" +
+                "import org.springframework.context.annotation.Configuration;\n" +
+                "import org.springframework.http.codec.json.Jackson2JsonEncoder;\n" +
+                "import org.springframework.http.codec.json.Jackson2SmileDecoder;\n" +
+                "import org.springframework.http.codec.json.Jackson2SmileEncoder;\n" +
+                "import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;\n" +
+                "import org.springframework.util.MimeType;\n" +
+                "\n" +
+                "/**\n" +
+                " * CBOR (application/cbor) and Smile (application/x-jackson-smile) for clients that\n" +
+                " * ask for them in Accept.  They are written by the same Jackson settings as JSON,\n" +
+                " * which stays the default.  Protobuf is written by the controllers' Protobuf\n" +
+                " * methods (see StreamingResponses).\n" +
+                " */\n" +
+                "@Configuration\n" +
+                "public class BinaryFormats {\n" +
+                "    public static final MimeType CBOR = new MimeType(\"application\", \"cbor\");\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public CodecCustomizer cborCodecCustomizer(Jackson2ObjectMapperBuilder builder) {\n" +
+                "        ObjectMapper mapper = builder.factory(new CBORFactory()).build();\n" +
+                "        // Responses only: WebFlux's Jackson decoders need a non-blocking parser, which CBOR does not have\n" +
+                "        return configurer -> configurer.customCodecs().encoder(new Jackson2JsonEncoder(mapper, CBOR));\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public CodecCustomizer smileCodecCustomizer(Jackson2ObjectMapperBuilder builder) {\n" +
+                "        ObjectMapper mapper = builder.factory(new SmileFactory()).build();\n" +
+                "        return configurer -> {\n" +
+                "            configurer.customCodecs().encoder(new Jackson2SmileEncoder(mapper));\n" +
+                "            configurer.customCodecs().decoder(new Jackson2SmileDecoder(mapper));\n" +
+                "        };\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "BinaryFormats.java", contents);
+    }
+
+    private boolean makeSearchQueries() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.fasterxml.jackson.core.JsonProcessingException;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "\n" +
+                "import java.util.LinkedHashMap;\n" +
+                "import java.util.Map;\n" +
+                "\n" +
+                "/**\n" +
+                " * solr_query values for the generated DSE Search endpoints.  Each is a JSON query with\n" +
+                " * \"paging\":\"driver\", so results are paged by the driver like any other read and the\n" +
+                " * endpoints can hand out cursors.  Search queries are answered by the search index on\n" +
+                " * each node, so no replica is scanned and nothing is filtered by the coordinator.\n" +
+                " */\n" +
+                "public final class SearchQueries {\n" +
+                "    private static final ObjectMapper MAPPER = new ObjectMapper();\n" +
+                "    // Characters with a meaning in the Solr query syntax\n" +
+                "    private static final String SPECIAL = \"\\\\+-!():^[]\\\"{}~*?|&/\";\n" +
+                "\n" +
+                "    private SearchQueries() {\n" +
+                "    }\n" +
+                "\n" +
+                "    // A raw Solr query, e.g. name:ab* AND amount:[10 TO *]\n" +
+                "    public static String query(String q) {\n" +
+                "        return json(q, null);\n" +
+                "    }\n" +
+                "\n" +
+                "    // field equal to value\n" +
+                "    public static String term(String field, String value) {\n" +
+                "        return json(field + \":\" + escape(value, \"\"), null);\n" +
+                "    }\n" +
+                "\n" +
+                "    // field matching pattern, where * is any run of characters and ? any one\n" +
+                "    public static String wildcard(String field, String pattern) {\n" +
+                "        return json(field + \":\" + escape(pattern, \"*?\"), null);\n" +
+                "    }\n" +
+                "\n" +
+                "    // field between from and to, inclusive; * leaves that side open\n" +
+                "    public static String range(String field, String from, String to) {\n" +
+                "        return json(field + \":[\" + bound(from) + \" TO \" + bound(to) + \"]\", null);\n" +
+                "    }\n" +
+                "\n" +
+                "    // field within km kilometers of the point lat,lon\n" +
+                "    public static String geo(String field, double lat, double lon, double km) {\n" +
+                "        return json(\"*:*\", \"{!geofilt sfield=\" + field + \" pt=\" + lat + \",\" + lon + \" d=\" + km + \"}\");\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String bound(String value) {\n" +
+                "        return (null == value || value.isEmpty() || \"*\".equals(value)) ? \"*\" : escape(value, \"\");\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String escape(String value, String keep) {\n" +
+                "        StringBuilder escaped = new StringBuilder();\n" +
+                "        for (char c : value.toCharArray()) {\n" +
+                "            if ((SPECIAL.indexOf(c) >= 0 && keep.indexOf(c) < 0) || Character.isWhitespace(c))\n" +
+                "                escaped.append('\\\\');\n" +
+                "            escaped.append(c);\n" +
+                "        }\n" +
+                "        return escaped.toString();\n" +
+                "    }\n" +
+                "\n" +
+                "    private static String json(String q, String fq) {\n" +
+                "        Map<String, String> query = new LinkedHashMap<String, String>();\n" +
+                "        query.put(\"q\", q);\n" +
+                "        if (null != fq)\n" +
+                "            query.put(\"fq\", fq);\n" +
+                "        query.put(\"paging\", \"driver\");\n" +
+                "        try {\n" +
+                "            return MAPPER.writeValueAsString(query);\n" +
+                "        }\n" +
+                "        catch (JsonProcessingException e) {\n" +
+                "            throw new IllegalArgumentException(e);\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "SearchQueries.java", contents);
+    }
+
+    private boolean makeGuardrails() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.dse.driver.api.core.DseSession;\n" +
+                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import com.datastax.oss.driver.api.core.cql.SimpleStatement;\n" +
+                "import com.datastax.oss.driver.api.core.loadbalancing.NodeDistance;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.Node;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.NodeState;\n" +
+                "import com.datastax.oss.driver.api.core.metadata.TokenMap;\n" +
+                "import io.micrometer.core.instrument.Gauge;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.slf4j.Logger;\n" +
+                "import org.slf4j.LoggerFactory;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.core.env.Environment;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "import reactor.core.publisher.Mono;\n" +
+                "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "\n" +
+                "import java.time.Duration;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.HashMap;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.Optional;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.concurrent.ConcurrentHashMap;\n" +
+                "import java.util.concurrent.Semaphore;\n" +
+                "import java.util.concurrent.ThreadLocalRandom;\n" +
+                "import java.util.concurrent.TimeoutException;\n" +
+                "import java.util.concurrent.atomic.AtomicBoolean;\n" +
+                "\n" +
+                "/**\n" +
+                " * Guardrails for the generated read endpoints, on top of AdmissionControl:\n" +
+                " *   - a timeout per endpoint (ambien.<keyspace>.<table>.<endpoint>.timeoutMillis, or else\n" +
+                " *     ambien.guardrails.<class>.timeoutMillis); a read still running then is cancelled and\n" +
+                " *     answered with 504\n" +
+                " *   - a fixed cap on scan-class requests in flight (ambien.guardrails.scan.maxConcurrent),\n" +
+                " *     which holds even when admission control is off; requests over it get 429\n" +
+                " *   - a maximum for the some= limit (ambien.guardrails.some.maxLimit), 400 over it\n" +
+                " *   - a cost check for the ALLOW FILTERING reads, which read and filter a whole partition\n" +
+                " *     on a replica: when the table's mean partition in system.size_estimates is over\n" +
+                " *     ambien.guardrails.filtering.maxPartitionBytes they are refused with 400\n" +
+                " * Each refusal is counted in ambien.guardrails.rejected, tagged by keyspace, table,\n" +
+                " * endpoint and reason (timeout, concurrency, limit or cost).  ALLOW FILTERING reads let\n" +
+                " * through because the table has no size estimate yet are counted in\n" +
+                " * ambien.guardrails.unchecked, tagged by keyspace, table and endpoint.\n" +
+                " */\n" +
+                "public class Guardrails {\n" +
+                "    private static final Logger logger = LoggerFactory.getLogger(Guardrails.class);\n" +
+                "\n" +
+                "    public static final String TIMEOUT = \"timeout\";\n" +
+                "    public static final String CONCURRENCY = \"concurrency\";\n" +
+                "    public static final String LIMIT = \"limit\";\n" +
+                "    public static final String COST = \"cost\";\n" +
+                "\n" +
+                "    // The mean partition size of a table with no estimate\n" +
+                "    private static final long UNKNOWN = -1;\n" +
+                "\n" +
+                "    private static final Map<String, Long> DEFAULT_TIMEOUT_MILLIS = new HashMap<String, Long>();\n" +
+                "    static {\n" +
+                "        DEFAULT_TIMEOUT_MILLIS.put(ExecutionProfiles.POINT_READ, 2000L);\n" +
+                "        DEFAULT_TIMEOUT_MILLIS.put(ExecutionProfiles.SLICE_READ, 10000L);\n" +
+                "        DEFAULT_TIMEOUT_MILLIS.put(ExecutionProfiles.SCAN, 300000L);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private Environment environment;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private MeterRegistry meterRegistry;\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private DseSession session;\n" +
+                "\n" +
+                "    @Value(\"${ambien.guardrails.enabled:true}\")\n" +
+                "    private boolean enabled;\n" +
+                "\n" +
+                "    @Value(\"${ambien.guardrails.scan.maxConcurrent:4}\")\n" +
+                "    private int maxConcurrentScans;\n" +
+                "\n" +
+                "    @Value(\"${ambien.guardrails.some.maxLimit:10000}\")\n" +
+                "    private int maxSomeLimit;\n" +
+                "\n" +
+                "    @Value(\"${ambien.guardrails.filtering.maxPartitionBytes:104857600}\")\n" +
+                "    private long maxFilteredPartitionBytes;\n" +
+                "\n" +
+                "    @Value(\"${ambien.guardrails.estimates.refreshSeconds:300}\")\n" +
+                "    private long estimatesRefreshSeconds;\n" +
+                "\n" +
+                "    @Value(\"${ambien.admission.retryAfterSeconds:1}\")\n" +
+                "    private int retryAfterSeconds;\n" +
+                "\n" +
+                "    private Semaphore scans;\n" +
+                "\n" +
+                "    @PostConstruct\n" +
+                "    private void init() {\n" +
+                "        scans = new Semaphore(maxConcurrentScans);\n" +
+                "        Gauge.builder(\"ambien.guardrails.scans.inFlight\", scans, s -> maxConcurrentScans - s.availablePermits())\n" +
+                "                .register(meterRegistry);\n" +
+                "    }\n" +
+                "\n" +
+                "    public Table table(String keyspace, String table) {\n" +
+                "        return new Table(keyspace, table);\n" +
+                "    }\n" +
+                "\n" +
+                "    public class Table {\n" +
+                "        private final String keyspace;\n" +
+                "        private final String table;\n" +
+                "        private final Map<String, Duration> timeouts = new ConcurrentHashMap<String, Duration>();\n" +
+                "        private final AtomicBoolean refreshing = new AtomicBoolean(false);\n" +
+                "        private volatile Estimate estimate = null;\n" +
+                "\n" +
+                "        private Table(String keyspace, String table) {\n" +
+                "            this.keyspace = keyspace;\n" +
+                "            this.table = table;\n" +
+                "        }\n" +
+                "\n" +
+                "        // A read, cut off at the endpoint's timeout; a scan also holds one of the scan permits\n" +
+                "        // until its rows end\n" +
+                "        public <T, E extends Exception> Flux<T> rows(String endpointClass, String endpoint,\n" +
+                "                                                     AdmissionControl.Call<Publisher<T>, E> read) throws E {\n" +
+                "            if (!enabled)\n" +
+                "                return Flux.from(read.call());\n" +
+                "            boolean scan = ExecutionProfiles.SCAN.equals(endpointClass);\n" +
+                "            if (scan && !scans.tryAcquire()) {\n" +
+                "                rejected(endpoint, CONCURRENCY);\n" +
+                "                throw new AdmissionControl.RejectedException(endpointClass, retryAfterSeconds);\n" +
+                "            }\n" +
+                "            Publisher<T> rows;\n" +
+                "            try {\n" +
+                "                rows = read.call();\n" +
+                "            }\n" +
+                "            catch (Exception | Error e) {\n" +
+                "                if (scan)\n" +
+                "                    scans.release();\n" +
+                "                throw e;\n" +
+                "            }\n" +
+                "            Duration timeout = timeout(endpointClass, endpoint);\n" +
+                "            Flux<T> limited = Flux.defer(() -> {\n" +
+                "                long deadline = System.nanoTime() + timeout.toNanos();\n" +
+                "                return Flux.from(rows).timeout(Mono.delay(timeout),\n" +
+                "                        row -> Mono.delay(Duration.ofNanos(Math.max(0, deadline - System.nanoTime()))));\n" +
+                "            }).onErrorMap(TimeoutException.class, e -> {\n" +
+                "                rejected(endpoint, TIMEOUT);\n" +
+                "                return new ResponseStatusException(HttpStatus.GATEWAY_TIMEOUT,\n" +
+                "                        \"Read took longer than \" + timeout.toMillis() + \" ms\");\n" +
+                "            });\n" +
+                "            return scan ? limited.doFinally(signal -> scans.release()) : limited;\n" +
+                "        }\n" +
+                "\n" +
+                "        // A paged read, under the same guardrails\n" +
+                "        public <T, E extends Exception> CompletionStage<T> stage(String endpointClass, String endpoint,\n" +
+                "                                                                AdmissionControl.Call<CompletionStage<T>, E> call) throws E {\n" +
+                "            return rows(endpointClass, endpoint, () -> Mono.fromCompletionStage(call.call())).single().toFuture();\n" +
+                "        }\n" +
+                "\n" +
+                "        // The some= limit, checked against the maximum\n" +
+                "        public int limit(String endpoint, int limit) {\n" +
+                "            if (enabled && ((limit < 1) || (limit > maxSomeLimit))) {\n" +
+                "                rejected(endpoint, LIMIT);\n" +
+                "                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"The limit must be between 1 and \" + maxSomeLimit);\n" +
+                "            }\n" +
+                "            return limit;\n" +
+                "        }\n" +
+                "\n" +
+                "        // Refuses an ALLOW FILTERING read when the table's partitions are too big to filter.\n" +
+                "        // Until there is an estimate, reads are let through and counted as unchecked.\n" +
+                "        public void filtering(String endpoint) {\n" +
+                "            if (!enabled)\n" +
+                "                return;\n" +
+                "            Estimate current = estimate;\n" +
+                "            if (((null == current) || current.isStale()) && refreshing.compareAndSet(false, true))\n" +
+                "                refresh();\n" +
+                "            if ((null == current) || (UNKNOWN == current.meanPartitionBytes)) {\n" +
+                "                meterRegistry.counter(\"ambien.guardrails.unchecked\", \"keyspace\", keyspace, \"table\", table,\n" +
+                "                        \"endpoint\", endpoint).increment();\n" +
+                "                return;\n" +
+                "            }\n" +
+                "            if (current.meanPartitionBytes > maxFilteredPartitionBytes) {\n" +
+                "                rejected(endpoint, COST);\n" +
+                "                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, \"Filtering is refused on \" + keyspace + \".\" + table\n" +
+                "                        + \": its partitions are estimated at \" + current.meanPartitionBytes + \" bytes, over \"\n" +
+                "                        + maxFilteredPartitionBytes + \"; use a read by key instead\");\n" +
+                "            }\n" +
+                "        }\n" +
+                "\n" +
+                "        private Duration timeout(String endpointClass, String endpoint) {\n" +
+                "            return timeouts.computeIfAbsent(endpoint, e -> Duration.ofMillis(environment.getProperty(\n" +
+                "                    \"ambien.\" + keyspace + \".\" + table + \".\" + e + \".timeoutMillis\", Long.class,\n" +
+                "                    environment.getProperty(\"ambien.guardrails.\" + endpointClass + \".timeoutMillis\", Long.class,\n" +
+                "                            DEFAULT_TIMEOUT_MILLIS.getOrDefault(endpointClass, 30000L)))));\n" +
+                "        }\n" +
+                "\n" +
+                "        // system.size_estimates is local to the node that answers, and has one row per token\n" +
+                "        // range it owns, so one page holds all of them.  A node that is not a replica of the\n" +
+                "        // keyspace has no rows for the table, so the query goes to a replica.  No partitions\n" +
+                "        // means that node has not estimated the table yet (it is new, or not yet flushed),\n" +
+                "        // which is unknown rather than small.  A failed refresh is unknown too, and either\n" +
+                "        // way the next refresh is after estimatesRefreshSeconds, maybe from another replica.\n" +
+                "        private void refresh() {\n" +
+                "            Node replica = replica();\n" +
+                "            SimpleStatement statement = SimpleStatement.newInstance(\"SELECT partitions_count, mean_partition_size \"\n" +
+                "                    + \"FROM system.size_estimates WHERE keyspace_name = ? AND table_name = ?\", keyspace, table);\n" +
+                "            if (null != replica)\n" +
+                "                statement = statement.setNode(replica);\n" +
+                "            String from = (null == replica) ? \"the coordinator\" : replica.getEndPoint().toString();\n" +
+                "            session.executeAsync(statement)\n" +
+                "                    .whenComplete((rs, error) -> {\n" +
+                "                        try {\n" +
+                "                            if (null != error) {\n" +
+                "                                logger.warn(\"Could not read the size estimates of {}.{} from {}; its ALLOW FILTERING \"\n" +
+                "                                        + \"reads are not checked until they can be read\", keyspace, table, from, error);\n" +
+                "                                estimate = new Estimate(UNKNOWN);\n" +
+                "                                return;\n" +
+                "                            }\n" +
+                "                            long partitions = 0;\n" +
+                "                            double bytes = 0;\n" +
+                "                            for (Row row : rs.currentPage()) {\n" +
+                "                                partitions += row.getLong(\"partitions_count\");\n" +
+                "                                bytes += (double) row.getLong(\"partitions_count\") * row.getLong(\"mean_partition_size\");\n" +
+                "                            }\n" +
+                "                            if (0 == partitions)\n" +
+                "                                logger.warn(\"{} has no size estimate for {}.{} yet; its ALLOW FILTERING reads are not \"\n" +
+                "                                        + \"checked until it has one\", from, keyspace, table);\n" +
+                "                            estimate = new Estimate((0 == partitions) ? UNKNOWN : (long) (bytes / partitions));\n" +
+                "                        }\n" +
+                "                        finally {\n" +
+                "                            refreshing.set(false);\n" +
+                "                        }\n" +
+                "                    });\n" +
+                "        }\n" +
+                "\n" +
+                "        // An up replica of the keyspace that the driver has connections to, picked at random\n" +
+                "        // and from the local data center if there is one there; null if the token map is off\n" +
+                "        private Node replica() {\n" +
+                "            Optional<TokenMap> tokenMap = session.getMetadata().getTokenMap();\n" +
+                "            if (!tokenMap.isPresent())\n" +
+                "                return null;\n" +
+                "            CqlIdentifier keyspaceId = CqlIdentifier.fromInternal(keyspace);\n" +
+                "            List<Node> local = new ArrayList<Node>();\n" +
+                "            List<Node> remote = new ArrayList<Node>();\n" +
+                "            for (Node node : session.getMetadata().getNodes().values()) {\n" +
+                "                if ((NodeState.UP != node.getState()) || (NodeDistance.IGNORED == node.getDistance())\n" +
+                "                        || tokenMap.get().getTokenRanges(keyspaceId, node).isEmpty())\n" +
+                "                    continue;\n" +
+                "                if (NodeDistance.LOCAL == node.getDistance())\n" +
+                "                    local.add(node);\n" +
+                "                else\n" +
+                "                    remote.add(node);\n" +
+                "            }\n" +
+                "            List<Node> replicas = local.isEmpty() ? remote : local;\n" +
+                "            return replicas.isEmpty() ? null : replicas.get(ThreadLocalRandom.current().nextInt(replicas.size()));\n" +
+                "        }\n" +
+                "\n" +
+                "        private void rejected(String endpoint, String reason) {\n" +
+                "            meterRegistry.counter(\"ambien.guardrails.rejected\", \"keyspace\", keyspace, \"table\", table,\n" +
+                "                    \"endpoint\", endpoint, \"reason\", reason).increment();\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    private class Estimate {\n" +
+                "        private final long meanPartitionBytes;\n" +
+                "        private final long time = System.nanoTime();\n" +
+                "\n" +
+                "        private Estimate(long meanPartitionBytes) {\n" +
+                "            this.meanPartitionBytes = meanPartitionBytes;\n" +
+                "        }\n" +
+                "\n" +
+                "        private boolean isStale() {\n" +
+                "            return System.nanoTime() - time > estimatesRefreshSeconds * 1000000000L;\n" +
+                "        }\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "Guardrails.java", contents);
+    }
+
+    private boolean makeJsonWriterBenchmark() {
+        String contents = "package " + params.package_name + ";\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import com.fasterxml.jackson.core.JsonGenerator;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import com.fasterxml.jackson.databind.ObjectWriter;\n" +
+                "import com.fasterxml.jackson.databind.SerializationFeature;\n" +
+                "import org.reactivestreams.Publisher;\n" +
+                "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.boot.actuate.endpoint.annotation.Endpoint;\n" +
+                "import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;\n" +
+                "import reactor.core.publisher.Flux;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                "import java.io.OutputStream;\n" +
+                "import java.lang.management.ManagementFactory;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.LinkedHashMap;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.CopyOnWriteArrayList;\n" +
+                "import java.util.function.Function;\n" +
+                "\n" +
+                "/**\n" +
+                " * Compares, at /actuator/jsonbenchmark, the generated <Table>RowJsonWriter with mapping\n" +
+                " * each row to its entity and serializing that with Jackson, which is what the JSON\n" +
+                " * endpoints without streaming do.  For each table it reads up to sampleRows rows once,\n" +
+                " * writes them both ways iterations times to a stream that discards the bytes, and\n" +
+                " * reports the bytes allocated per row (from the JVM's per-thread allocation counter)\n" +
+                " * and the nanoseconds per row.  Each way runs once before it is measured, so class\n" +
+                " * loading and the first compilations are not counted.\n" +
+                " */\n" +
+                "@Endpoint(id = \"jsonbenchmark\")\n" +
+                "public class JsonWriterBenchmark {\n" +
+                "    private static final OutputStream DISCARD = new OutputStream() {\n" +
+                "        @Override\n" +
+                "        public void write(int b) {\n" +
+                "        }\n" +
+                "\n" +
+                "        @Override\n" +
+                "        public void write(byte[] b, int off, int len) {\n" +
+                "        }\n" +
+                "    };\n" +
+                "\n" +
+                "    private static class Table<E> {\n" +
+                "        private final String name;\n" +
+                "        private final Function<Integer, Publisher<? extends Row>> sample;\n" +
+                "        private final StreamingResponses.JsonWriter<Row> rowWriter;\n" +
+                "        private final Function<Row, E> toEntity;\n" +
+                "\n" +
+                "        private Table(String name, Function<Integer, Publisher<? extends Row>> sample,\n" +
+                "                      StreamingResponses.JsonWriter<Row> rowWriter, Function<Row, E> toEntity) {\n" +
+                "            this.name = name;\n" +
+                "            this.sample = sample;\n" +
+                "            this.rowWriter = rowWriter;\n" +
+                "            this.toEntity = toEntity;\n" +
+                "        }\n" +
+                "    }\n" +
+                "\n" +
+                "    @Autowired\n" +
+                "    private ObjectMapper objectMapper;\n" +
+                "\n" +
+                "    @Value(\"${ambien.jsonBenchmark.sampleRows:1000}\")\n" +
+                "    private int sampleRows;\n" +
+                "\n" +
+                "    @Value(\"${ambien.jsonBenchmark.iterations:20}\")\n" +
+                "    private int iterations;\n" +
+                "\n" +
+                "    private final List<Table<?>> tables = new CopyOnWriteArrayList<Table<?>>();\n" +
+                "\n" +
+                "    // Called by each controller: how to read sample rows, the generated writer, and the\n" +
+                "    // mapper's conversion of a row to the entity\n" +
+                "    public <E> void table(String keyspace, String table, Function<Integer, Publisher<? extends Row>> sample,\n" +
+                "                          StreamingResponses.JsonWriter<Row> rowWriter, Function<Row, E> toEntity) {\n" +
+                "        tables.add(new Table<E>(keyspace + \".\" + table, sample, rowWriter, toEntity));\n" +
+                "    }\n" +
+                "\n" +
+                "    @ReadOperation\n" +
+                "    public Map<String, Map<String, Object>> run() throws IOException {\n" +
+                "        Map<String, Map<String, Object>> report = new LinkedHashMap<String, Map<String, Object>>();\n" +
+                "        for (Table<?> table : tables)\n" +
+                "            report.put(table.name, run(table));\n" +
+                "        return report;\n" +
+                "    }\n" +
+                "\n" +
+                "    private <E> Map<String, Object> run(Table<E> table) throws IOException {\n" +
+                "        List<Row> rows = new ArrayList<Row>();\n" +
+                "        for (Row row : Flux.from(table.sample.apply(sampleRows)).toIterable())\n" +
+                "            rows.add(row);\n" +
+                "        Map<String, Object> result = new LinkedHashMap<String, Object>();\n" +
+                "        result.put(\"rows\", rows.size());\n" +
+                "        result.put(\"iterations\", iterations);\n" +
+                "        if (rows.isEmpty())\n" +
+                "            return result;\n" +
+                "\n" +
+                "        ObjectWriter writer = objectMapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);\n" +
+                "        StreamingResponses.JsonWriter<Row> viaEntity = (row, generator) -> writer.writeValue(generator, table.toEntity.apply(row));\n" +
+                "        write(rows, table.rowWriter);\n" +
+                "        write(rows, viaEntity);\n" +
+                "        Map<String, Object> rowWriter = measure(rows, table.rowWriter);\n" +
+                "        Map<String, Object> entity = measure(rows, viaEntity);\n" +
+                "        result.put(\"rowJsonWriter\", rowWriter);\n" +
+                "        result.put(\"entityAndJackson\", entity);\n" +
+                "        long rowBytes = (Long) rowWriter.get(\"bytesAllocatedPerRow\");\n" +
+                "        long entityBytes = (Long) entity.get(\"bytesAllocatedPerRow\");\n" +
+                "        if ((rowBytes >= 0) && (entityBytes > 0))\n" +
+                "            result.put(\"allocationSavedPercent\", 100 * (entityBytes - rowBytes) / entityBytes);\n" +
+                "        return result;\n" +
+                "    }\n" +
+                "\n" +
+                "    private Map<String, Object> measure(List<Row> rows, StreamingResponses.JsonWriter<Row> writer) throws IOException {\n" +
+                "        long count = (long) iterations * rows.size();\n" +
+                "        long allocatedBefore = allocatedBytes();\n" +
+                "        long start = System.nanoTime();\n" +
+                "        for (int i = 0; i < iterations; i++)\n" +
+                "            write(rows, writer);\n" +
+                "        long nanos = System.nanoTime() - start;\n" +
+                "        long allocatedAfter = allocatedBytes();\n" +
+                "        Map<String, Object> stats = new LinkedHashMap<String, Object>();\n" +
+                "        // -1 when the JVM cannot count allocations per thread\n" +
+                "        stats.put(\"bytesAllocatedPerRow\", (allocatedBefore < 0) ? -1L : (allocatedAfter - allocatedBefore) / count);\n" +
+                "        stats.put(\"nanosPerRow\", nanos / count);\n" +
+                "        return stats;\n" +
+                "    }\n" +
+                "\n" +
+                "    // Writes the rows as NDJSON, the same way StreamingResponses does\n" +
+                "    private void write(List<Row> rows, StreamingResponses.JsonWriter<Row> writer) throws IOException {\n" +
+                "        JsonGenerator generator = objectMapper.getFactory().createGenerator(DISCARD);\n" +
+                "        generator.setRootValueSeparator(null);\n" +
+                "        for (Row row : rows) {\n" +
+                "            writer.write(row, generator);\n" +
+                "            generator.writeRaw(\"\\n\");\n" +
+                "        }\n" +
+                "        generator.close();\n" +
+                "    }\n" +
+                "\n" +
+                "    private static long allocatedBytes() {\n" +
+                "        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();\n" +
+                "        if (!(bean instanceof com.sun.management.ThreadMXBean))\n" +
+                "            return -1;\n" +
+                "        com.sun.management.ThreadMXBean counting = (com.sun.management.ThreadMXBean) bean;\n" +
+                "        if (!counting.isThreadAllocatedMemorySupported() || !counting.isThreadAllocatedMemoryEnabled())\n" +
+                "            return -1;\n" +
+                "        return counting.getThreadAllocatedBytes(Thread.currentThread().getId());\n" +
+                "    }\n" +
+                "}\n";
+        return Ambien.writeFile(params.javaSrcDir + File.separator + "JsonWriterBenchmark.java", contents);
+    }
+
     private boolean addKeystore() {
         if (null == params.keystorePath) return true;
         try {
@@ -14,9 +14,17 @@ public class AmbienConfiguration {
                 "\n" +
                 "import com.datastax.dse.driver.api.core.DseSession;\n" +
                 "import com.datastax.dse.driver.api.core.DseSessionBuilder;\n" +
+                "import com.datastax.oss.driver.internal.core.config.typesafe.DefaultDriverConfigLoader;\n" +
+                "import com.fasterxml.jackson.databind.ObjectMapper;\n" +
+                "import com.typesafe.config.ConfigFactory;\n" +
+                "import io.micrometer.core.instrument.MeterRegistry;\n" +
                 "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;\n" +
                 "import org.springframework.context.annotation.Bean;\n" +
                 "import org.springframework.context.annotation.Configuration;\n" +
+                "import org.springframework.core.env.ConfigurableEnvironment;\n" +
+                "import org.springframework.core.env.EnumerablePropertySource;\n" +
+                "import org.springframework.core.env.PropertySource;\n" +
                 "\n" +
                 "import javax.net.ssl.KeyManagerFactory;\n" +
                 "import javax.net.ssl.SSLContext;\n" +
@@ -27,14 +35,19 @@ public class AmbienConfiguration {
                 "import java.io.FileNotFoundException;\n" +
                 "import java.io.IOException;\n" +
                 "import java.net.InetSocketAddress;\n" +
+                "import java.nio.file.Paths;\n" +
                 "import java.security.*;\n" +
                 "import java.security.cert.CertificateException;\n" +
+                "import java.util.HashMap;\n" +
+                "import java.util.Map;\n" +
                 "\n" +
-                "import " + params.package_name + ".dao.*;" +
-                "\n" +
+                "import " + params.package_name + ".dao.*;\n" +
+                "import " + params.package_name + ".domain.*;\n" +
                 "\n" +
                 "@Configuration\n" +
                 "public class AmbienConfiguration {\n" +
+                "    private static final String DRIVER_PREFIX = \"datastax-java-driver.\";\n" +
+                "\n" +
                 "    @Value(\"${dse.contactPoints}\")\n" +
                 "    public String contactPoints;\n" +
                 "\n" +
@@ -50,6 +63,10 @@ public class AmbienConfiguration {
                 "    @Value(\"${dse.password:#{null}}\")\n    public String password;\n\n" +
                 "    @Value(\"${dse.truststorePwd:#{null}}\")\n    public String truststorePwd;\n\n" +
                 "    @Value(\"${dse.keystorePwd:#{null}}\")\n    public String keystorePwd;\n\n" +
+                "    @Value(\"${ambien.writeBehind.dir:spool}\")\n    private String spoolDir;\n\n" +
+                "    @Value(\"${ambien.writeBehind.segmentBytes:67108864}\")\n    private int spoolSegmentBytes;\n\n" +
+                "    @Value(\"${ambien.writeBehind.maxSegments:64}\")\n    private int spoolMaxSegments;\n\n" +
+                "    @Value(\"${ambien.writeBehind.concurrency:32}\")\n    private int spoolConcurrency;\n\n" +
                 "    public String getContactPoints() {\n" +
                 "        return contactPoints;\n" +
                 "    }\n" +
@@ -90,8 +107,24 @@ public class AmbienConfiguration {
                 "\n" +
                 "        return sslContext;\n" +
                 "    }\n" +
+                "\n" +
+                "    // datastax-java-driver.* Spring properties, which take precedence over application.conf\n" +
+                "    private Map<String, Object> driverOverrides(ConfigurableEnvironment environment) {\n" +
+                "        Map<String, Object> overrides = new HashMap<String, Object>();\n" +
+                "        for (PropertySource<?> source : environment.getPropertySources()) {\n" +
+                "            if (!(source instanceof EnumerablePropertySource))\n" +
+                "                continue;\n" +
+                "            for (String name : ((EnumerablePropertySource<?>) source).getPropertyNames()) {\n" +
+                "                if (name.startsWith(DRIVER_PREFIX) && !overrides.containsKey(name))\n" +
+                "                    overrides.put(name, environment.getProperty(name));\n" +
+                "            }\n" +
+                "        }\n" +
+                "        return overrides;\n" +
+                "    }\n" +
+                "\n" +
                 "    @Bean\n" +
-                "    public DseSession dseSession(LastUpdatedStateListener lastUpdatedStateListener, LastUpdatedSchemaListener lastUpdateSchemaListener)" +
+                "    public DseSession dseSession(LastUpdatedStateListener lastUpdatedStateListener, LastUpdatedSchemaListener lastUpdateSchemaListener,\n" +
+                "                                 ConfigurableEnvironment environment)" +
                 "            throws IOException, KeyStoreException, NoSuchAlgorithmException, KeyManagementException,\n" +
                 "               CertificateException, UnrecoverableKeyException {\n" +
                 "        DseSessionBuilder builder = DseSession.builder()\n" +
@@ -103,6 +136,16 @@ public class AmbienConfiguration {
                 "            builder = builder.withSslContext(createSSLOptions());\n" +
                 "        builder.withNodeStateListener(lastUpdatedStateListener);\n" +
                 "        builder.withSchemaChangeListener(lastUpdateSchemaListener);\n" +
+                "        Map<String, Object> overrides = driverOverrides(environment);\n" +
+                "        builder.withConfigLoader(new DefaultDriverConfigLoader(() -> {\n" +
+                "            ConfigFactory.invalidateCaches();\n" +
+                "            return ConfigFactory.parseMap(overrides)\n" +
+                "                    .withFallback(ConfigFactory.defaultOverrides())\n" +
+                "                    .withFallback(ConfigFactory.defaultApplication())\n" +
+                "                    .withFallback(ConfigFactory.parseResourcesAnySyntax(\"dse-reference\"))\n" +
+                "                    .withFallback(ConfigFactory.defaultReference())\n" +
+                "                    .resolve();\n" +
+                "        }));\n" +
                 "\n" +
                 "        return builder.build();\n" +
                 "    }\n" +
@@ -116,12 +159,78 @@ public class AmbienConfiguration {
                 "    public LastUpdatedSchemaListener lastUpdatedSchemaListener() {\n" +
                 "        return new LastUpdatedSchemaListener();\n" +
                 "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public TokenRangeScanner tokenRangeScanner(DseSession dseSession) {\n" +
+                "        return new TokenRangeScanner(dseSession);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public StreamingResponses streamingResponses() {\n" +
+                "        return new StreamingResponses();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public BatchWriter batchWriter() {\n" +
+                "        return new BatchWriter();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public MultiGet multiGet(DseSession dseSession) {\n" +
+                "        return new MultiGet(dseSession);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public Projections projections() {\n" +
+                "        return new Projections();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public Warmup warmup() {\n" +
+                "        return new Warmup();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public AdmissionControl admissionControl() {\n" +
+                "        return new AdmissionControl();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public Guardrails guardrails() {\n" +
+                "        return new Guardrails();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public DriverMetrics driverMetrics(DseSession dseSession) {\n" +
+                "        return new DriverMetrics(dseSession);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public EndpointMetrics endpointMetrics() {\n" +
+                "        return new EndpointMetrics();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public EndpointMetricsFilter endpointMetricsFilter(EndpointMetrics endpointMetrics, Warmup warmup) {\n" +
+                "        return new EndpointMetricsFilter(endpointMetrics, warmup);\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public SpoolEndpoint spoolEndpoint() {\n" +
+                "        return new SpoolEndpoint();\n" +
+                "    }\n" +
+                "\n" +
+                "    @Bean\n" +
+                "    public JsonWriterBenchmark jsonWriterBenchmark() {\n" +
+                "        return new JsonWriterBenchmark();\n" +
+                "    }\n" +
                 "\n");
         for (int i = 0; i < params.keyspace_name.size(); i++) {
             String keyspace_name = params.keyspace_name.get(i);
             String table_name = params.table_name.get(i);
             String cap_name = Ambien.capName(keyspace_name) + Ambien.capName(table_name);
             String camel_name = keyspace_name + Ambien.capName(table_name);
+            String prefix = AmbienParams.propertyPrefix(keyspace_name, table_name);
             sb.append("    @Bean\n" +
                     "    public " + cap_name + "Mapper " + camel_name + "Mapper(DseSession dseSession) {\n" +
                     "        return new " + cap_name + "MapperBuilder(dseSession).build();\n" +
@@ -131,6 +240,23 @@ public class AmbienConfiguration {
                     "    public " + cap_name + "Dao " + camel_name + "Dao(" + cap_name + "Mapper " + camel_name + "Mapper) {\n" +
                     "        return " + camel_name + "Mapper." + camel_name + "Dao(\"" + keyspace_name + "\", \"" + table_name + "\");\n" +
                     "    }\n" +
+                    "\n" +
+                    "    @Bean\n" +
+                    "    @ConditionalOnProperty(name = \"" + prefix + ".cache.enabled\", havingValue = \"true\")\n" +
+                    "    public PartitionCache<" + cap_name + "> " + camel_name + "Cache(MeterRegistry meterRegistry,\n" +
+                    "            @Value(\"${" + prefix + ".cache.maximumRows:100000}\") long maximumRows,\n" +
+                    "            @Value(\"${" + prefix + ".cache.ttlSeconds:60}\") long ttlSeconds) {\n" +
+                    "        return new PartitionCache<" + cap_name + ">(\"" + keyspace_name + "." + table_name + "\", maximumRows, ttlSeconds, meterRegistry);\n" +
+                    "    }\n" +
+                    "\n" +
+                    "    @Bean\n" +
+                    "    @ConditionalOnProperty(name = \"" + prefix + ".writeBehind.enabled\", havingValue = \"true\")\n" +
+                    "    public WriteBehindSpool<" + cap_name + "> " + camel_name + "Spool(" + cap_name + "Dao " + camel_name + "Dao, ObjectMapper objectMapper,\n" +
+                    "            MeterRegistry meterRegistry) throws IOException {\n" +
+                    "        return new WriteBehindSpool<" + cap_name + ">(\"" + keyspace_name + "." + table_name + "\", Paths.get(spoolDir, \"" + keyspace_name + "." + table_name + "\"),\n" +
+                    "                " + cap_name + ".class, objectMapper, x -> " + camel_name + "Dao.saveAsync(x, ExecutionProfiles.write()), spoolSegmentBytes, spoolMaxSegments, spoolConcurrency,\n" +
+                    "                meterRegistry);\n" +
+                    "    }\n" +
                     "\n");
         }
         sb.append("}\n\n");
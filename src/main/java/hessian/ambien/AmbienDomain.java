@@ -34,7 +34,338 @@ public class AmbienDomain {
     }
 
     public boolean produceDomainClasses() {
-        return produceClass();
+        return produceClass()
+                && produceParserClass()
+                && produceProtoFile()
+                && produceProtobufClass()
+                && produceRowJsonWriterClass();
+    }
+
+    // Name of the generated method that parses a request parameter for a column
+    public static String parserMethod(String columnName) {
+        return "parse" + Ambien.capName(columnName);
+    }
+
+    // A direct parse of the String expression value into the Java type, or null
+    // if the type is left to AnyParser (collections, tuples, UDTs, blobs, inet).
+    private static String directParse(String type, String value) {
+        switch (type) {
+            case "java.lang.Integer": return "Integer.valueOf(" + value + ")";
+            case "java.lang.Long": return "Long.valueOf(" + value + ")";
+            case "java.lang.Short": return "Short.valueOf(" + value + ")";
+            case "java.lang.Byte": return "Byte.valueOf(" + value + ")";
+            case "java.lang.Float": return "Float.valueOf(" + value + ")";
+            case "java.lang.Double": return "Double.valueOf(" + value + ")";
+            case "java.lang.Boolean": return "booleanOf(" + value + ")";
+            case "java.math.BigDecimal": return "new java.math.BigDecimal(" + value + ")";
+            case "java.math.BigInteger": return "new java.math.BigInteger(" + value + ")";
+            case "java.util.UUID": return "java.util.UUID.fromString(" + value + ")";
+            case "java.time.Instant": return "java.time.Instant.parse(" + value + ")";
+            case "java.time.LocalDate": return "java.time.LocalDate.parse(" + value + ")";
+            case "java.time.LocalTime": return "java.time.LocalTime.parse(" + value + ")";
+            case "com.datastax.oss.driver.api.core.data.CqlDuration": return "com.datastax.oss.driver.api.core.data.CqlDuration.from(" + value + ")";
+            default: return null;
+        }
+    }
+
+    // One static parse method per column, specialised to the column's type.  The direct
+    // parse handles the canonical format; anything it rejects goes to AnyParser, so the
+    // accepted inputs are the same as before.
+    private boolean produceParserClass() {
+        List<ColumnMetadata> allCols = allColumns();
+        StringBuilder sb = new StringBuilder();
+        sb.append("package " + params.package_name + ".domain;\n" +
+                "\n" +
+                "import hessian.typeparser.AnyParser;\n" +
+                "\n" +
+                "import java.text.ParseException;\n" +
+                "\n" +
+                "public final class " + cap_name + "Parser {\n" +
+                "\tprivate static final AnyParser anyParser = new AnyParser();\n" +
+                "\n" +
+                "\tprivate " + cap_name + "Parser() { }\n" +
+                "\n");
+
+        boolean usesBoolean = false;
+        for (ColumnMetadata cm : allCols) {
+            String name = cm.getName().asInternal();
+            String type = cr.codecFor(cm.getType()).getJavaType().getRawType().getName();
+            usesBoolean = usesBoolean || type.equals("java.lang.Boolean");
+            String fallback = "anyParser.<" + type + ">parse(value, " + type + ".class)";
+            String direct = directParse(type, "value");
+            sb.append("\tpublic static " + type + " " + parserMethod(name) + "(String value) throws ParseException {\n");
+            if (type.equals("java.lang.String")) {
+                sb.append("\t\treturn value;\n");
+            }
+            else if (null == direct) {
+                sb.append("\t\treturn " + fallback + ";\n");
+            }
+            else {
+                sb.append("\t\ttry {\n" +
+                        "\t\t\treturn " + direct + ";\n" +
+                        "\t\t}\n" +
+                        "\t\tcatch (RuntimeException e) {\n" +
+                        "\t\t\treturn " + fallback + ";\n" +
+                        "\t\t}\n");
+            }
+            sb.append("\t}\n\n");
+        }
+
+        if (usesBoolean)
+            sb.append("\tprivate static Boolean booleanOf(String value) {\n" +
+                    "\t\tif (\"true\".equalsIgnoreCase(value))\n" +
+                    "\t\t\treturn Boolean.TRUE;\n" +
+                    "\t\tif (\"false\".equalsIgnoreCase(value))\n" +
+                    "\t\t\treturn Boolean.FALSE;\n" +
+                    "\t\tthrow new IllegalArgumentException(value);\n" +
+                    "\t}\n");
+        sb.append("}\n");
+
+        return Ambien.writeFile(outputDir + File.separator + cap_name + "Parser.java", sb.toString());
+    }
+
+    // The Protobuf type for a Java type.  Timestamps, dates and times are numbers, uuids
+    // and inets are their bytes, and the types Protobuf has nothing close to (decimals,
+    // varints, durations, collections, tuples and UDTs) are their text form.
+    private static String protoType(String type) {
+        switch (type) {
+            case "java.lang.String": return "string";
+            case "java.lang.Integer":
+            case "java.lang.Short":
+            case "java.lang.Byte": return "sint32";
+            case "java.lang.Long": return "sint64";
+            case "java.lang.Float": return "float";
+            case "java.lang.Double": return "double";
+            case "java.lang.Boolean": return "bool";
+            case "java.nio.ByteBuffer":
+            case "java.util.UUID":
+            case "java.net.InetAddress": return "bytes";
+            case "java.time.Instant": return "int64";
+            case "java.time.LocalDate": return "sint32";
+            case "java.time.LocalTime": return "int64";
+            default: return "string";
+        }
+    }
+
+    private static String protoComment(String type) {
+        switch (type) {
+            case "java.util.UUID": return " // 16 bytes, most significant first";
+            case "java.time.Instant": return " // milliseconds since the epoch";
+            case "java.time.LocalDate": return " // days since the epoch";
+            case "java.time.LocalTime": return " // nanoseconds since midnight";
+            default: return "";
+        }
+    }
+
+    // The CodedOutputStream method suffix (write<X>, compute<X>Size) and the argument it
+    // takes for the value expression, for every type but blobs, which are written from
+    // their buffer without a copy
+    private static String[] protoWrite(String type, String value) {
+        switch (type) {
+            case "java.lang.String": return new String[]{"String", value};
+            case "java.lang.Integer":
+            case "java.lang.Short":
+            case "java.lang.Byte": return new String[]{"SInt32", value + ".intValue()"};
+            case "java.lang.Long": return new String[]{"SInt64", value};
+            case "java.lang.Float": return new String[]{"Float", value};
+            case "java.lang.Double": return new String[]{"Double", value};
+            case "java.lang.Boolean": return new String[]{"Bool", value};
+            case "java.util.UUID": return new String[]{"ByteArray", "uuid(" + value + ")"};
+            case "java.net.InetAddress": return new String[]{"ByteArray", value + ".getAddress()"};
+            case "java.time.Instant": return new String[]{"Int64", value + ".toEpochMilli()"};
+            case "java.time.LocalDate": return new String[]{"SInt32", "(int) " + value + ".toEpochDay()"};
+            case "java.time.LocalTime": return new String[]{"Int64", value + ".toNanoOfDay()"};
+            default: return new String[]{"String", "String.valueOf(" + value + ")"};
+        }
+    }
+
+    private List<ColumnMetadata> allColumns() {
+        List<ColumnMetadata> allCols = new ArrayList<ColumnMetadata>(partitionCols);
+        allCols.addAll(clusteringCols);
+        allCols.addAll(regularCols);
+        return allCols;
+    }
+
+    // The schema of the rows written for Accept: application/x-protobuf, served with the
+    // static resources so clients can fetch it from /proto/<keyspace>_<table>.proto
+    private boolean produceProtoFile() {
+        List<ColumnMetadata> allCols = allColumns();
+        StringBuilder sb = new StringBuilder();
+        sb.append("// Rows of " + keyspaceName + "." + tableName + ", as returned for Accept: application/x-protobuf:\n" +
+                "// one " + cap_name + " message per row, each preceded by its size as a varint.\n" +
+                "syntax = \"proto3\";\n" +
+                "\n" +
+                "package " + params.package_name + ";\n" +
+                "\n" +
+                "message " + cap_name + " {\n");
+        for (int i = 0; i < allCols.size(); i++) {
+            String type = cr.codecFor(allCols.get(i).getType()).getJavaType().getRawType().getName();
+            sb.append("  " + protoType(type) + " " + allCols.get(i).getName().asInternal() + " = " + (i + 1) + ";"
+                    + protoComment(type) + "\n");
+        }
+        sb.append("}\n");
+
+        return Ambien.writeFile(params.resourcesProtoDir + File.separator + keyspaceName + "_" + tableName + ".proto", sb.toString());
+    }
+
+    // Writes rows as the message of the .proto above, straight from the entity's getters
+    private boolean produceProtobufClass() {
+        List<ColumnMetadata> allCols = allColumns();
+        StringBuilder write = new StringBuilder();
+        StringBuilder size = new StringBuilder();
+        boolean usesUuid = false;
+        boolean usesBlob = false;
+        for (int i = 0; i < allCols.size(); i++) {
+            String type = cr.codecFor(allCols.get(i).getType()).getJavaType().getRawType().getName();
+            String getter = "x.get" + Ambien.capName(allCols.get(i).getName().asInternal()) + "()";
+            int field = i + 1;
+            write.append("\t\tif (null != " + getter + ")\n");
+            size.append("\t\tif (null != " + getter + ")\n");
+            if (type.equals("java.nio.ByteBuffer")) {
+                usesBlob = true;
+                write.append("\t\t\twriteBlob(out, " + field + ", " + getter + ");\n");
+                size.append("\t\t\tsize += blobSize(" + field + ", " + getter + ");\n");
+            }
+            else {
+                usesUuid = usesUuid || type.equals("java.util.UUID");
+                String[] method = protoWrite(type, getter);
+                write.append("\t\t\tout.write" + method[0] + "(" + field + ", " + method[1] + ");\n");
+                size.append("\t\t\tsize += CodedOutputStream.compute" + method[0] + "Size(" + field + ", " + method[1] + ");\n");
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package " + params.package_name + ".domain;\n" +
+                "\n" +
+                "import com.google.protobuf.CodedOutputStream;\n" +
+                (usesBlob ? "import com.google.protobuf.WireFormat;\n" : "") +
+                "\n" +
+                "import java.io.IOException;\n" +
+                (usesBlob || usesUuid ? "import java.nio.ByteBuffer;\n" : "") +
+                "\n" +
+                "// Writes " + cap_name + " rows as the " + cap_name + " message of proto/" + keyspaceName + "_" + tableName + ".proto\n" +
+                "public final class " + cap_name + "Protobuf {\n" +
+                "\tprivate " + cap_name + "Protobuf() { }\n" +
+                "\n" +
+                "\t// One row, preceded by its size as a varint (as parseDelimitedFrom reads it)\n" +
+                "\tpublic static void writeDelimited(" + cap_name + " x, CodedOutputStream out) throws IOException {\n" +
+                "\t\tout.writeUInt32NoTag(size(x));\n");
+        sb.append(write);
+        sb.append("\t}\n" +
+                "\n" +
+                "\tpublic static int size(" + cap_name + " x) {\n" +
+                "\t\tint size = 0;\n");
+        sb.append(size);
+        sb.append("\t\treturn size;\n" +
+                "\t}\n");
+
+        if (usesUuid)
+            sb.append("\n" +
+                    "\tprivate static byte[] uuid(java.util.UUID value) {\n" +
+                    "\t\treturn ByteBuffer.allocate(16).putLong(value.getMostSignificantBits()).putLong(value.getLeastSignificantBits()).array();\n" +
+                    "\t}\n");
+        if (usesBlob)
+            sb.append("\n" +
+                    "\tprivate static void writeBlob(CodedOutputStream out, int field, ByteBuffer value) throws IOException {\n" +
+                    "\t\tout.writeTag(field, WireFormat.WIRETYPE_LENGTH_DELIMITED);\n" +
+                    "\t\tout.writeUInt32NoTag(value.remaining());\n" +
+                    "\t\tout.write(value.duplicate());\n" +
+                    "\t}\n" +
+                    "\n" +
+                    "\tprivate static int blobSize(int field, ByteBuffer value) {\n" +
+                    "\t\treturn CodedOutputStream.computeTagSize(field) + CodedOutputStream.computeUInt32SizeNoTag(value.remaining()) + value.remaining();\n" +
+                    "\t}\n");
+        sb.append("}\n");
+
+        return Ambien.writeFile(outputDir + File.separator + cap_name + "Protobuf.java", sb.toString());
+    }
+
+    // The JSON write of a non-null column value, as Jackson (with Spring Boot's defaults:
+    // ISO dates, base64 blobs) writes the entity's field.  Anything else goes through the
+    // generator's ObjectMapper.
+    private static String jsonWrite(String type, String column) {
+        switch (type) {
+            case "java.lang.String": return "g.writeString(row.getString(" + column + "))";
+            case "java.lang.Integer": return "g.writeNumber(row.getInt(" + column + "))";
+            case "java.lang.Long": return "g.writeNumber(row.getLong(" + column + "))";
+            case "java.lang.Short": return "g.writeNumber(row.getShort(" + column + "))";
+            case "java.lang.Byte": return "g.writeNumber(row.getByte(" + column + "))";
+            case "java.lang.Float": return "g.writeNumber(row.getFloat(" + column + "))";
+            case "java.lang.Double": return "g.writeNumber(row.getDouble(" + column + "))";
+            case "java.lang.Boolean": return "g.writeBoolean(row.getBoolean(" + column + "))";
+            case "java.math.BigDecimal": return "g.writeNumber(row.getBigDecimal(" + column + "))";
+            case "java.math.BigInteger": return "g.writeNumber(row.getBigInteger(" + column + "))";
+            case "java.util.UUID": return "g.writeString(row.getUuid(" + column + ").toString())";
+            case "java.time.Instant": return "g.writeString(row.getInstant(" + column + ").toString())";
+            case "java.time.LocalDate": return "g.writeString(row.getLocalDate(" + column + ").toString())";
+            case "java.time.LocalTime": return "g.writeString(DateTimeFormatter.ISO_LOCAL_TIME.format(row.getLocalTime(" + column + ")))";
+            case "java.nio.ByteBuffer": return "writeBlob(g, row.getByteBuffer(" + column + "))";
+            default: return "g.writeObject(row.getObject(" + column + "))";
+        }
+    }
+
+    // Writes driver rows of SELECT * straight to JSON, field by field, with the same output
+    // as Jackson's serialization of the entity but without building one
+    private boolean produceRowJsonWriterClass() {
+        List<ColumnMetadata> allCols = allColumns();
+        StringBuilder constants = new StringBuilder();
+        StringBuilder write = new StringBuilder();
+        boolean usesBlob = false;
+        boolean usesTime = false;
+        for (ColumnMetadata cm : allCols) {
+            String name = cm.getName().asInternal();
+            String type = cr.codecFor(cm.getType()).getJavaType().getRawType().getName();
+            String constant = name.toUpperCase();
+            usesBlob = usesBlob || type.equals("java.nio.ByteBuffer");
+            usesTime = usesTime || type.equals("java.time.LocalTime");
+            constants.append("\tprivate static final CqlIdentifier " + constant + "_COLUMN = CqlIdentifier.fromInternal(\"" + name + "\");\n");
+            constants.append("\tprivate static final SerializedString " + constant + "_FIELD = new SerializedString(\"" + name + "\");\n");
+            write.append("\t\tg.writeFieldName(" + constant + "_FIELD);\n");
+            write.append("\t\tif (row.isNull(" + constant + "_COLUMN))\n");
+            write.append("\t\t\tg.writeNull();\n");
+            write.append("\t\telse\n");
+            write.append("\t\t\t" + jsonWrite(type, constant + "_COLUMN") + ";\n");
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("package " + params.package_name + ".domain;\n" +
+                "\n" +
+                "import com.datastax.oss.driver.api.core.CqlIdentifier;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import com.fasterxml.jackson.core.JsonGenerator;\n" +
+                "import com.fasterxml.jackson.core.io.SerializedString;\n" +
+                "\n" +
+                "import java.io.IOException;\n" +
+                (usesBlob ? "import java.nio.ByteBuffer;\n" : "") +
+                (usesTime ? "import java.time.format.DateTimeFormatter;\n" : "") +
+                "\n" +
+                "// Writes rows of SELECT * on " + keyspaceName + "." + tableName + " as the JSON of a " + cap_name + ",\n" +
+                "// straight from the driver's Row, without building the entity\n" +
+                "public final class " + cap_name + "RowJsonWriter {\n");
+        sb.append(constants);
+        sb.append("\n" +
+                "\tprivate " + cap_name + "RowJsonWriter() { }\n" +
+                "\n" +
+                "\tpublic static void write(Row row, JsonGenerator g) throws IOException {\n" +
+                "\t\tg.writeStartObject();\n");
+        sb.append(write);
+        sb.append("\t\tg.writeEndObject();\n" +
+                "\t}\n");
+        if (usesBlob)
+            sb.append("\n" +
+                    "\tprivate static void writeBlob(JsonGenerator g, ByteBuffer value) throws IOException {\n" +
+                    "\t\tif (value.hasArray()) {\n" +
+                    "\t\t\tg.writeBinary(value.array(), value.arrayOffset() + value.position(), value.remaining());\n" +
+                    "\t\t}\n" +
+                    "\t\telse {\n" +
+                    "\t\t\tbyte[] bytes = new byte[value.remaining()];\n" +
+                    "\t\t\tvalue.duplicate().get(bytes);\n" +
+                    "\t\t\tg.writeBinary(bytes);\n" +
+                    "\t\t}\n" +
+                    "\t}\n");
+        sb.append("}\n");
+
+        return Ambien.writeFile(outputDir + File.separator + cap_name + "RowJsonWriter.java", sb.toString());
     }
 
     private boolean produceClass() {
@@ -0,0 +1,157 @@
+package hessian.ambien;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+public class AmbienDriverConfig {
+    public static final List<String> PROFILES = Arrays.asList("default", "latency", "throughput", "scan");
+
+    private AmbienParams params = null;
+
+    public AmbienDriverConfig(AmbienParams params) {
+        this.params = params;
+    }
+
+    // Driver settings (path under datastax-java-driver -> value) for a profile.
+    //   latency:    small pages, short timeout, more connections, no compression
+    //   throughput: more connections and requests per connection, lz4
+    //   scan:       big pages, long timeout, lz4
+    public static Map<String, String> settings(String profile) {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        switch (profile) {
+            case "latency":
+                settings.put("basic.request.timeout", "1 second");
+                settings.put("basic.request.page-size", "1000");
+                settings.put("advanced.connection.pool.local.size", "2");
+                settings.put("advanced.connection.pool.remote.size", "1");
+                settings.put("advanced.connection.max-requests-per-connection", "1024");
+                settings.put("advanced.protocol.compression", "none");
+                settings.put("advanced.socket.tcp-no-delay", "true");
+                break;
+            case "throughput":
+                settings.put("basic.request.timeout", "5 seconds");
+                settings.put("basic.request.page-size", "5000");
+                settings.put("advanced.connection.pool.local.size", "4");
+                settings.put("advanced.connection.pool.remote.size", "1");
+                settings.put("advanced.connection.max-requests-per-connection", "2048");
+                settings.put("advanced.protocol.compression", "lz4");
+                settings.put("advanced.socket.tcp-no-delay", "true");
+                break;
+            case "scan":
+                settings.put("basic.request.timeout", "30 seconds");
+                settings.put("basic.request.page-size", "10000");
+                settings.put("advanced.connection.pool.local.size", "2");
+                settings.put("advanced.connection.pool.remote.size", "1");
+                settings.put("advanced.connection.max-requests-per-connection", "512");
+                settings.put("advanced.protocol.compression", "lz4");
+                break;
+            default:
+                break;
+        }
+        return settings;
+    }
+
+    // Driver metrics to collect (published to Micrometer by the generated DriverMetrics)
+    public static Map<String, String> metrics() {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("advanced.metrics.session.enabled", "[ bytes-sent, bytes-received, connected-nodes, cql-requests, "
+                + "cql-client-timeouts, throttling.delay, throttling.queue-size, throttling.errors ]");
+        settings.put("advanced.metrics.node.enabled", "[ pool.open-connections, pool.available-streams, pool.in-flight, "
+                + "pool.orphaned-streams, cql-messages, errors.request.unsent, errors.request.aborted, "
+                + "errors.request.write-timeouts, errors.request.read-timeouts, errors.request.unavailables, "
+                + "errors.request.others, retries.total, ignores.total, speculative-executions, "
+                + "errors.connection.init, errors.connection.auth ]");
+        return settings;
+    }
+
+    // Driver-side admission control: requests over the limit wait in a bounded queue, and
+    // requests that find the queue full fail at once with RequestThrottlingException
+    public static Map<String, String> throttler() {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("advanced.throttler.class", "ConcurrencyLimitingRequestThrottler");
+        settings.put("advanced.throttler.max-concurrent-requests", "1024");
+        settings.put("advanced.throttler.max-queue-size", "4096");
+        return settings;
+    }
+
+    // Execution profiles (name -> settings) used by the generated DAO methods, one per kind of request.
+    //   point-read: reads of one row; idempotent, speculatively re-sent to another replica after 20 ms
+    //   slice-read: reads of part of a partition; idempotent, speculative after 100 ms
+    //   scan:       full-table and LIMIT reads; long timeout, LOCAL_ONE, no speculative execution
+    //   write:      inserts and deletes; not assumed idempotent, so never re-sent speculatively
+    // Only scan sets a consistency level (DSE Search needs LOCAL_ONE); the others use the
+    // session's, which can be overridden per profile (see consistencyOverrides).
+    public static Map<String, Map<String, String>> executionProfiles() {
+        Map<String, Map<String, String>> profiles = new LinkedHashMap<String, Map<String, String>>();
+        profiles.put("point-read", executionProfile("500 milliseconds", null, true,
+                "ConstantSpeculativeExecutionPolicy", "20 milliseconds"));
+        profiles.put("slice-read", executionProfile("2 seconds", null, true,
+                "ConstantSpeculativeExecutionPolicy", "100 milliseconds"));
+        profiles.put("scan", executionProfile("30 seconds", "LOCAL_ONE", true,
+                "NoSpeculativeExecutionPolicy", null));
+        profiles.put("write", executionProfile("2 seconds", null, false,
+                "NoSpeculativeExecutionPolicy", null));
+        return profiles;
+    }
+
+    private static Map<String, String> executionProfile(String timeout, String consistency, boolean idempotent,
+                                                        String speculativePolicy, String speculativeDelay) {
+        Map<String, String> settings = new LinkedHashMap<String, String>();
+        settings.put("basic.request.timeout", timeout);
+        if (null != consistency)
+            settings.put("basic.request.consistency", consistency);
+        settings.put("basic.request.default-idempotence", String.valueOf(idempotent));
+        settings.put("advanced.speculative-execution-policy.class", speculativePolicy);
+        if (null != speculativeDelay) {
+            settings.put("advanced.speculative-execution-policy.max-executions", "2");
+            settings.put("advanced.speculative-execution-policy.delay", speculativeDelay);
+        }
+        return settings;
+    }
+
+    // Properties (commented out in application.properties) that give an execution profile
+    // without a consistency level of its own one, e.g. LOCAL_QUORUM for read-your-writes
+    public static List<String> consistencyOverrides() {
+        List<String> overrides = new ArrayList<String>();
+        for (Map.Entry<String, Map<String, String>> profile : executionProfiles().entrySet()) {
+            if (!profile.getValue().containsKey("basic.request.consistency"))
+                overrides.add("datastax-java-driver.profiles." + profile.getKey() + ".basic.request.consistency=LOCAL_QUORUM");
+        }
+        return overrides;
+    }
+
+    public boolean produceDriverConfig() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Driver settings for the \"" + params.profile + "\" profile.\n");
+        sb.append("# Any datastax-java-driver.* property in application.properties overrides these.\n");
+        sb.append("datastax-java-driver {\n");
+        for (Map.Entry<String, String> setting : settings(params.profile).entrySet())
+            sb.append("  " + setting.getKey() + " = " + setting.getValue() + "\n");
+        if (!settings(params.profile).isEmpty())
+            sb.append("\n");
+        sb.append("  # Metrics, published under /actuator/metrics as dse.session.* and dse.node.*\n");
+        for (Map.Entry<String, String> setting : metrics().entrySet())
+            sb.append("  " + setting.getKey() + " = " + setting.getValue() + "\n");
+        sb.append("\n");
+        sb.append("  # Throttling: a bound on the requests in flight to the cluster\n");
+        for (Map.Entry<String, String> setting : throttler().entrySet())
+            sb.append("  " + setting.getKey() + " = " + setting.getValue() + "\n");
+        sb.append("\n");
+        sb.append("  # Execution profiles, one per kind of request made by the generated DAOs\n");
+        sb.append("  profiles {\n");
+        for (Map.Entry<String, Map<String, String>> profile : executionProfiles().entrySet()) {
+            sb.append("    " + profile.getKey() + " {\n");
+            for (Map.Entry<String, String> setting : profile.getValue().entrySet())
+                sb.append("      " + setting.getKey() + " = " + setting.getValue() + "\n");
+            sb.append("    }\n");
+        }
+        sb.append("  }\n");
+        sb.append("}\n");
+
+        return Ambien.writeFile(params.resourcesDir + File.separator + "application.conf", sb.toString());
+    }
+}
@@ -0,0 +1,104 @@
+package hessian.ambien;
+
+import com.datastax.oss.driver.api.core.metadata.schema.ColumnMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.IndexMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.KeyspaceMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.metadata.schema.ViewMetadata;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+// The indexes and materialized views on a table that the generated endpoints can query through
+public class AmbienIndexes {
+    public static final String SEARCH_INDEX_CLASS = "com.datastax.bdp.search.solr.Cql3SolrSecondaryIndex";
+    public static final String SAI_INDEX_CLASS = "StorageAttachedIndex";
+
+    // A secondary (or SAI) index on one column
+    public static class ColumnIndex {
+        public final String name;
+        public final String column;
+        public final boolean sai;
+
+        public ColumnIndex(String name, String column, boolean sai) {
+            this.name = name;
+            this.column = column;
+            this.sai = sai;
+        }
+
+        public String describe() {
+            return (sai ? "SAI index " : "secondary index ") + name;
+        }
+    }
+
+    // A materialized view with every column of the table, so it reads as the table's entity
+    public static class View {
+        public final String name;
+        public final List<ColumnMetadata> partitionCols;
+        public final List<ColumnMetadata> clusteringCols;
+
+        public View(String name, List<ColumnMetadata> partitionCols, List<ColumnMetadata> clusteringCols) {
+            this.name = name;
+            this.partitionCols = partitionCols;
+            this.clusteringCols = clusteringCols;
+        }
+
+        public String describe() {
+            return "materialized view " + name;
+        }
+    }
+
+    private boolean searchIndex = false;
+    private List<ColumnIndex> columnIndexes = new ArrayList<>();
+    private List<View> views = new ArrayList<>();
+
+    public AmbienIndexes() {
+    }
+
+    public AmbienIndexes(KeyspaceMetadata km, TableMetadata tm) {
+        for (IndexMetadata im : tm.getIndexes().values()) {
+            String className = im.getOptions().get("class_name");
+            if (SEARCH_INDEX_CLASS.equals(className)) {
+                searchIndex = true;
+                continue;
+            }
+            boolean sai = (null != className) && className.endsWith("." + SAI_INDEX_CLASS);
+            // Other custom indexes have their own query syntax
+            if ((null != className) && !sai)
+                continue;
+            // Indexes on the keys, values or entries of a collection need CONTAINS
+            String target = im.getTarget();
+            if (target.contains("("))
+                continue;
+            if (target.startsWith("\"") && target.endsWith("\""))
+                target = target.substring(1, target.length() - 1).replace("\"\"", "\"");
+            columnIndexes.add(new ColumnIndex(im.getName().asInternal(), target, sai));
+        }
+        for (ViewMetadata vm : km.getViewsOnTable(tm.getName()).values()) {
+            if (!vm.getColumns().keySet().containsAll(tm.getColumns().keySet())) {
+                System.err.println("Skipping materialized view " + vm.getName().asInternal()
+                        + ", it does not have every column of " + tm.getName().asInternal());
+                continue;
+            }
+            views.add(new View(vm.getName().asInternal(), vm.getPartitionKey(),
+                    vm.getClusteringColumns().keySet().stream().collect(Collectors.toList())));
+        }
+    }
+
+    // Whether the table has a DSE Search index, so solr_query can be used
+    public boolean hasSearchIndex() {
+        return searchIndex;
+    }
+
+    // The single-column secondary and SAI indexes, which serve equality on their column
+    // (and, for SAI, ranges too) without ALLOW FILTERING
+    public List<ColumnIndex> getColumnIndexes() {
+        return columnIndexes;
+    }
+
+    // The materialized views that can stand in for the table
+    public List<View> getViews() {
+        return views;
+    }
+}
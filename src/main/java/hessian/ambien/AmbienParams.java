@@ -20,10 +20,18 @@ public class AmbienParams {
     public int httpPort = 8222;
     public String endpointRoot = "api/$keyspace/$table";
     public String package_name = "hessian.ambien";
+    public String stack = "servlet";
+    public String profile = "default";
+    public boolean unload = false;
+    public String unloadFormat = "ndjson";
+    public int unloadConcurrency = 16;
+    public int unloadSplitFactor = 4;
+    public int unloadPageSize = 5000;
 
     public String javaSrcDir = null;
     public String resourcesDir = null;
     public String resourcesTemplatesDir = null;
+    public String resourcesProtoDir = null;
     public String srcDomainDir = null;
     public String srcRepositoryDir = null;
     public String srcControllerDir = null;
@@ -46,6 +54,13 @@ public class AmbienParams {
         usage.append("  -httpPort <httpPort>           Port for HTTP REST endpoint [8222]\n");
         usage.append("  -endpointRoot <root>           REST endpoint to create (use '$keyspace' for keyspace name and '$table' for table name) [api/$keyspace/$table]\n");
         usage.append("  -packageName <pkg>             Package name [hessian.ambien]\n");
+        usage.append("  -stack <servlet|webflux>       Web stack for the generated service [servlet]\n");
+        usage.append("  -profile <profile>             Driver tuning: default, latency, throughput, or scan [default]\n");
+        usage.append("UNLOAD OPTIONS:\n");
+        usage.append("  -format <ndjson|csv>           Format of the exported rows [ndjson]\n");
+        usage.append("  -concurrency <n>               Token ranges read at once [16]\n");
+        usage.append("  -splitFactor <n>               Pieces to split each token range into [4]\n");
+        usage.append("  -pageSize <n>                  Largest page size for range reads [5000]\n");
         return usage.toString();
     }
 
@@ -87,6 +102,26 @@ public class AmbienParams {
             return false;
         }
 
+        if (!"servlet".equals(stack) && !"webflux".equals(stack)) {
+            System.err.println("Stack must be servlet or webflux (\"" + stack + "\")");
+            return false;
+        }
+
+        if (!AmbienDriverConfig.PROFILES.contains(profile)) {
+            System.err.println("Profile must be one of " + AmbienDriverConfig.PROFILES + " (\"" + profile + "\")");
+            return false;
+        }
+
+        if (!"ndjson".equals(unloadFormat) && !"csv".equals(unloadFormat)) {
+            System.err.println("Format must be ndjson or csv (\"" + unloadFormat + "\")");
+            return false;
+        }
+
+        if ((unloadConcurrency < 1) || (unloadSplitFactor < 1) || (unloadPageSize < 1)) {
+            System.err.println("Concurrency, split factor and page size must be positive");
+            return false;
+        }
+
         return true;
     }
 
@@ -120,6 +155,10 @@ public class AmbienParams {
             System.err.println("No arguments specified");
             return false;
         }
+        if ("unload".equals(args[0])) {
+            unload = true;
+            args = Arrays.copyOfRange(args, 1, args.length);
+        }
         if (0 != args.length % 2)
             return false;
 
@@ -150,6 +189,12 @@ public class AmbienParams {
         if (null != (tkey = amap.remove("-httpPort")))       httpPort = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove("-endpointRoot")))   endpointRoot = tkey;
         if (null != (tkey = amap.remove("-packageName")))    package_name = tkey;
+        if (null != (tkey = amap.remove("-stack")))          stack = tkey;
+        if (null != (tkey = amap.remove("-profile")))        profile = tkey;
+        if (null != (tkey = amap.remove("-format")))         unloadFormat = tkey;
+        if (null != (tkey = amap.remove("-concurrency")))    unloadConcurrency = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-splitFactor")))    unloadSplitFactor = Integer.parseInt(tkey);
+        if (null != (tkey = amap.remove("-pageSize")))       unloadPageSize = Integer.parseInt(tkey);
         if (null != (tkey = amap.remove(("-o")))) {
             if (tkey.endsWith("\\"))
                 tkey = tkey.substring(0, tkey.length()-1);
@@ -178,6 +223,7 @@ public class AmbienParams {
     private void setPaths() {
         resourcesDir = makePath(output_dir, "src", "main", "resources");
         resourcesTemplatesDir = makePath(output_dir, "src", "main", "resources", "templates");
+        resourcesProtoDir = makePath(output_dir, "src", "main", "resources", "static", "proto");
         String pkgPath = pathify(package_name.split("\\."));
         javaSrcDir = makePath(output_dir, "src", "main", "java", pkgPath);
         srcDomainDir = makePath(output_dir, "src", "main", "java", pkgPath, "domain");
@@ -211,6 +257,14 @@ public class AmbienParams {
         return retStr;
     }
 
+    public boolean isWebflux() {
+        return "webflux".equals(stack);
+    }
+
+    public static String propertyPrefix(String keyspace_name, String table_name) {
+        return "ambien." + keyspace_name + "." + table_name;
+    }
+
     @Override
     public String toString() {
         return "AmbienParams{" +
@@ -228,6 +282,13 @@ public class AmbienParams {
                 ", httpPort=" + httpPort +
                 ", endpointRoot='" + endpointRoot + '\'' +
                 ", package_name='" + package_name + '\'' +
+                ", stack='" + stack + '\'' +
+                ", profile='" + profile + '\'' +
+                ", unload=" + unload +
+                ", unloadFormat='" + unloadFormat + '\'' +
+                ", unloadConcurrency=" + unloadConcurrency +
+                ", unloadSplitFactor=" + unloadSplitFactor +
+                ", unloadPageSize=" + unloadPageSize +
                 '}';
     }
 }
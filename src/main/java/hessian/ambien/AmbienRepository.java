@@ -7,7 +7,11 @@ import javafx.util.Pair;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
@@ -22,6 +26,11 @@ public class AmbienRepository {
     private List<ColumnMetadata> clusteringCols;
     private List<ColumnMetadata> regularCols;
     private boolean allowAllowFiltering;
+    private AmbienIndexes indexes;
+    private Map<String, String> indexBackedEndpoints = new LinkedHashMap<>();
+    // The reads the generated Warmup replays, as in index.html but with {column} for each
+    // value it takes from a sampled row, and fixed values for the other parameters
+    private List<String> warmupReads = new ArrayList<>();
     private String queryBuilderBase;
     private String[] ineq = {"<", "<=", ">", ">="};
     private String[] ineqName = {"lt", "lte", "gt", "gte"};
@@ -33,18 +42,32 @@ public class AmbienRepository {
     public AmbienRepository(String keyspace_name, String table_name, AmbienParams params,
                             List<ColumnMetadata> partitionCols, List<ColumnMetadata> clusteringCols,
                             List<ColumnMetadata> regularCols, CodecRegistry cr, List<String> restEndpoints) {
-        this(keyspace_name, table_name, params, partitionCols, clusteringCols, regularCols, cr, false, restEndpoints);
+        this(keyspace_name, table_name, params, partitionCols, clusteringCols, regularCols, cr, false, new AmbienIndexes(), restEndpoints);
+    }
+
+    public AmbienRepository(String keyspace_name, String table_name, AmbienParams params,
+                            List<ColumnMetadata> partitionCols, List<ColumnMetadata> clusteringCols,
+                            List<ColumnMetadata> regularCols, CodecRegistry cr, AmbienIndexes indexes, List<String> restEndpoints) {
+        this(keyspace_name, table_name, params, partitionCols, clusteringCols, regularCols, cr, false, indexes, restEndpoints);
     }
 
     public AmbienRepository(String keyspace_name, String table_name, AmbienParams params,
                             List<ColumnMetadata> partitionCols, List<ColumnMetadata> clusteringCols,
                             List<ColumnMetadata> regularCols, CodecRegistry cr, boolean allowAllowFiltering, List<String> restEndpoints) {
+        this(keyspace_name, table_name, params, partitionCols, clusteringCols, regularCols, cr, allowAllowFiltering, new AmbienIndexes(), restEndpoints);
+    }
+
+    public AmbienRepository(String keyspace_name, String table_name, AmbienParams params,
+                            List<ColumnMetadata> partitionCols, List<ColumnMetadata> clusteringCols,
+                            List<ColumnMetadata> regularCols, CodecRegistry cr, boolean allowAllowFiltering,
+                            AmbienIndexes indexes, List<String> restEndpoints) {
         this.params = params;
         this.partitionCols = partitionCols;
         this.clusteringCols = clusteringCols;
         this.regularCols = regularCols;
         this.cr = cr;
         this.allowAllowFiltering = allowAllowFiltering;
+        this.indexes = indexes;
         this.table_name = table_name;
         this.keyspace_name = keyspace_name;
         this.cap_name = Ambien.capName(keyspace_name) + Ambien.capName(table_name);
@@ -54,11 +77,39 @@ public class AmbienRepository {
         this.restEndpoints = restEndpoints;
     }
 
+    // The example endpoints (as listed in index.html) served by an index or a
+    // materialized view, with a description of it
+    public Map<String, String> getIndexBackedEndpoints() {
+        return indexBackedEndpoints;
+    }
+
     public boolean produceRepositoryClasses() {
         return makeMapper()
                 && produceBaseRepositoryClass();
     }
 
+    // Prefix for this table's settings in the generated application.properties
+    private String propertyPrefix() {
+        return AmbienParams.propertyPrefix(keyspace_name, table_name);
+    }
+
+    // Parse of the String expression value into the column's type, by the generated <Cap>Parser
+    private String parse(String column, String value) {
+        return cap_name + "Parser." + AmbienDomain.parserMethod(column) + "(" + value + ")";
+    }
+
+    // Whether values of the Java type can be searched by range: numbers, timestamps and dates
+    private static boolean isOrdered(String type) {
+        return type.equals("java.lang.Integer") || type.equals("java.lang.Short") || type.equals("java.lang.Byte")
+                || type.equals("java.lang.Long") || type.equals("java.lang.Float") || type.equals("java.lang.Double")
+                || type.equals("java.math.BigDecimal") || type.equals("java.math.BigInteger")
+                || type.equals("java.time.Instant") || type.equals("java.time.LocalDate");
+    }
+
+    private static String quotedNames(List<ColumnMetadata> cols) {
+        return cols.stream().map(c -> "\"" + c.getName().asInternal() + "\"").collect(Collectors.joining(", "));
+    }
+
     private String typeFor(ColumnMetadata cm) {
         return cr.codecFor(cm.getType()).getJavaType().getRawType().getName();
     }
@@ -91,7 +142,17 @@ public class AmbienRepository {
         // Save
         sbr.append("\t// Save\n");
         sbr.append("\t@Insert\n");
-        sbr.append("\tpublic " + cap_name + " save(" + cap_name + " x);\n");
+        sbr.append("\tpublic " + cap_name + " save(" + cap_name + " x, Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+        sbr.append("\t@Insert\n");
+        sbr.append("\tpublic CompletionStage<Void> saveAsync(" + cap_name + " x, Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+        sbr.append("\t@Insert\n");
+        sbr.append("\tpublic BoundStatement bindSave(" + cap_name + " x);\n");
+        sbr.append("\n");
+        sbr.append("\t// A row of SELECT * as the entity, as the mapped reads build it\n");
+        sbr.append("\t@GetEntity\n");
+        sbr.append("\tpublic " + cap_name + " asEntity(Row row);\n");
         sbr.append("\n");
 
         // Save - Controller
@@ -100,12 +161,65 @@ public class AmbienRepository {
         String exampleEndpoint = endpoint + "?{arguments to build " + cap_name + "}";
         sbc.append("\t// Add new\n");
         sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET})\n");
-        sbc.append("\tpublic " + cap_name + " save(@RequestBody " + cap_name + " x) {\n");
-        sbc.append("\t\t" + camel_name + "Dao.save(x);\n");
-        sbc.append("\t\treturn x;\n");
+        if (params.isWebflux()) {
+            sbc.append("\tpublic Mono<" + cap_name + "> save(@RequestBody " + cap_name + " x) throws IOException {\n");
+            sbc.append("\t\treturn admissionControl.mono(ExecutionProfiles.WRITE, () -> {\n");
+            sbc.append("\t\t\tmetrics.rows(\"add\", 1);\n");
+            sbc.append("\t\t\tif (null != writeBehindSpool) {\n");
+            sbc.append("\t\t\t\t// append() waits for the disk, so keep it off the event loop\n");
+            sbc.append("\t\t\t\treturn Mono.fromCallable(() -> {\n");
+            sbc.append("\t\t\t\t\twriteBehindSpool.append(x);\n");
+            sbc.append("\t\t\t\t\treturn x;\n");
+            sbc.append("\t\t\t\t}).subscribeOn(Schedulers.elastic());\n");
+            sbc.append("\t\t\t}\n");
+            sbc.append("\t\t\treturn Mono.fromCompletionStage(" + camel_name + "Dao.saveAsync(x, ExecutionProfiles.write()))\n");
+            sbc.append("\t\t\t\t\t.doOnSuccess(v -> invalidate(partitionKey(x)))\n");
+            sbc.append("\t\t\t\t\t.thenReturn(x);\n");
+            sbc.append("\t\t});\n");
+        }
+        else {
+            sbc.append("\tpublic " + cap_name + " save(@RequestBody " + cap_name + " x) throws IOException {\n");
+            sbc.append("\t\treturn admissionControl.call(ExecutionProfiles.WRITE, () -> {\n");
+            sbc.append("\t\t\tif (null != writeBehindSpool)\n");
+            sbc.append("\t\t\t\twriteBehindSpool.append(x);\n");
+            sbc.append("\t\t\telse {\n");
+            sbc.append("\t\t\t\t" + camel_name + "Dao.save(x, ExecutionProfiles.write());\n");
+            sbc.append("\t\t\t\tinvalidate(partitionKey(x));\n");
+            sbc.append("\t\t\t}\n");
+            sbc.append("\t\t\tmetrics.rows(\"add\", 1);\n");
+            sbc.append("\t\t\treturn x;\n");
+            sbc.append("\t\t});\n");
+        }
         sbc.append("\t}\n\n");
         restEndpoints.add(exampleEndpoint);
 
+        // Save Batch - Controller
+        endpoint = endpointPrefix + "addBatch";
+        sbc.append("\t// Add many (JSON array or NDJSON), grouped into one unlogged batch per partition\n");
+        sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = RequestMethod.POST, consumes = MediaType.APPLICATION_JSON_VALUE)\n");
+        sbc.append("\tpublic CompletionStage<List<BatchWriter.Result>> saveBatch(@RequestBody List<" + cap_name + "> xs) {\n");
+        sbc.append("\t\treturn admissionControl.stage(ExecutionProfiles.WRITE, () -> {\n");
+        sbc.append("\t\t\tmetrics.rows(\"addBatch\", xs.size());\n");
+        sbc.append("\t\t\treturn batchWriter.write(xs, this::partitionKey, " + camel_name + "Dao::bindSave)\n");
+        sbc.append("\t\t\t\t\t.whenComplete((results, error) -> xs.forEach(x -> invalidate(partitionKey(x))));\n");
+        sbc.append("\t\t});\n");
+        sbc.append("\t}\n\n");
+        sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = RequestMethod.POST, consumes = StreamingResponses.NDJSON_VALUE)\n");
+        // Written as it is parsed, so the upload is never held in memory
+        if (params.isWebflux())
+            sbc.append("\tpublic CompletionStage<List<BatchWriter.Result>> saveBatchNdjson(ServerHttpRequest _request) {\n");
+        else
+            sbc.append("\tpublic CompletionStage<List<BatchWriter.Result>> saveBatchNdjson(InputStream _body) {\n");
+        sbc.append("\t\treturn admissionControl.stage(ExecutionProfiles.WRITE, () ->\n");
+        sbc.append("\t\t\t\tbatchWriter.write(batchWriter.readNdjson(" + (params.isWebflux() ? "_request.getBody()" : "_body") + ", " + cap_name + ".class),\n");
+        sbc.append("\t\t\t\t\t\tthis::partitionKey, " + camel_name + "Dao::bindSave, x -> invalidate(partitionKey(x)))\n");
+        sbc.append("\t\t\t\t\t\t.thenApply(results -> {\n");
+        sbc.append("\t\t\t\t\t\t\tmetrics.rows(\"addBatch\", results.size());\n");
+        sbc.append("\t\t\t\t\t\t\treturn results;\n");
+        sbc.append("\t\t\t\t\t\t}));\n");
+        sbc.append("\t}\n\n");
+        restEndpoints.add(endpoint);
+
 
         // Delete
         sbr.append("\t// Delete\n");
@@ -113,14 +227,16 @@ public class AmbienRepository {
         sbr.append("\tpublic void delete(" + cap_name + " x);\n");
         sbr.append("\n");
 
-        sbr.append("\t@Delete(entityClass = " + cap_name + ".class)\n");
-        sbr.append("\tpublic void delete(");
-        sbr.append(typeFor(partitionCols.get(0)) + " " + partitionCols.get(0).getName());
+        StringBuilder keyArgs = new StringBuilder(typeFor(partitionCols.get(0)) + " " + partitionCols.get(0).getName());
         for (i = 1; i < partitionCols.size(); i++)
-            sbr.append(", " + typeFor(partitionCols.get(i)) + " " + partitionCols.get(i).getName());
+            keyArgs.append(", " + typeFor(partitionCols.get(i)) + " " + partitionCols.get(i).getName());
         for (i = 0; i < clusteringCols.size(); i++)
-            sbr.append(", " + typeFor(clusteringCols.get(i)) + " " + clusteringCols.get(i).getName());
-        sbr.append(");\n");
+            keyArgs.append(", " + typeFor(clusteringCols.get(i)) + " " + clusteringCols.get(i).getName());
+        sbr.append("\t@Delete(entityClass = " + cap_name + ".class)\n");
+        sbr.append("\tpublic void delete(" + keyArgs + ", Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+        sbr.append("\t@Delete(entityClass = " + cap_name + ".class)\n");
+        sbr.append("\tpublic CompletionStage<Void> deleteAsync(" + keyArgs + ", Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
         sbr.append("\n");
 
         // Delete - Controller
@@ -128,7 +244,7 @@ public class AmbienRepository {
         exampleEndpoint = endpoint;
         sbc.append("\t// Delete\n");
         sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET})\n");
-        sbc.append("\tpublic void delete(");
+        sbc.append("\tpublic " + (params.isWebflux() ? "Mono<Void>" : "void") + " delete(");
         sbc.append("@RequestParam String " + partitionCols.get(0).getName());
         exampleEndpoint = exampleEndpoint + "?" + partitionCols.get(0).getName() + "={" + partitionCols.get(0).getName() + "}";
         for (i = 1; i < partitionCols.size(); i++) {
@@ -140,13 +256,29 @@ public class AmbienRepository {
             exampleEndpoint = exampleEndpoint + "&" + clusteringCols.get(i).getName() + "={" + clusteringCols.get(i).getName() + "}";
         }
         sbc.append(") throws ParseException {\n");
-        sbc.append("\t\t" + camel_name + "Dao.delete(");
-        sbc.append("anyParser.<" + typeFor(partitionCols.get(0)) + ">parse(" + partitionCols.get(0).getName() + ", " + typeFor(partitionCols.get(0)) + ".class)");
-        for (i = 1; i < partitionCols.size(); i++)
-            sbc.append(", anyParser.<" + typeFor(partitionCols.get(i)) + ">parse(" + partitionCols.get(i).getName() + ", " + typeFor(partitionCols.get(i)) + ".class)");
-        for (i = 0; i < clusteringCols.size(); i++)
-            sbc.append(", anyParser.<" + typeFor(clusteringCols.get(i)) + ">parse(" + clusteringCols.get(i).getName() + ", " + typeFor(clusteringCols.get(i)) + ".class)");
-        sbc.append(");\n");
+        sbc.append("\t\tList<Object> _partition = Arrays.asList(" + partitionCols.stream()
+                .map(c -> parse(c.getName().asInternal(), c.getName().asInternal()))
+                .collect(Collectors.joining(", ")) + ");\n");
+        if (params.isWebflux()) {
+            sbc.append("\t\treturn admissionControl.mono(ExecutionProfiles.WRITE, () ->\n");
+            sbc.append("\t\t\t\tMono.fromCompletionStage(" + camel_name + "Dao.deleteAsync(");
+        }
+        else {
+            sbc.append("\t\tadmissionControl.run(ExecutionProfiles.WRITE, () -> {\n");
+            sbc.append("\t\t\t" + camel_name + "Dao.delete(");
+        }
+        sbc.append(Stream.concat(partitionCols.stream(), clusteringCols.stream())
+                .map(c -> parse(c.getName().asInternal(), c.getName().asInternal()))
+                .collect(Collectors.joining(", ")) + ", ExecutionProfiles.write()");
+        if (params.isWebflux()) {
+            sbc.append("))\n");
+            sbc.append("\t\t\t\t\t\t.doOnSuccess(v -> invalidate(_partition)));\n");
+        }
+        else {
+            sbc.append(");\n");
+            sbc.append("\t\t\tinvalidate(_partition);\n");
+            sbc.append("\t\t});\n");
+        }
         sbc.append("\t}\n\n");
         restEndpoints.add(exampleEndpoint);
 
@@ -161,35 +293,58 @@ public class AmbienRepository {
         base = "findAll";
         bases.add(base);
         sbr.append("\t// Find All\n");
-        sbr.append("\t@Select\n");
-        sbr.append("\tpublic MappedReactiveResultSet<" + cap_name + "> " + base + "();\n");
+        genDaoRead(sbr, "@Select", base, "");
+
+        // Find All in Token Range (the :start and :end tokens are bound by the caller)
+        base = "findAllInTokenRange";
+        bases.add(base);
+        String tokenOf = "token(" + partitionCols.stream().map(c -> c.getName().asInternal()).collect(Collectors.joining(", ")) + ")";
+        sbr.append("\t// Find All in Token Range\n");
+        sbr.append("\t@Query(\"SELECT * FROM ${keyspaceId}.${tableId} WHERE " + tokenOf + " > :start AND " + tokenOf + " <= :end\")\n");
+        sbr.append("\tpublic MappedReactiveResultSet<" + cap_name + "> " + base + "(Function<BoundStatementBuilder, BoundStatementBuilder> bindRange);\n");
         sbr.append("\n");
+        genDaoRowsRead(sbr, "SELECT * FROM ${keyspaceId}.${tableId}", "findAll", "");
+        genDaoRowsRead(sbr, "SELECT * FROM ${keyspaceId}.${tableId} WHERE " + tokenOf + " > :start AND " + tokenOf + " <= :end", base, "");
 
         //    Controller
         endpoint = endpointPrefix + "all";
         restEndpoints.add(endpoint);
-        sbc.append("\t// Find all\n");
-        sbc.append("\t@RequestMapping(\"" + endpoint + "\")\n");
-        sbc.append("\tpublic Flux<" + cap_name + "> all() {\n");
-        sbc.append("\t\treturn Flux.from(" + camel_name + "Dao.findAll());\n");
-        sbc.append("\t}\n\n");
+        sbc.append("\t// Find all (parallel token-range scan)\n");
+        genControllerRead(sbc, "value = \"" + endpoint + "\"", "all", "all", "",
+                "tokenRangeScanner.scan(\"" + keyspace_name + "\", scanSplitFactor, scanConcurrency,\n" +
+                "\t\t\t\tr -> " + camel_name + "Dao.findAllInTokenRange(r.andThen(ExecutionProfiles.scan())),\n" +
+                "\t\t\t\t() -> " + camel_name + "Dao.findAll(ExecutionProfiles.scan()))",
+                "tokenRangeScanner.scan(\"" + keyspace_name + "\", scanSplitFactor, scanConcurrency,\n" +
+                "\t\t\t\tr -> " + camel_name + "Dao.findAllInTokenRangeRows(r.andThen(ExecutionProfiles.scan())),\n" +
+                "\t\t\t\t() -> " + camel_name + "Dao.findAllRows(ExecutionProfiles.scan()))",
+                false, camel_name + "Dao.findAllPage(", "SCAN", false);
+        genControllerProjection(sbc, "value = \"" + endpoint + "\"", "all", "all", "",
+                "tokenRangeScanner.scan(\"" + keyspace_name + "\", scanSplitFactor, scanConcurrency,\n" +
+                "\t\t\t\tr -> " + projection("WHERE " + tokenOf + " > :start AND " + tokenOf + " <= :end", "r.andThen(ExecutionProfiles.scan())", "") + ",\n" +
+                "\t\t\t\t() -> " + projection("", "ExecutionProfiles.scan()", "") + ")",
+                projectionPage(table_name, "", "ExecutionProfiles.scan()", ""), "SCAN", false);
 
         // Find Some
         base = "findSome";
         bases.add(base);
         sbr.append("\t// Find Some\n");
-        sbr.append("\t@Query(\"SELECT * FROM ${keyspaceId}.${tableId} LIMIT :some\")\n");
-        sbr.append("\tpublic MappedReactiveResultSet<" + cap_name + "> " + base + "(Integer some);\n");
-        sbr.append("\n");
+        genDaoRead(sbr, "@Query(\"SELECT * FROM ${keyspaceId}.${tableId} LIMIT :some\")", base, "Integer some");
+        genDaoRowsRead(sbr, "SELECT * FROM ${keyspaceId}.${tableId} LIMIT :some", base, "Integer some");
 
         //    Controller
         endpoint = endpointPrefix + "some";
         sbc.append("\t// Find Some\n");
         restEndpoints.add(endpoint + "?some={some}");
-        sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET})\n");
-        sbc.append("\tpublic Flux<" + cap_name + "> somePost(@RequestParam int some) {\n");
-        sbc.append("\t\treturn Flux.from(" + camel_name + "Dao.findSome(some));\n");
-        sbc.append("\t}\n\n");
+        warmupReads.add(endpoint + "?some=10");
+        String someArg = "@RequestParam(defaultValue = \"${ambien.guardrails.some.defaultLimit:100}\") int some";
+        String some = "guards.limit(\"some\", some)";
+        genControllerRead(sbc, "value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET}", "some", "somePost",
+                someArg, camel_name + "Dao.findSome(" + some + ", ExecutionProfiles.scan())",
+                camel_name + "Dao.findSomeRows(" + some + ", ExecutionProfiles.scan())", false, camel_name + "Dao.findSomePage(" + some + ", ",
+                "SCAN", false);
+        genControllerProjection(sbc, "value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET}", "some", "somePost",
+                someArg, projection("LIMIT :some", "ExecutionProfiles.scan()", some),
+                projectionPage(table_name, "LIMIT :some", "ExecutionProfiles.scan()", some), "SCAN", false);
 
 
         // Find By Partition Key
@@ -209,6 +364,9 @@ public class AmbienRepository {
             cols.add(new Pair<>(name, type));
         }
         bases.add(base);
+        String partitionPath = path;
+        List<String> keyBases = new ArrayList<>();
+        keyBases.add(base);
         sbr.append("\t// Find By Partition Key\n");
         sbr.append(comment + "\n");
 
@@ -233,11 +391,21 @@ public class AmbienRepository {
             pathvars = pathvars + "/{" + name + "}";
             cols.add(new Pair<>(name, type));
             bases.add(base);
+            keyBases.add(base);
             sbr.append(comment + "\n");
             genFunction(sbr, sbc, base, cols, path, pathvars, false);
             sbr.append("\t// With Inequality\n");
             sbc.append("\t// With Inequality\n");
             genFunctionInequality(sbr, sbc, base, cols, path, pathvars);
+            sbr.append("\t// With Range\n");
+            sbc.append("\t// With Range\n");
+            genFunctionRange(sbr, sbc, base, cols, path);
+            if (0 < j) {
+                sbr.append("\t// With Tuple Slice\n");
+                sbc.append("\t// With Tuple Slice\n");
+                genFunctionTuple(sbr, sbc, keyBases.get(0), cols.subList(0, partitionCols.size()),
+                        cols.subList(partitionCols.size(), cols.size()), partitionPath);
+            }
 
             if (allowAllowFiltering) {
                 sbr.append("\t// Regular Columns with ALLOW FILTERING\n");
@@ -246,6 +414,26 @@ public class AmbienRepository {
             }
         }
 
+        // Get Many
+        genGetMany(sbc, keyBases);
+
+        // Aggregates
+        genAggregates(sbr, sbc);
+
+        // DSE Search
+        if (indexes.hasSearchIndex())
+            genSearch(sbr, sbc);
+
+        // Secondary and SAI indexes, and materialized views
+        genIndexLookups(sbr, sbc);
+        genViewLookups(sbr, sbc);
+
+        sbc.append("\t// The reads Warmup replays, each with {column} where a sampled row's value goes\n");
+        sbc.append("\tprivate static List<String> warmupReads() {\n");
+        sbc.append("\t\treturn Arrays.asList(\n\t\t\t\t" + warmupReads.stream().map(r -> "\"" + r + "\"")
+                .collect(Collectors.joining(",\n\t\t\t\t")) + ");\n");
+        sbc.append("\t}\n\n");
+
         sbr.append("}\n");
         sbc.append("}\n");
 
@@ -260,8 +448,16 @@ public class AmbienRepository {
                 "\n" +
                 "import " + params.package_name + ".domain." + cap_name + ";\n" +
                 "\n" +
+                "import com.datastax.dse.driver.api.core.cql.reactive.ReactiveResultSet;\n" +
                 "import com.datastax.dse.driver.api.mapper.reactive.MappedReactiveResultSet;\n" +
-                "import com.datastax.oss.driver.api.mapper.annotations.*;" +
+                "import com.datastax.oss.driver.api.core.MappedAsyncPagingIterable;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatement;\n" +
+                "import com.datastax.oss.driver.api.core.cql.BoundStatementBuilder;\n" +
+                "import com.datastax.oss.driver.api.core.cql.Row;\n" +
+                "import com.datastax.oss.driver.api.mapper.annotations.*;\n" +
+                "\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.function.Function;\n" +
                 "\n" +
                 "@Dao\n" +
                 "public interface " + cap_name + "Dao{\n");
@@ -272,24 +468,116 @@ public class AmbienRepository {
         sbc.append("package " + params.package_name + ".controller;\n" +
                 "\n" +
                 "import " + params.package_name + ".domain." + cap_name + ";\n" +
+                "import " + params.package_name + ".domain." + cap_name + "Parser;\n" +
+                "import " + params.package_name + ".domain." + cap_name + "Protobuf;\n" +
+                "import " + params.package_name + ".domain." + cap_name + "RowJsonWriter;\n" +
                 "import " + params.package_name + ".dao." + cap_name + "Dao;\n" +
-                "import hessian.typeparser.AnyParser;\n" +
+                "import " + params.package_name + ".AdmissionControl;\n" +
+                "import " + params.package_name + ".Aggregates;\n" +
+                "import " + params.package_name + ".AmbienPage;\n" +
+                "import " + params.package_name + ".BatchWriter;\n" +
+                "import " + params.package_name + ".EndpointMetrics;\n" +
+                "import " + params.package_name + ".ExecutionProfiles;\n" +
+                "import " + params.package_name + ".Guardrails;\n" +
+                "import " + params.package_name + ".JsonWriterBenchmark;\n" +
+                "import " + params.package_name + ".MultiGet;\n" +
+                "import " + params.package_name + ".PartitionCache;\n" +
+                "import " + params.package_name + ".Projections;\n" +
+                "import " + params.package_name + ".SearchQueries;\n" +
+                "import " + params.package_name + ".StreamingResponses;\n" +
+                "import " + params.package_name + ".TokenRangeScanner;\n" +
+                "import " + params.package_name + ".Warmup;\n" +
+                "import " + params.package_name + ".WriteBehindSpool;\n" +
+                "import org.reactivestreams.Publisher;\n" +
                 "import org.springframework.beans.factory.annotation.Autowired;\n" +
+                "import org.springframework.beans.factory.annotation.Value;\n" +
+                "import org.springframework.http.HttpHeaders;\n" +
+                "import org.springframework.http.HttpStatus;\n" +
+                "import org.springframework.http.MediaType;\n" +
+                "import org.springframework.http.ResponseEntity;\n" +
+                (params.isWebflux() ? "import org.springframework.http.server.reactive.ServerHttpRequest;\n" : "") +
+                (params.isWebflux() ? "import org.springframework.http.server.reactive.ServerHttpResponse;\n" : "") +
                 "import org.springframework.web.bind.annotation.*;\n" +
+                "import org.springframework.web.server.ResponseStatusException;\n" +
+                (params.isWebflux() ? "" : "import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;\n") +
                 "import reactor.core.publisher.Flux;\n" +
+                (params.isWebflux() ? "import reactor.core.publisher.Mono;\n" : "") +
+                (params.isWebflux() ? "import reactor.core.scheduler.Schedulers;\n" : "") +
                 "\n" +
+                "import javax.annotation.PostConstruct;\n" +
+                "import java.io.IOException;\n" +
+                (params.isWebflux() ? "" : "import java.io.InputStream;\n") +
                 "import java.text.ParseException;\n" +
+                "import java.util.ArrayList;\n" +
+                "import java.util.Arrays;\n" +
+                "import java.util.List;\n" +
+                "import java.util.Map;\n" +
+                "import java.util.concurrent.CompletionStage;\n" +
+                "import java.util.function.Function;\n" +
                 "\n" +
                 "@RestController\n" +
                 "public class " + cap_name + "RestController {\n");
         sbc.append("\t@Autowired\n\tprivate " + cap_name + "Dao " + camel_name + "Dao;\n\n");
-        sbc.append("\tprivate AnyParser anyParser = new AnyParser();\n\n");
+        sbc.append("\t@Autowired\n\tprivate TokenRangeScanner tokenRangeScanner;\n\n");
+        sbc.append("\t@Autowired\n\tprivate StreamingResponses streamingResponses;\n\n");
+        sbc.append("\t@Autowired\n\tprivate BatchWriter batchWriter;\n\n");
+        sbc.append("\t@Autowired\n\tprivate MultiGet multiGet;\n\n");
+        sbc.append("\t@Autowired\n\tprivate Projections projections;\n\n");
+        sbc.append("\t@Autowired\n\tprivate Warmup warmup;\n\n");
+        sbc.append("\t@Autowired\n\tprivate JsonWriterBenchmark jsonWriterBenchmark;\n\n");
+        sbc.append("\t@Autowired\n\tprivate EndpointMetrics endpointMetrics;\n\n");
+        sbc.append("\t@Autowired\n\tprivate AdmissionControl admissionControl;\n\n");
+        sbc.append("\t@Autowired\n\tprivate Guardrails guardrails;\n\n");
+        sbc.append("\tprivate EndpointMetrics.Table metrics;\n\n");
+        sbc.append("\tprivate Guardrails.Table guards;\n\n");
+        sbc.append("\tprivate static final List<String> COLUMNS = Arrays.asList("
+                + quotedNames(Stream.of(partitionCols, clusteringCols, regularCols).flatMap(List::stream).collect(Collectors.toList())) + ");\n\n");
+        sbc.append("\t@Autowired(required = false)\n\tprivate WriteBehindSpool<" + cap_name + "> writeBehindSpool;\n\n");
+        sbc.append("\t@Autowired(required = false)\n\tprivate PartitionCache<" + cap_name + "> partitionCache;\n\n");
+        sbc.append("\t@Value(\"${" + propertyPrefix() + ".scan.splitFactor:1}\")\n\tprivate int scanSplitFactor;\n\n");
+        sbc.append("\t@Value(\"${" + propertyPrefix() + ".scan.concurrency:8}\")\n\tprivate int scanConcurrency;\n\n");
+        sbc.append("\t@Value(\"${" + propertyPrefix() + ".getMany.concurrency:32}\")\n\tprivate int getManyConcurrency;\n\n");
 
         // Hello
         sbc.append("\t@RequestMapping(\"" + params.endpointRoot(keyspace_name,table_name) + "/hello\")\n" +
                 "\tpublic String hello() {\n" +
                 "\t\treturn \"<html><body><H1>Hello World</H1></body></html>\";\n" +
                 "\t}\n\n");
+
+        // Partition cache, warm-up and metrics plumbing
+        sbc.append("\t@PostConstruct\n" +
+                "\tprivate void register() {\n" +
+                "\t\tmetrics = endpointMetrics.table(\"" + keyspace_name + "\", \"" + table_name + "\", \"" + params.endpointRoot(keyspace_name, table_name) + "/\");\n" +
+                "\t\tguards = guardrails.table(\"" + keyspace_name + "\", \"" + table_name + "\");\n" +
+                "\t\tif (null != writeBehindSpool) {\n" +
+                "\t\t\twriteBehindSpool.onWritten(x -> invalidate(partitionKey(x)));\n" +
+                "\t\t\twriteBehindSpool.primaryKey(this::primaryKey);\n" +
+                "\t\t}\n" +
+                "\t\twarmup.table(\"" + keyspace_name + "\", \"" + table_name + "\", \"" + params.endpointRoot(keyspace_name, table_name) + "/\",\n" +
+                "\t\t\t\tArrays.asList(" + quotedNames(partitionCols) + "), Arrays.<String>asList(" + quotedNames(clusteringCols) + "), warmupReads());\n" +
+                "\t\tjsonWriterBenchmark.table(\"" + keyspace_name + "\", \"" + table_name + "\", n -> " + camel_name + "Dao.findSomeRows(n, ExecutionProfiles.scan()),\n" +
+                "\t\t\t\t" + cap_name + "RowJsonWriter::write, " + camel_name + "Dao::asEntity);\n" +
+                "\t}\n\n");
+        sbc.append("\tprivate List<Object> partitionKey(" + cap_name + " x) {\n" +
+                "\t\treturn Arrays.asList(" + partitionCols.stream()
+                        .map(c -> "x.get" + Ambien.capName(c.getName().asInternal()) + "()")
+                        .collect(Collectors.joining(", ")) + ");\n" +
+                "\t}\n\n");
+        sbc.append("\tprivate List<Object> primaryKey(" + cap_name + " x) {\n" +
+                "\t\treturn Arrays.asList(" + Stream.concat(partitionCols.stream(), clusteringCols.stream())
+                        .map(c -> "x.get" + Ambien.capName(c.getName().asInternal()) + "()")
+                        .collect(Collectors.joining(", ")) + ");\n" +
+                "\t}\n\n");
+        sbc.append("\t// Drops the cached reads of a partition once it has been written\n" +
+                "\tprivate void invalidate(List<Object> partitionKey) {\n" +
+                "\t\tif (null != partitionCache)\n" +
+                "\t\t\tpartitionCache.invalidate(partitionKey);\n" +
+                "\t}\n\n");
+        sbc.append("\tprivate Publisher<" + cap_name + "> cacheRead(String read, Function<Object[], Publisher<" + cap_name + ">> query, Object... key) {\n" +
+                "\t\tif (null == partitionCache)\n" +
+                "\t\t\treturn query.apply(key);\n" +
+                "\t\treturn partitionCache.read(read, key, " + partitionCols.size() + ", query);\n" +
+                "\t}\n\n");
     }
 
     private void genFunction(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> cols,
@@ -320,49 +608,447 @@ public class AmbienRepository {
     private void genFunction(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> cols,
                                 String path, String pathvars, boolean allowFiltering, String ineq, String varPrefix,
                                 String requestMethod) {
-        // Repository
-        sbr.append("\t@Select(customWhereClause = \"");
+        StringBuilder where = new StringBuilder();
         if (1 == cols.size()) {
-            sbr.append(cols.get(0).getKey() + " " + ineq + " :" + cols.get(0).getKey());
+            where.append(cols.get(0).getKey() + " " + ineq + " :" + cols.get(0).getKey());
         }
         else {
-            sbr.append(cols.get(0).getKey() + " = :" + cols.get(0).getKey());
+            where.append(cols.get(0).getKey() + " = :" + cols.get(0).getKey());
             for (int i = 1; i <cols.size() - 1; i++) {
-                sbr.append(" AND " + cols.get(i).getKey() + " = :" + cols.get(i).getKey());
+                where.append(" AND " + cols.get(i).getKey() + " = :" + cols.get(i).getKey());
             }
-            sbr.append(" AND " + cols.get(cols.size() - 1).getKey() + " " + ineq + " :" + cols.get(cols.size() - 1).getKey());
+            where.append(" AND " + cols.get(cols.size() - 1).getKey() + " " + ineq + " :" + cols.get(cols.size() - 1).getKey());
         }
-        sbr.append("\"" + (allowFiltering ? ", allowFiltering=true" : "") + ")\n");
-        sbr.append("\tpublic MappedReactiveResultSet<" + cap_name + "> " + base + " (");
-        sbr.append(cols.get(0).getValue() + " " + cols.get(0).getKey());
-        for (int i = 1; i < cols.size(); i++) {
-            sbr.append(", " + cols.get(i).getValue() + " " + cols.get(i).getKey());
+        genRead(sbr, sbc, base, path, pathvars, where.toString(), allowFiltering, cols,
+                cols.stream().map(Pair::getKey).collect(Collectors.toList()), varPrefix, requestMethod,
+                readClass(cols.size(), allowFiltering));
+    }
+
+    // DAO and controller methods for one read.  where is the CQL WHERE clause, binds the
+    // request parameters it binds, in order, with their Java types, and columns the column
+    // each of them is a value of (the parameter names differ for ranges, e.g. ts_from).
+    private void genRead(StringBuilder sbr, StringBuilder sbc, String base, String path, String pathvars, String where,
+                         boolean allowFiltering, List<Pair<String,String>> binds, List<String> columns, String varPrefix,
+                         String requestMethod, String endpointClass) {
+        genRead(sbr, sbc, base, path, pathvars, where, allowFiltering, binds, columns, varPrefix, requestMethod,
+                endpointClass, table_name, true);
+    }
+
+    // As above, reading from relation (the table, or one of its materialized views).  Reads
+    // that are not by the table's partition key cannot go through the partition cache.
+    private void genRead(StringBuilder sbr, StringBuilder sbc, String base, String path, String pathvars, String where,
+                         boolean allowFiltering, List<Pair<String,String>> binds, List<String> columns, String varPrefix,
+                         String requestMethod, String endpointClass, String relation, boolean cached) {
+        // Repository
+        boolean view = !relation.equals(table_name);
+        String from = "${keyspaceId}." + (view ? relation : "${tableId}");
+        String select = view ? "@Query(\"SELECT * FROM " + from + " WHERE " + where + "\")"
+                : "@Select(customWhereClause = \"" + where + "\"" + (allowFiltering ? ", allowFiltering=true" : "") + ")";
+        StringBuilder daoArgs = new StringBuilder(binds.get(0).getValue() + " " + binds.get(0).getKey());
+        for (int i = 1; i < binds.size(); i++) {
+            daoArgs.append(", " + binds.get(i).getValue() + " " + binds.get(i).getKey());
         }
-        sbr.append(");\n");
-        sbr.append("\n");
+        genDaoRead(sbr, select, base, daoArgs.toString());
+        genDaoRowsRead(sbr, "SELECT * FROM " + from + " WHERE " + where + (allowFiltering ? " ALLOW FILTERING" : ""),
+                base, daoArgs.toString());
 
 
         // Controller
         String endpoint = endpointPrefix + path + pathvars;
         String exampleEndpoint = endpoint;
-        sbc.append("\t@RequestMapping(value = \"" + endpoint + "\", method = " + requestMethod + ")\n");
-        sbc.append("\tpublic Flux<" + cap_name + "> " + base);
-        sbc.append("(" + varPrefix + " String " + cols.get(0).getKey());
-        exampleEndpoint = exampleEndpoint + "?" + cols.get(0).getKey() + "={" + cols.get(0).getKey() + "}";
-        for (int i = 1; i < cols.size(); i++) {
-            sbc.append(", " + varPrefix + " String " + cols.get(i).getKey());
-            exampleEndpoint = exampleEndpoint + "?" + cols.get(i).getKey() + "={" + cols.get(i).getKey() + "}";
-        }
-        sbc.append(") throws ParseException  {\n");
-        sbc.append("\t\treturn Flux.from(" + camel_name + "Dao." + base + "(");
-        sbc.append("anyParser.<" + cols.get(0).getValue() + ">parse(" + cols.get(0).getKey() + ", " + cols.get(0).getValue() + ".class)");
-        for (int i = 1; i < cols.size(); i++) {
-            sbc.append(", anyParser.<" + cols.get(i).getValue() + ">parse(" + cols.get(i).getKey() + ", " + cols.get(i).getValue() + ".class)");
-        }
-        sbc.append("));\n\t}\n\n");
+        StringBuilder args = new StringBuilder(varPrefix + " String " + binds.get(0).getKey());
+        exampleEndpoint = exampleEndpoint + "?" + binds.get(0).getKey() + "={" + binds.get(0).getKey() + "}";
+        for (int i = 1; i < binds.size(); i++) {
+            args.append(", " + varPrefix + " String " + binds.get(i).getKey());
+            exampleEndpoint = exampleEndpoint + "&" + binds.get(i).getKey() + "={" + binds.get(i).getKey() + "}";
+        }
+        StringBuilder warm = new StringBuilder(endpoint);
+        for (int i = 0; i < binds.size(); i++) {
+            warm.append(((0 == i) ? "?" : "&") + binds.get(i).getKey() + "={" + columns.get(i) + "}");
+        }
+        warmupReads.add(warm.toString());
+        StringBuilder parsed = new StringBuilder();
+        parsed.append(parse(columns.get(0), binds.get(0).getKey()));
+        for (int i = 1; i < binds.size(); i++) {
+            parsed.append(", " + parse(columns.get(i), binds.get(i).getKey()));
+        }
+        // ALLOW FILTERING reads are refused when the table's partitions are too big to filter
+        String guard = allowFiltering ? "guards.filtering(\"" + path + pathvars + "\");" : null;
+        genControllerRead(sbc, cap_name, "value = \"" + endpoint + "\", method = " + requestMethod, path + pathvars, base, args.toString(),
+                cached ? cacheRead(base, binds.stream().map(Pair::getValue).collect(Collectors.toList()), parsed.toString(), endpointClass)
+                        : camel_name + "Dao." + base + "(" + parsed + ", " + profile(endpointClass) + ")",
+                camel_name + "Dao." + base + "Rows(" + parsed + ", " + profile(endpointClass) + ")", cached,
+                camel_name + "Dao." + base + "Page(" + parsed + ", ", endpointClass, true, guard);
+        genControllerProjection(sbc, "value = \"" + endpoint + "\", method = " + requestMethod, path + pathvars, base, args.toString(),
+                projection(relation, "WHERE " + where + (allowFiltering ? " ALLOW FILTERING" : ""), profile(endpointClass), parsed.toString()),
+                projectionPage(relation, "WHERE " + where + (allowFiltering ? " ALLOW FILTERING" : ""), profile(endpointClass), parsed.toString()),
+                endpointClass, true, guard);
         restEndpoints.add(exampleEndpoint);
     }
 
+    // The endpoint class (execution profile and admission limit) for a read that binds the
+    // first keyColumns columns: one row if that is every primary key column by equality,
+    // otherwise a slice of a partition
+    private String readClass(int keyColumns, boolean allowFiltering) {
+        if (!allowFiltering && (keyColumns == partitionCols.size() + clusteringCols.size()))
+            return "POINT_READ";
+        return "SLICE_READ";
+    }
+
+    // The generated call for an endpoint class's execution profile, e.g. ExecutionProfiles.pointRead()
+    private String profile(String endpointClass) {
+        String[] words = endpointClass.toLowerCase().split("_");
+        StringBuilder call = new StringBuilder("ExecutionProfiles." + words[0]);
+        for (int i = 1; i < words.length; i++)
+            call.append(Ambien.capName(words[i]));
+        return call.append("()").toString();
+    }
+
+    // A DAO read through the table's partition cache, if it has one.  types are the Java
+    // types of the bound values (partition key columns first), key the bound values and
+    // endpointClass the read's endpoint class.
+    private String cacheRead(String base, List<String> types, String key, String endpointClass) {
+        StringBuilder query = new StringBuilder();
+        for (int i = 0; i < types.size(); i++)
+            query.append("(" + types.get(i) + ") k[" + i + "], ");
+        return "cacheRead(\"" + base + "\", k -> " + camel_name + "Dao." + base + "(" + query + profile(endpointClass) + "), " + key + ")";
+    }
+
+    // DAO methods for one read: the reactive one, which takes the execution profile, and a
+    // paged one that takes the page size and paging state (and the profile) so the
+    // controller can hand out cursors
+    private void genDaoRead(StringBuilder sbr, String annotation, String base, String args) {
+        sbr.append("\t" + annotation + "\n");
+        sbr.append("\tpublic MappedReactiveResultSet<" + cap_name + "> " + base + "("
+                + args + (args.isEmpty() ? "" : ", ") + "Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+        sbr.append("\t" + annotation + "\n");
+        sbr.append("\tpublic CompletionStage<MappedAsyncPagingIterable<" + cap_name + ">> " + base + "Page("
+                + args + (args.isEmpty() ? "" : ", ") + "Function<BoundStatementBuilder, BoundStatementBuilder> paging);\n");
+        sbr.append("\n");
+    }
+
+    // DAO method for one read as driver Rows, for the streaming twins
+    private void genDaoRowsRead(StringBuilder sbr, String query, String base, String args) {
+        sbr.append("\t@Query(\"" + query + "\")\n");
+        sbr.append("\tpublic ReactiveResultSet " + base + "Rows("
+                + args + (args.isEmpty() ? "" : ", ") + "Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+    }
+
+    // Controller methods for one read endpoint: the default (JSON array) method, a twin
+    // that streams application/x-ndjson or text/event-stream, flushing once per driver page,
+    // one that streams application/x-protobuf the same way, and a twin for requests with
+    // a pageSize, which returns one page and a cursor.
+    // pageCall is the paged DAO call up to (not including) its paging argument, or null for
+    // an endpoint that cannot be paged.  Rows are counted under metric, the endpoint's path
+    // below the endpoint prefix, and requests are admitted under endpointClass.
+    // rowsPublisher, if not null, is the same read as driver Rows, which the streaming twin
+    // writes with the generated <Cap>RowJsonWriter instead of mapping them to entities;
+    // cached reads stream entities when the table has a partition cache.
+    private void genControllerRead(StringBuilder sbc, String mapping, String metric, String name, String args,
+                                   String publisher, String pageCall, String endpointClass, boolean parsesArgs) {
+        genControllerRead(sbc, cap_name, mapping, metric, name, args, publisher, null, false, pageCall, endpointClass, parsesArgs);
+    }
+
+    private void genControllerRead(StringBuilder sbc, String mapping, String metric, String name, String args,
+                                   String publisher, String rowsPublisher, boolean cached, String pageCall,
+                                   String endpointClass, boolean parsesArgs) {
+        genControllerRead(sbc, cap_name, mapping, metric, name, args, publisher, rowsPublisher, cached, pageCall, endpointClass, parsesArgs);
+    }
+
+    private void genControllerRead(StringBuilder sbc, String rowType, String mapping, String metric, String name, String args,
+                                   String publisher, String pageCall, String endpointClass, boolean parsesArgs) {
+        genControllerRead(sbc, rowType, mapping, metric, name, args, publisher, null, false, pageCall, endpointClass, parsesArgs);
+    }
+
+    private void genControllerRead(StringBuilder sbc, String rowType, String mapping, String metric, String name, String args,
+                                   String publisher, String rowsPublisher, boolean cached, String pageCall,
+                                   String endpointClass, boolean parsesArgs) {
+        genControllerRead(sbc, rowType, mapping, metric, name, args, publisher, rowsPublisher, cached, pageCall,
+                endpointClass, parsesArgs, null);
+    }
+
+    // As above; guard, if not null, is a statement each of the methods runs first (a guardrail check)
+    private void genControllerRead(StringBuilder sbc, String rowType, String mapping, String metric, String name, String args,
+                                   String publisher, String rowsPublisher, boolean cached, String pageCall,
+                                   String endpointClass, boolean parsesArgs, String guard) {
+        String throwsClause = parsesArgs ? " throws ParseException" : "";
+        String check = (null == guard) ? "" : "\t\t" + guard + "\n";
+        String admit = "admissionControl.rows(ExecutionProfiles." + endpointClass + ", () -> guards.rows(ExecutionProfiles."
+                + endpointClass + ", \"" + metric + "\", () -> metrics.rows(\"" + metric + "\", ";
+        publisher = admit + publisher + ")))";
+        String rows = (null == rowsPublisher) ? null : admit + rowsPublisher + ")))";
+        sbc.append("\t@RequestMapping(" + mapping + ")\n");
+        sbc.append("\tpublic Flux<" + rowType + "> " + name + "(" + args + ")" + throwsClause + " {\n");
+        sbc.append(check);
+        sbc.append("\t\treturn " + publisher + ";\n");
+        sbc.append("\t}\n\n");
+
+        sbc.append("\t@RequestMapping(" + mapping + ", produces = {StreamingResponses.NDJSON_VALUE, MediaType.TEXT_EVENT_STREAM_VALUE})\n");
+        if (params.isWebflux()) {
+            sbc.append("\tpublic Mono<Void> " + name + "Stream(" + args + (args.isEmpty() ? "" : ", ")
+                    + "@RequestHeader(HttpHeaders.ACCEPT) String _accept, ServerHttpResponse _response)" + throwsClause + " {\n");
+            sbc.append(check);
+            if (cached)
+                sbc.append("\t\tif (null != partitionCache)\n\t\t\treturn streamingResponses.stream(_accept, " + publisher + ", _response);\n");
+            if (null != rows)
+                sbc.append("\t\treturn streamingResponses.stream(_accept, " + rows + ", " + cap_name + "RowJsonWriter::write, _response);\n");
+            else
+                sbc.append("\t\treturn streamingResponses.stream(_accept, " + publisher + ", _response);\n");
+        }
+        else {
+            sbc.append("\tpublic ResponseEntity<StreamingResponseBody> " + name + "Stream(" + args + (args.isEmpty() ? "" : ", ")
+                    + "@RequestHeader(HttpHeaders.ACCEPT) String _accept)" + throwsClause + " {\n");
+            sbc.append(check);
+            if (cached)
+                sbc.append("\t\tif (null != partitionCache)\n\t\t\treturn streamingResponses.stream(_accept, " + publisher + ");\n");
+            if (null != rows)
+                sbc.append("\t\treturn streamingResponses.stream(_accept, " + rows + ", " + cap_name + "RowJsonWriter::write);\n");
+            else
+                sbc.append("\t\treturn streamingResponses.stream(_accept, " + publisher + ");\n");
+        }
+        sbc.append("\t}\n\n");
+
+        // Protobuf has a schema per table, so only reads of whole rows have a Protobuf twin
+        if (rowType.equals(cap_name)) {
+            sbc.append("\t@RequestMapping(" + mapping + ", produces = StreamingResponses.PROTOBUF_VALUE)\n");
+            if (params.isWebflux()) {
+                sbc.append("\tpublic Mono<Void> " + name + "Protobuf(" + args + (args.isEmpty() ? "" : ", ")
+                        + "ServerHttpResponse _response)" + throwsClause + " {\n");
+                sbc.append(check);
+                sbc.append("\t\treturn streamingResponses.protobuf(" + publisher + ", " + cap_name + "Protobuf::writeDelimited, _response);\n");
+            }
+            else {
+                sbc.append("\tpublic ResponseEntity<StreamingResponseBody> " + name + "Protobuf(" + args + ")" + throwsClause + " {\n");
+                sbc.append(check);
+                sbc.append("\t\treturn streamingResponses.protobuf(" + publisher + ", " + cap_name + "Protobuf::writeDelimited);\n");
+            }
+            sbc.append("\t}\n\n");
+        }
+
+        if (null == pageCall)
+            return;
+        sbc.append("\t@RequestMapping(" + mapping + ", params = \"pageSize\")\n");
+        sbc.append("\tpublic " + pageType(cap_name) + " " + name + "Page(" + args + (args.isEmpty() ? "" : ", ")
+                + "@RequestParam(\"pageSize\") int _pageSize, @RequestParam(value = \"cursor\", required = false) String _cursor)" + throwsClause + " {\n");
+        sbc.append(check);
+        sbc.append("\t\treturn " + admitPage(endpointClass, "guards.stage(ExecutionProfiles."
+                + endpointClass + ", \"" + metric + "\", () -> metrics.page(\"" + metric + "\",\n"
+                + "\t\t\t\tAmbienPage.of(" + pageCall + "AmbienPage.paging(_pageSize, _cursor).andThen(" + profile(endpointClass) + ")))))") + ";\n");
+        sbc.append("\t}\n\n");
+    }
+
+    // Twins of a read endpoint's methods for requests with fields, which return only the
+    // listed columns.  publisher is the projected read, as made by projection(), and
+    // pagePublisher the same read one page at a time, as made by projectionPage(), for
+    // requests that also have a pageSize.  If pagePublisher is null the endpoint cannot
+    // page, and fields with pageSize is refused with 400 rather than ignoring either.
+    private void genControllerProjection(StringBuilder sbc, String mapping, String metric, String name, String args,
+                                         String publisher, String pagePublisher, String endpointClass, boolean parsesArgs) {
+        genControllerProjection(sbc, mapping, metric, name, args, publisher, pagePublisher, endpointClass, parsesArgs, null);
+    }
+
+    private void genControllerProjection(StringBuilder sbc, String mapping, String metric, String name, String args,
+                                         String publisher, String pagePublisher, String endpointClass, boolean parsesArgs,
+                                         String guard) {
+        String fieldsArgs = args + (args.isEmpty() ? "" : ", ") + "@RequestParam(\"fields\") String _fields";
+        genControllerRead(sbc, "Map<String, Object>", mapping + ", params = {\"fields\", \"!pageSize\"}", metric, name + "Fields",
+                fieldsArgs, publisher, null, false, null, endpointClass, parsesArgs, guard);
+
+        String throwsClause = parsesArgs ? " throws ParseException" : "";
+        sbc.append("\t@RequestMapping(" + mapping + ", params = {\"fields\", \"pageSize\"})\n");
+        sbc.append("\tpublic " + pageType("Map<String, Object>") + " " + name + "FieldsPage(" + fieldsArgs
+                + ", @RequestParam(\"pageSize\") int _pageSize, @RequestParam(value = \"cursor\", required = false) String _cursor)"
+                + throwsClause + " {\n");
+        if (null == pagePublisher) {
+            sbc.append("\t\tthrow new ResponseStatusException(HttpStatus.BAD_REQUEST, \"fields cannot be combined with pageSize on this endpoint\");\n");
+            sbc.append("\t}\n\n");
+            return;
+        }
+        if (null != guard)
+            sbc.append("\t\t" + guard + "\n");
+        sbc.append("\t\treturn " + admitPage(endpointClass, "guards.stage(ExecutionProfiles."
+                + endpointClass + ", \"" + metric + "\", () -> metrics.page(\"" + metric + "\",\n"
+                + "\t\t\t\t" + pagePublisher + "))") + ";\n");
+        sbc.append("\t}\n\n");
+    }
+
+    // What a page endpoint returns.  On WebFlux it is a Mono, so that admission happens
+    // on subscription, where the warm-up's requests are marked (see AdmissionControl).
+    private String pageType(String rowType) {
+        return (params.isWebflux() ? "Mono" : "CompletionStage") + "<AmbienPage<" + rowType + ">>";
+    }
+
+    // Admits stage, the code that reads a page, as pageType() requires
+    private String admitPage(String endpointClass, String stage) {
+        if (params.isWebflux())
+            return "admissionControl.mono(ExecutionProfiles." + endpointClass + ", () -> Mono.fromCompletionStage(" + stage + "))";
+        return "admissionControl.stage(ExecutionProfiles." + endpointClass + ", () -> " + stage + ")";
+    }
+
+    // A read of the _fields columns of this table.  clause is the query after the table name,
+    // bind the function that binds its named markers (if any) and sets the execution profile,
+    // and values the values for the rest of its markers, in order.
+    private String projection(String clause, String bind, String values) {
+        return projection(table_name, clause, bind, values);
+    }
+
+    // As above, reading from relation (the table, or one of its materialized views)
+    private String projection(String relation, String clause, String bind, String values) {
+        return "projections.select(\"" + keyspace_name + "\", \"" + relation + "\", COLUMNS, _fields, \"" + clause + "\", "
+                + bind + (values.isEmpty() ? "" : ", " + values) + ")";
+    }
+
+    // One page of the same read, of _pageSize rows from _cursor
+    private String projectionPage(String relation, String clause, String bind, String values) {
+        return "projections.page(\"" + keyspace_name + "\", \"" + relation + "\", COLUMNS, _fields, \"" + clause + "\", "
+                + "AmbienPage.paging(_pageSize, _cursor).andThen(" + bind + ")" + (values.isEmpty() ? "" : ", " + values) + ")";
+    }
+
+    // Multi-key lookup: POST a JSON array of keys, each with every partition key column and
+    // optionally a prefix of the clustering columns.  keyBases.get(d) is the DAO read for a
+    // key with d clustering columns.
+    private void genGetMany(StringBuilder sbc, List<String> keyBases) {
+        List<ColumnMetadata> keyCols = Stream.concat(partitionCols.stream(), clusteringCols.stream()).collect(Collectors.toList());
+        int p = partitionCols.size();
+        String endpoint = endpointPrefix + "getMany";
+        restEndpoints.add(endpoint);
+        sbc.append("\t// Get Many (one lookup per key, run concurrently)\n");
+        genControllerRead(sbc, "value = \"" + endpoint + "\", method = RequestMethod.POST", "getMany", "getMany",
+                "@RequestBody List<Map<String, String>> _keys",
+                "multiGet.get(\"" + keyspace_name + "\", \"" + table_name + "\", parseKeys(_keys), " + p + ", getManyConcurrency, this::getOne)",
+                null, "SLICE_READ", true);
+        genControllerProjection(sbc, "value = \"" + endpoint + "\", method = RequestMethod.POST", "getMany", "getMany",
+                "@RequestBody List<Map<String, String>> _keys",
+                "multiGet.get(\"" + keyspace_name + "\", \"" + table_name + "\", parseKeys(_keys), " + p + ", getManyConcurrency, key -> getOneFields(key, _fields))",
+                null, "SLICE_READ", true);
+
+        sbc.append("\tprivate List<Object[]> parseKeys(List<Map<String, String>> _keys) throws ParseException {\n");
+        sbc.append("\t\tList<Object[]> keys = new ArrayList<Object[]>(_keys.size());\n");
+        sbc.append("\t\tfor (Map<String, String> _key : _keys) {\n");
+        sbc.append("\t\t\tObject[] key = new Object[" + keyCols.size() + "];\n");
+        for (int i = 0; i < keyCols.size(); i++) {
+            String name = keyCols.get(i).getName().asInternal();
+            if (i < p) {
+                sbc.append("\t\t\tkey[" + i + "] = " + parse(name, "MultiGet.require(_key, \"" + name + "\")") + ";\n");
+            }
+            else {
+                String present = "null != _key.get(\"" + name + "\")";
+                sbc.append("\t\t\tif (" + ((i > p) ? "(null != key[" + (i - 1) + "]) && (" + present + ")" : present) + ")\n");
+                sbc.append("\t\t\t\tkey[" + i + "] = " + parse(name, "_key.get(\"" + name + "\")") + ";\n");
+            }
+        }
+        sbc.append("\t\t\tkeys.add(key);\n");
+        sbc.append("\t\t}\n");
+        sbc.append("\t\treturn keys;\n");
+        sbc.append("\t}\n\n");
+
+        sbc.append("\tprivate Publisher<" + cap_name + "> getOne(Object[] key) {\n");
+        for (int d = 0; d < keyBases.size(); d++) {
+            List<String> types = new ArrayList<>();
+            StringBuilder key = new StringBuilder();
+            for (int i = 0; i < p + d; i++) {
+                types.add(typeFor(keyCols.get(i)));
+                key.append(((0 == i) ? "" : ", ") + "key[" + i + "]");
+            }
+            String read = "return " + cacheRead(keyBases.get(d), types, key.toString(), readClass(p + d, false)) + ";\n";
+            if (d < keyBases.size() - 1) {
+                sbc.append("\t\tif (null == key[" + (p + d) + "])\n");
+                sbc.append("\t\t\t" + read);
+            }
+            else {
+                sbc.append("\t\t" + read);
+            }
+        }
+        sbc.append("\t}\n\n");
+
+        sbc.append("\tprivate Publisher<Map<String, Object>> getOneFields(Object[] key, String _fields) {\n");
+        for (int d = 0; d < keyBases.size(); d++) {
+            String where = keyCols.subList(0, p + d).stream()
+                    .map(c -> c.getName().asInternal() + " = :" + c.getName().asInternal()).collect(Collectors.joining(" AND "));
+            String read = "return " + projection("WHERE " + where, profile(readClass(p + d, false)), "Arrays.copyOf(key, " + (p + d) + ")") + ";\n";
+            if (d < keyBases.size() - 1) {
+                sbc.append("\t\tif (null == key[" + (p + d) + "])\n");
+                sbc.append("\t\t\t" + read);
+            }
+            else {
+                sbc.append("\t\t" + read);
+            }
+        }
+        sbc.append("\t}\n\n");
+    }
+
+    // Aggregate queries run by DSE, so only the result leaves the cluster: count(*) plus
+    // sum, min, max and avg of each numeric regular column, over a partition or a
+    // clustering prefix of one (<path>_aggregate), and grouped by the next clustering
+    // column when that is not the last one (<path>_aggregate_by_<column>).  Tables
+    // without clustering columns have one row per partition, so there is nothing to
+    // aggregate.
+    private void genAggregates(StringBuilder sbr, StringBuilder sbc) {
+        if (clusteringCols.isEmpty())
+            return;
+        StringBuilder selectors = new StringBuilder("count(*) AS row_count");
+        for (ColumnMetadata cm : regularCols) {
+            String name = cm.getName().asInternal();
+            String type = typeFor(cm);
+            boolean integral = type.equals("java.lang.Integer") || type.equals("java.lang.Short") || type.equals("java.lang.Byte");
+            boolean numeric = integral || type.equals("java.lang.Long") || type.equals("java.lang.Float") || type.equals("java.lang.Double")
+                    || type.equals("java.math.BigDecimal") || type.equals("java.math.BigInteger");
+            if (!numeric)
+                continue;
+            // Widen so sums of small integers do not overflow and averages keep their fraction
+            String summed = integral ? "CAST(" + name + " AS bigint)" : name;
+            String averaged = (integral || type.equals("java.lang.Long")) ? "CAST(" + name + " AS double)" : name;
+            selectors.append(", sum(" + summed + ") AS sum_" + name + ", min(" + name + ") AS min_" + name
+                    + ", max(" + name + ") AS max_" + name + ", avg(" + averaged + ") AS avg_" + name);
+        }
+
+        sbr.append("\t// Aggregates\n");
+        sbc.append("\t// Aggregates\n");
+        List<ColumnMetadata> scope = new ArrayList<>(partitionCols);
+        for (int d = 0; d < clusteringCols.size(); d++) {
+            if (d > 0)
+                scope.add(clusteringCols.get(d - 1));
+            String base = "aggregateBy" + scope.stream().map(c -> Ambien.capName(c.getName().asInternal())).collect(Collectors.joining("And"));
+            String path = scope.stream().map(c -> c.getName().asInternal()).collect(Collectors.joining("_")) + "_aggregate";
+            String where = scope.stream().map(c -> c.getName().asInternal() + " = :" + c.getName().asInternal()).collect(Collectors.joining(" AND "));
+            String daoArgs = scope.stream().map(c -> typeFor(c) + " " + c.getName().asInternal()).collect(Collectors.joining(", "));
+            String args = scope.stream().map(c -> "@RequestParam String " + c.getName().asInternal()).collect(Collectors.joining(", "));
+            String parsed = scope.stream().map(c -> parse(c.getName().asInternal(), c.getName().asInternal())).collect(Collectors.joining(", "));
+            String example = scope.stream().map(c -> c.getName().asInternal() + "={" + c.getName().asInternal() + "}").collect(Collectors.joining("&"));
+
+            ColumnMetadata next = clusteringCols.get(d);
+            List<ColumnMetadata> groupCols = new ArrayList<>(scope);
+            groupCols.add(next);
+            String groupBy = groupCols.stream().map(c -> c.getName().asInternal()).collect(Collectors.joining(", "));
+            String groupBase = base + "GroupBy" + Ambien.capName(next.getName().asInternal());
+            String groupPath = path + "_by_" + next.getName().asInternal();
+
+            genAggregate(sbr, sbc, base, path, "SELECT " + selectors + " FROM ${keyspaceId}.${tableId} WHERE " + where,
+                    daoArgs, args, parsed, example);
+            // Grouping by the last clustering column would give one group per row
+            if (d == clusteringCols.size() - 1)
+                continue;
+            genAggregate(sbr, sbc, groupBase, groupPath,
+                    "SELECT " + groupBy + ", " + selectors + " FROM ${keyspaceId}.${tableId} WHERE " + where + " GROUP BY " + groupBy,
+                    daoArgs, args, parsed, example);
+        }
+    }
+
+    private void genAggregate(StringBuilder sbr, StringBuilder sbc, String base, String path, String query,
+                              String daoArgs, String args, String parsed, String example) {
+        sbr.append("\t@Query(\"" + query + "\")\n");
+        sbr.append("\tpublic ReactiveResultSet " + base + "(" + daoArgs + ", Function<BoundStatementBuilder, BoundStatementBuilder> profile);\n");
+        sbr.append("\n");
+
+        String endpoint = endpointPrefix + path;
+        restEndpoints.add(endpoint + "?" + example);
+        warmupReads.add(endpoint + "?" + example);
+        genControllerRead(sbc, "Map<String, Object>", "value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET}", path, base, args,
+                "Aggregates.rows(" + camel_name + "Dao." + base + "(" + parsed + ", ExecutionProfiles.sliceRead()))", null, "SLICE_READ", true);
+    }
+
     private void genFunctionInequality(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> cols,
                                        String path, String pathvars) {
         for (int i = 0; i < ineq.length; i++) {
@@ -374,6 +1060,221 @@ public class AmbienRepository {
         }
     }
 
+    // Reads through the table's DSE Search index (solr_query), which is answered by the
+    // index on each node rather than by filtering rows: a raw query (search), and per
+    // column a term (<column>_search), a wildcard on text (<column>_wildcard), an
+    // inclusive range on numbers and dates (<column>_range) and a distance from a point
+    // on geospatial points (<column>_geo).  Search only reads at ONE or LOCAL_ONE, so these
+    // use the scan profile.
+    private void genSearch(StringBuilder sbr, StringBuilder sbc) {
+        sbr.append("\t// DSE Search\n");
+        String query = "SELECT * FROM ${keyspaceId}.${tableId} WHERE solr_query = :solr_query";
+        genDaoRead(sbr, "@Query(\"" + query + "\")", "search", "String solr_query");
+        genDaoRowsRead(sbr, query, "search", "String solr_query");
+
+        sbc.append("\t// DSE Search\n");
+        genSearchEndpoint(sbc, "search", "search", "@RequestParam String q", "SearchQueries.query(q)", "q={q}", "q=*:*");
+        List<ColumnMetadata> columns = new ArrayList<>(partitionCols);
+        columns.addAll(clusteringCols);
+        columns.addAll(regularCols);
+        for (ColumnMetadata cm : columns) {
+            String name = cm.getName().asInternal();
+            String type = typeFor(cm);
+            boolean text = type.equals("java.lang.String");
+            boolean ordered = isOrdered(type);
+            boolean point = type.endsWith(".geometry.Point");
+            boolean term = text || ordered || type.equals("java.util.UUID") || type.equals("java.lang.Boolean")
+                    || type.equals("java.net.InetAddress");
+            if (term)
+                genSearchEndpoint(sbc, name + "_search", "search" + Ambien.capName(name), "@RequestParam String " + name,
+                        "SearchQueries.term(\"" + name + "\", " + name + ")", name + "={" + name + "}", name + "={" + name + "}");
+            if (text)
+                genSearchEndpoint(sbc, name + "_wildcard", "wildcard" + Ambien.capName(name), "@RequestParam String pattern",
+                        "SearchQueries.wildcard(\"" + name + "\", pattern)", "pattern={pattern}", "pattern=*");
+            if (ordered)
+                genSearchEndpoint(sbc, name + "_range", "range" + Ambien.capName(name),
+                        "@RequestParam(defaultValue = \"*\") String from, @RequestParam(defaultValue = \"*\") String to",
+                        "SearchQueries.range(\"" + name + "\", from, to)", "from={from}&to={to}", "from=*&to=*");
+            if (point)
+                genSearchEndpoint(sbc, name + "_geo", "geo" + Ambien.capName(name),
+                        "@RequestParam double lat, @RequestParam double lon, @RequestParam double km",
+                        "SearchQueries.geo(\"" + name + "\", lat, lon, km)", "lat={lat}&lon={lon}&km={km}", "lat=0&lon=0&km=1");
+        }
+    }
+
+    // example is the query string listed in index.html, and warm the one Warmup sends
+    private void genSearchEndpoint(StringBuilder sbc, String path, String name, String args, String solrQuery, String example,
+                                   String warm) {
+        String endpoint = endpointPrefix + path;
+        String mapping = "value = \"" + endpoint + "\", method = {RequestMethod.POST, RequestMethod.GET}";
+        genControllerRead(sbc, mapping, path, name, args,
+                camel_name + "Dao.search(" + solrQuery + ", ExecutionProfiles.scan())",
+                camel_name + "Dao.searchRows(" + solrQuery + ", ExecutionProfiles.scan())", false,
+                camel_name + "Dao.searchPage(" + solrQuery + ", ", "SCAN", false);
+        genControllerProjection(sbc, mapping, path, name, args,
+                projection("WHERE solr_query = :solr_query", "ExecutionProfiles.scan()", solrQuery),
+                projectionPage(table_name, "WHERE solr_query = :solr_query", "ExecutionProfiles.scan()", solrQuery), "SCAN", false);
+        restEndpoints.add(endpoint + "?" + example);
+        warmupReads.add(endpoint + "?" + warm);
+    }
+
+    // Lookups through the single-column secondary and SAI indexes, by the indexed column
+    // alone (<column>_index), which asks every node, and within a partition
+    // (<partitionKeys>_<column>_index).  SAI indexes also serve inclusive ranges on
+    // numbers and dates (<column>_index_range, with <column>_from and <column>_to).
+    // None of these needs ALLOW FILTERING.
+    private void genIndexLookups(StringBuilder sbr, StringBuilder sbc) {
+        List<ColumnMetadata> columns = new ArrayList<>(partitionCols);
+        columns.addAll(clusteringCols);
+        columns.addAll(regularCols);
+        List<Pair<String,String>> keys = partitionCols.stream()
+                .map(c -> new Pair<>(c.getName().asInternal(), typeFor(c))).collect(Collectors.toList());
+        String keyBase = keys.stream().map(k -> Ambien.capName(k.getKey())).collect(Collectors.joining("And"));
+        String keyPath = keys.stream().map(Pair::getKey).collect(Collectors.joining("_"));
+        for (AmbienIndexes.ColumnIndex ci : indexes.getColumnIndexes()) {
+            ColumnMetadata cm = columns.stream().filter(c -> c.getName().asInternal().equals(ci.column)).findFirst().orElse(null);
+            if (null == cm)
+                continue;
+            String name = ci.column;
+            String type = typeFor(cm);
+            sbr.append("\t// " + Ambien.capName(ci.describe()) + " on " + name + "\n");
+            sbc.append("\t// " + Ambien.capName(ci.describe()) + " on " + name + "\n");
+
+            String base = "findBy" + Ambien.capName(name) + "Indexed";
+            List<Pair<String,String>> binds = Collections.singletonList(new Pair<>(name, type));
+            genIndexRead(sbr, sbc, base, name + "_index", name + " = :" + name, binds, Collections.singletonList(name),
+                    "SCAN", ci.describe());
+
+            if (!partitionCols.contains(cm)) {
+                binds = new ArrayList<>(keys);
+                binds.add(new Pair<>(name, type));
+                genIndexRead(sbr, sbc, "findBy" + keyBase + "And" + Ambien.capName(name) + "Indexed",
+                        keyPath + "_" + name + "_index",
+                        keys.stream().map(k -> k.getKey() + " = :" + k.getKey() + " AND ").collect(Collectors.joining()) + name + " = :" + name,
+                        binds, binds.stream().map(Pair::getKey).collect(Collectors.toList()), "SLICE_READ", ci.describe());
+            }
+
+            boolean ordered = isOrdered(type);
+            if (ci.sai && ordered) {
+                binds = Arrays.asList(new Pair<>(name + "_from", type), new Pair<>(name + "_to", type));
+                genIndexRead(sbr, sbc, base + "Range", name + "_index_range",
+                        name + " >= :" + name + "_from AND " + name + " <= :" + name + "_to", binds, Arrays.asList(name, name),
+                        "SCAN", ci.describe());
+            }
+        }
+    }
+
+    // Lookups in the materialized views that have every column of the table, by the view's
+    // partition key and then each prefix of its clustering columns (<view>_<column>_...)
+    private void genViewLookups(StringBuilder sbr, StringBuilder sbc) {
+        for (AmbienIndexes.View view : indexes.getViews()) {
+            sbr.append("\t// Materialized view " + view.name + "\n");
+            sbc.append("\t// Materialized view " + view.name + "\n");
+            List<ColumnMetadata> scope = new ArrayList<>(view.partitionCols);
+            for (int d = 0; d <= view.clusteringCols.size(); d++) {
+                if (d > 0)
+                    scope.add(view.clusteringCols.get(d - 1));
+                List<Pair<String,String>> binds = scope.stream()
+                        .map(c -> new Pair<>(c.getName().asInternal(), typeFor(c))).collect(Collectors.toList());
+                String base = "findIn" + Arrays.stream(view.name.split("_")).map(Ambien::capName).collect(Collectors.joining()) + "By"
+                        + binds.stream().map(b -> Ambien.capName(b.getKey())).collect(Collectors.joining("And"));
+                String path = view.name + "_" + binds.stream().map(Pair::getKey).collect(Collectors.joining("_"));
+                String where = binds.stream().map(b -> b.getKey() + " = :" + b.getKey()).collect(Collectors.joining(" AND "));
+                bases.add(base);
+                int before = restEndpoints.size();
+                genRead(sbr, sbc, base, path, "", where, false, binds, binds.stream().map(Pair::getKey).collect(Collectors.toList()),
+                        "@RequestParam", "{RequestMethod.POST, RequestMethod.GET}",
+                        (d == view.clusteringCols.size()) ? "POINT_READ" : "SLICE_READ", view.name, false);
+                indexBackedEndpoints.put(restEndpoints.get(before), view.describe());
+            }
+        }
+    }
+
+    private void genIndexRead(StringBuilder sbr, StringBuilder sbc, String base, String path, String where,
+                              List<Pair<String,String>> binds, List<String> columns, String endpointClass, String note) {
+        bases.add(base);
+        int before = restEndpoints.size();
+        genRead(sbr, sbc, base, path, "", where, false, binds, columns, "@RequestParam",
+                "{RequestMethod.POST, RequestMethod.GET}", endpointClass, table_name, false);
+        indexBackedEndpoints.put(restEndpoints.get(before), note);
+    }
+
+    // Two-bound ranges on the last of cols, e.g. ts > :ts_from AND ts <= :ts_to, one endpoint
+    // per pair of bounds, so a window is one slice of the partition rather than an open-ended one
+    private void genFunctionRange(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> cols,
+                                  String path) {
+        Pair<String,String> last = cols.get(cols.size() - 1);
+        List<Pair<String,String>> eq = cols.subList(0, cols.size() - 1);
+        StringBuilder prefix = new StringBuilder();
+        for (Pair<String,String> col : eq)
+            prefix.append(col.getKey() + " = :" + col.getKey() + " AND ");
+        for (int lo = 2; lo < ineq.length; lo++) {
+            for (int hi = 0; hi < 2; hi++) {
+                String sName = ineqName[lo] + "_" + ineqName[hi];
+                String where = prefix + last.getKey() + " " + ineq[lo] + " :" + last.getKey() + "_from AND "
+                        + last.getKey() + " " + ineq[hi] + " :" + last.getKey() + "_to";
+                List<Pair<String,String>> binds = new ArrayList<>(eq);
+                binds.add(new Pair<>(last.getKey() + "_from", last.getValue()));
+                binds.add(new Pair<>(last.getKey() + "_to", last.getValue()));
+                List<String> columns = eq.stream().map(Pair::getKey).collect(Collectors.toList());
+                columns.add(last.getKey());
+                columns.add(last.getKey());
+                sbr.append("\t// " + sName + " " + last.getKey() + "\n");
+                bases.add(base + "_" + sName);
+                genRead(sbr, sbc, base + "_" + sName, path + "_" + sName, "", where, false, binds, columns,
+                        "@RequestParam", "{RequestMethod.POST, RequestMethod.GET}", "SLICE_READ");
+            }
+        }
+    }
+
+    // Multi-column slices on the leading clustering columns tuple, within the partition keys,
+    // e.g. (ts, seq) > (:ts, :seq), with one bound and with two
+    private void genFunctionTuple(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> keys,
+                                  List<Pair<String,String>> tuple, String path) {
+        StringBuilder prefix = new StringBuilder();
+        for (Pair<String,String> col : keys)
+            prefix.append(col.getKey() + " = :" + col.getKey() + " AND ");
+        List<String> tupleNames = tuple.stream().map(Pair::getKey).collect(Collectors.toList());
+        String columns = "(" + String.join(", ", tupleNames) + ")";
+        base = base + "AndTuple" + tupleNames.stream().map(Ambien::capName).collect(Collectors.joining());
+        path = path + "_tuple_" + String.join("_", tupleNames);
+        for (int i = 0; i < ineq.length; i++) {
+            String sName = ineqName[i];
+            String where = prefix + columns + " " + ineq[i] + " " + tupleBinds(tupleNames, "");
+            List<Pair<String,String>> binds = new ArrayList<>(keys);
+            binds.addAll(tuple);
+            sbr.append("\t// " + sName + " " + columns + "\n");
+            bases.add(base + "_" + sName);
+            genRead(sbr, sbc, base + "_" + sName, path + "_" + sName, "", where, false, binds,
+                    binds.stream().map(Pair::getKey).collect(Collectors.toList()),
+                    "@RequestParam", "{RequestMethod.POST, RequestMethod.GET}", "SLICE_READ");
+        }
+        for (int lo = 2; lo < ineq.length; lo++) {
+            for (int hi = 0; hi < 2; hi++) {
+                String sName = ineqName[lo] + "_" + ineqName[hi];
+                String where = prefix + columns + " " + ineq[lo] + " " + tupleBinds(tupleNames, "_from") + " AND "
+                        + columns + " " + ineq[hi] + " " + tupleBinds(tupleNames, "_to");
+                List<Pair<String,String>> binds = new ArrayList<>(keys);
+                List<String> bindColumns = keys.stream().map(Pair::getKey).collect(Collectors.toList());
+                for (String suffix : new String[]{"_from", "_to"}) {
+                    for (Pair<String,String> col : tuple) {
+                        binds.add(new Pair<>(col.getKey() + suffix, col.getValue()));
+                        bindColumns.add(col.getKey());
+                    }
+                }
+                sbr.append("\t// " + sName + " " + columns + "\n");
+                bases.add(base + "_" + sName);
+                genRead(sbr, sbc, base + "_" + sName, path + "_" + sName, "", where, false, binds, bindColumns,
+                        "@RequestParam", "{RequestMethod.POST, RequestMethod.GET}", "SLICE_READ");
+            }
+        }
+    }
+
+    // (:c1<suffix>, :c2<suffix>, ...)
+    private static String tupleBinds(List<String> names, String suffix) {
+        return names.stream().map(n -> ":" + n + suffix).collect(Collectors.joining(", ", "(", ")"));
+    }
+
     private void genRegularColumns(StringBuilder sbr, StringBuilder sbc, String base, List<Pair<String,String>> cols,
                                    List<ColumnMetadata> regCols, String path, String pathvars) {
         String jbase;
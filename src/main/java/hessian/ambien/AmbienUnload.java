@@ -0,0 +1,341 @@
+package hessian.ambien;
+
+import com.datastax.oss.driver.api.core.CqlSession;
+import com.datastax.oss.driver.api.core.DriverTimeoutException;
+import com.datastax.oss.driver.api.core.cql.BoundStatement;
+import com.datastax.oss.driver.api.core.cql.ColumnDefinitions;
+import com.datastax.oss.driver.api.core.cql.PreparedStatement;
+import com.datastax.oss.driver.api.core.cql.ResultSet;
+import com.datastax.oss.driver.api.core.cql.Row;
+import com.datastax.oss.driver.api.core.metadata.TokenMap;
+import com.datastax.oss.driver.api.core.metadata.schema.TableMetadata;
+import com.datastax.oss.driver.api.core.metadata.token.TokenRange;
+import com.datastax.oss.driver.api.core.servererrors.QueryConsistencyException;
+import com.datastax.oss.driver.api.core.type.codec.TypeCodec;
+import com.datastax.oss.driver.api.core.type.codec.registry.CodecRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+// Bulk export (ambien unload): each table is split by token range and the ranges are
+// read in parallel, each into its own gzipped NDJSON or CSV shard.  The ranges are saved
+// in <outputDir>/<keyspace>.<table>/ranges, and each finished shard is recorded in the
+// checkpoint file there, so an interrupted export run again only reads what is missing.
+public class AmbienUnload {
+    private static final int MIN_PAGE_SIZE = 100;
+    private static final long SLOW_PAGE_MILLIS = 2000;
+    private static final int MAX_RETRIES = 5;
+    private static final int BUFFER_SIZE = 1 << 16;
+    private static final long REPORT_SECONDS = 10;
+
+    private AmbienParams params = null;
+    private CqlSession session = null;
+    private CodecRegistry cr = null;
+
+    public AmbienUnload(AmbienParams params, CqlSession session) {
+        this.params = params;
+        this.session = session;
+        this.cr = session.getContext().getCodecRegistry();
+    }
+
+    public boolean unload() {
+        TokenMap tokenMap = session.getMetadata().getTokenMap().orElse(null);
+        if (null == tokenMap) {
+            System.err.println("No token map, is token metadata disabled?");
+            return false;
+        }
+        for (int idx = 0; idx < params.keyspace_name.size(); idx++) {
+            String ksname = params.keyspace_name.get(idx);
+            String tblname = params.table_name.get(idx);
+            TableMetadata tm = session.getMetadata().getKeyspace(ksname).flatMap(km -> km.getTable(tblname)).orElse(null);
+            if (null == tm) {
+                System.err.println("Table " + ksname + "." + tblname + " not found");
+                return false;
+            }
+            try {
+                if (!unloadTable(tokenMap, tm, ksname, tblname))
+                    return false;
+            }
+            catch (IOException | InterruptedException e) {
+                System.err.println("Could not unload " + ksname + "." + tblname + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean unloadTable(TokenMap tokenMap, TableMetadata tm, String ksname, String tblname)
+            throws IOException, InterruptedException {
+        Path dir = Paths.get(params.output_dir, ksname + "." + tblname);
+        Files.createDirectories(dir);
+        List<TokenRange> ranges = ranges(tokenMap, dir.resolve("ranges"));
+        if (null == ranges)
+            return false;
+        Set<Integer> done = checkpointed(dir.resolve("checkpoint"));
+        List<Integer> todo = new ArrayList<Integer>();
+        for (int i = 0; i < ranges.size(); i++)
+            if (!done.contains(i))
+                todo.add(i);
+        System.err.println("Unloading " + ksname + "." + tblname + " to " + dir + ": " + todo.size() + " of "
+                + ranges.size() + " token ranges to read (" + done.size() + " done before)");
+
+        String tokenOf = "token(" + tm.getPartitionKey().stream().map(c -> c.getName().asCql(true)).collect(Collectors.joining(", ")) + ")";
+        String where = " FROM " + tm.getKeyspace().asCql(true) + "." + tm.getName().asCql(true)
+                + " WHERE " + tokenOf + " > ? AND " + tokenOf + " <= ?";
+        PreparedStatement ps = session.prepare(("csv".equals(params.unloadFormat) ? "SELECT *" : "SELECT JSON *") + where);
+        List<String> columns = new ArrayList<String>();
+        for (int i = 0; i < ps.getResultSetDefinitions().size(); i++)
+            columns.add(ps.getResultSetDefinitions().get(i).getName().asInternal());
+
+        Progress progress = new Progress(ksname + "." + tblname, todo.size());
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+        reporter.scheduleAtFixedRate(progress::report, REPORT_SECONDS, REPORT_SECONDS, TimeUnit.SECONDS);
+        ExecutorService workers = Executors.newFixedThreadPool(params.unloadConcurrency);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int index : todo)
+            results.add(workers.submit(() -> unloadRange(ps, ranges.get(index), index, dir, columns, progress)));
+        boolean success = true;
+        for (Future<Boolean> result : results) {
+            try {
+                success &= result.get();
+            }
+            catch (ExecutionException e) {
+                System.err.println("Range failed: " + e.getCause());
+                success = false;
+            }
+        }
+        workers.shutdown();
+        reporter.shutdownNow();
+        progress.report();
+        if (!success)
+            System.err.println("Some ranges of " + ksname + "." + tblname + " failed; run again to resume");
+        return success;
+    }
+
+    // The token ranges to read, split splitFactor ways: read from the ranges file when
+    // resuming, so the shards line up with the first run even if the ring has changed.
+    // The file starts with the format and split factor it was made with, and resuming
+    // with others is refused (null), as the shards already done would not match.
+    private List<TokenRange> ranges(TokenMap tokenMap, Path file) throws IOException {
+        List<TokenRange> ranges = new ArrayList<TokenRange>();
+        String settings = "# format=" + params.unloadFormat + " splitFactor=" + params.unloadSplitFactor;
+        if (Files.exists(file)) {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            String saved = lines.isEmpty() ? "" : lines.get(0);
+            if (!settings.equals(saved)) {
+                System.err.println("Cannot resume the export in " + file.getParent() + ": it was started with \""
+                        + saved + "\", not \"" + settings + "\".  Use the same -format and -splitFactor, or an empty -o");
+                return null;
+            }
+            for (String line : lines.subList(1, lines.size())) {
+                String[] fields = line.split(" ");
+                ranges.add(tokenMap.newTokenRange(tokenMap.parse(fields[1]), tokenMap.parse(fields[2])));
+            }
+            return ranges;
+        }
+        for (TokenRange range : tokenMap.getTokenRanges()) {
+            List<TokenRange> splits = (params.unloadSplitFactor > 1) ? range.splitEvenly(params.unloadSplitFactor)
+                    : Collections.singletonList(range);
+            // "token > start AND token <= end" matches nothing when the range wraps around the ring
+            for (TokenRange split : splits)
+                ranges.addAll(split.unwrap());
+        }
+        List<String> lines = new ArrayList<String>();
+        lines.add(settings);
+        for (int i = 0; i < ranges.size(); i++)
+            lines.add(i + " " + tokenMap.format(ranges.get(i).getStart()) + " " + tokenMap.format(ranges.get(i).getEnd()));
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            channel.write(ByteBuffer.wrap((String.join("\n", lines) + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(file.getParent());
+        return ranges;
+    }
+
+    private static Set<Integer> checkpointed(Path file) throws IOException {
+        Set<Integer> done = new HashSet<Integer>();
+        if (Files.exists(file))
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+                if (!line.trim().isEmpty())
+                    done.add(Integer.parseInt(line.split(" ")[0]));
+        return done;
+    }
+
+    // Reads one range into part-<index>.<format>.gz, written as a .tmp file, forced to disk
+    // and renamed when complete, and then records it in the checkpoint.  The page size halves when a page
+    // times out or is slow, and grows back to -pageSize while pages are fast.
+    private boolean unloadRange(PreparedStatement ps, TokenRange range, int index, Path dir, List<String> columns,
+                                Progress progress) throws IOException {
+        String name = String.format("part-%05d.%s.gz", index, params.unloadFormat);
+        Path tmp = dir.resolve(name + ".tmp");
+        BoundStatement statement = ps.bind()
+                .setToken(0, range.getStart())
+                .setToken(1, range.getEnd())
+                .setRoutingToken(range.getEnd())
+                .setIdempotent(true);
+        int pageSize = params.unloadPageSize;
+        long rows = 0;
+        long bytes = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+             GZIPOutputStream out = new GZIPOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE), BUFFER_SIZE)) {
+            if ("csv".equals(params.unloadFormat))
+                bytes += write(out, columns.stream().map(AmbienUnload::csv).collect(Collectors.joining(",")));
+            ByteBuffer pagingState = null;
+            int retries = 0;
+            while (true) {
+                ResultSet rs;
+                long start = System.nanoTime();
+                try {
+                    rs = session.execute(statement.setPageSize(pageSize).setPagingState(pagingState));
+                }
+                catch (DriverTimeoutException | QueryConsistencyException e) {
+                    if (++retries > MAX_RETRIES)
+                        throw e;
+                    pageSize = Math.max(MIN_PAGE_SIZE, pageSize / 2);
+                    continue;
+                }
+                retries = 0;
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                if (millis > SLOW_PAGE_MILLIS)
+                    pageSize = Math.max(MIN_PAGE_SIZE, pageSize / 2);
+                else if (millis < SLOW_PAGE_MILLIS / 4)
+                    pageSize = Math.min(params.unloadPageSize, pageSize * 2);
+                long pageBytes = 0;
+                int pageRows = rs.getAvailableWithoutFetching();
+                for (int i = 0; i < pageRows; i++)
+                    pageBytes += write(out, line(rs.one()));
+                rows += pageRows;
+                bytes += pageBytes;
+                progress.add(pageRows, pageBytes);
+                pagingState = rs.getExecutionInfo().getPagingState();
+                if (null == pagingState)
+                    break;
+            }
+            // The shard must be on disk before the checkpoint says it is done
+            out.finish();
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, dir.resolve(name), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(dir);
+        checkpoint(dir.resolve("checkpoint"), index + " " + rows + " " + bytes + " " + name);
+        progress.rangeDone();
+        return true;
+    }
+
+    private static synchronized void checkpoint(Path file, String line) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap((line + "\n").getBytes(StandardCharsets.UTF_8)));
+            channel.force(false);
+        }
+    }
+
+    // Makes the renames in a directory durable; not every platform can open a directory
+    private static void forceDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+        catch (IOException e) {
+            // Best effort
+        }
+    }
+
+    private static long write(OutputStream out, String line) throws IOException {
+        byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes);
+        return bytes.length;
+    }
+
+    // A row as a line: the JSON Cassandra made for it, or its values as CSV
+    private String line(Row row) {
+        if (!"csv".equals(params.unloadFormat))
+            return row.getString(0);
+        ColumnDefinitions defs = row.getColumnDefinitions();
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < defs.size(); i++) {
+            if (i > 0)
+                sb.append(",");
+            Object value = row.getObject(i);
+            if (null == value)
+                continue;
+            if (value instanceof String) {
+                sb.append(csv((String) value));
+                continue;
+            }
+            TypeCodec<Object> codec = cr.codecFor(defs.get(i).getType());
+            String formatted = codec.format(value);
+            // Dates, times and timestamps are formatted as quoted CQL literals
+            if (formatted.length() > 1 && formatted.startsWith("'") && formatted.endsWith("'"))
+                formatted = formatted.substring(1, formatted.length() - 1);
+            sb.append(csv(formatted));
+        }
+        return sb.toString();
+    }
+
+    private static String csv(String value) {
+        if (value.contains(",") || value.contains("\"") || value.contains("\n") || value.contains("\r"))
+            return "\"" + value.replace("\"", "\"\"") + "\"";
+        return value;
+    }
+
+    // Rows and bytes (uncompressed) written, reported every REPORT_SECONDS and at the end
+    private static class Progress {
+        private final String table;
+        private final int ranges;
+        private final long start = System.nanoTime();
+        private final AtomicInteger rangesDone = new AtomicInteger();
+        private final AtomicLong rows = new AtomicLong();
+        private final AtomicLong bytes = new AtomicLong();
+
+        Progress(String table, int ranges) {
+            this.table = table;
+            this.ranges = ranges;
+        }
+
+        void add(long rows, long bytes) {
+            this.rows.addAndGet(rows);
+            this.bytes.addAndGet(bytes);
+        }
+
+        void rangeDone() {
+            rangesDone.incrementAndGet();
+        }
+
+        void report() {
+            double seconds = Math.max(0.001, (System.nanoTime() - start) / 1e9);
+            double mb = bytes.get() / (1024.0 * 1024.0);
+            System.err.println(String.format("%s: %d/%d ranges, %d rows (%.0f rows/s), %.1f MB (%.2f MB/s) in %.0f s",
+                    table, rangesDone.get(), ranges, rows.get(), rows.get() / seconds, mb, mb / seconds, seconds));
+        }
+    }
+}